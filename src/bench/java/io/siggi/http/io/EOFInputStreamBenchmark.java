@@ -0,0 +1,83 @@
+package io.siggi.http.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Measures how fast {@link EOFInputStream} reads through multipart data.
+ * <p>
+ * 32 parts of 1 MiB of random data, each followed by a 40 byte WebKit style
+ * boundary, are read with 8 KiB reads, the way the multipart parser reads an
+ * upload. The first rounds warm up the JIT, the rest are printed.
+ * <p>
+ * This isn't part of the Maven build. To run it against the compiled
+ * classes:
+ * <pre>
+ * mvn -B compile
+ * javac -cp target/classes -d target/bench src/bench/java/io/siggi/http/io/EOFInputStreamBenchmark.java
+ * java -cp target/classes:target/bench io.siggi.http.io.EOFInputStreamBenchmark
+ * </pre>
+ * Only the public API is used, so the same steps on an older checkout
+ * measure the implementation there.
+ */
+public final class EOFInputStreamBenchmark {
+
+	private static final int parts = 32;
+	private static final int partSize = 1 << 20;
+	private static final int readSize = 8192;
+	private static final int repeats = 4;
+	private static final int warmupRounds = 4;
+	private static final int rounds = 8;
+
+	private EOFInputStreamBenchmark() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		byte[] boundary = "\r\n------WebKitFormBoundary7MA4YWxkTrZu0gW".getBytes(StandardCharsets.ISO_8859_1);
+		byte[] data = generate(boundary);
+		byte[] buffer = new byte[readSize];
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			long total = 0L;
+			for (int i = 0; i < repeats; i++) {
+				total += readAll(data, boundary, buffer);
+			}
+			long elapsed = System.nanoTime() - start;
+			if (total != (long) parts * partSize * repeats) {
+				throw new IllegalStateException("Read " + total + " bytes, expected " + ((long) parts * partSize * repeats));
+			}
+			if (round >= warmupRounds) {
+				System.out.printf("round %d: %.0f MB/s%n", round - warmupRounds + 1, total * 1000.0 / elapsed);
+			}
+		}
+	}
+
+	private static byte[] generate(byte[] boundary) {
+		Random random = new Random(7);
+		byte[] part = new byte[partSize];
+		ByteArrayOutputStream out = new ByteArrayOutputStream(parts * (partSize + boundary.length));
+		for (int i = 0; i < parts; i++) {
+			random.nextBytes(part);
+			out.write(part, 0, part.length);
+			out.write(boundary, 0, boundary.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static long readAll(byte[] data, byte[] boundary, byte[] buffer) throws IOException {
+		EOFInputStream in = new EOFInputStream(new ByteArrayInputStream(data));
+		in.setEofSequence(boundary);
+		long total = 0L;
+		for (int i = 0; i < parts; i++) {
+			int amount;
+			while ((amount = in.read(buffer, 0, buffer.length)) != -1) {
+				total += amount;
+			}
+			in.nextEofSequence();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,61 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts connections on a blocking server channel and passes them to
+ * {@link HTTPServer#handle(java.net.Socket)}. Several acceptors may share one
+ * server channel.
+ */
+final class Acceptor implements Runnable {
+
+	private static final long minBackoff = 10L;
+	private static final long maxBackoff = 1000L;
+
+	private final HTTPServer server;
+	private final HTTPListener listener;
+	private final ServerSocketChannel serverChannel;
+
+	Acceptor(HTTPServer server, HTTPListener listener, ServerSocketChannel serverChannel) {
+		this.server = server;
+		this.listener = listener;
+		this.serverChannel = serverChannel;
+	}
+
+	@Override
+	public void run() {
+		long backoff = 0L;
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+				backoff = 0L;
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				// most likely out of file descriptors (EMFILE), back off and
+				// give existing connections a chance to close instead of
+				// spinning on accept
+				backoff = backoff == 0L ? minBackoff : Math.min(backoff * 2L, maxBackoff);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				continue;
+			}
+			try {
+				listener.configure(channel);
+				server.handle(listener, channel);
+			} catch (IOException | RuntimeException e) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+				}
+			}
+		}
+	}
+}
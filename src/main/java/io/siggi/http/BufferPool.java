@@ -0,0 +1,62 @@
+package io.siggi.http;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of direct buffers of a single size. Direct buffers are
+ * expensive to allocate and are only freed by the garbage collector, so
+ * connections that come and go quickly should reuse them instead.
+ */
+final class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, or allocate a new one if the pool is
+	 * empty.
+	 *
+	 * @return a buffer of the pool's size
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool. Buffers of another size, and buffers
+	 * beyond the pool's limit, are left to the garbage collector.
+	 *
+	 * @param buffer the buffer, which must not be used afterwards
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect()) {
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		pool.add(buffer);
+	}
+}
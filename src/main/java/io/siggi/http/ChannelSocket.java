@@ -0,0 +1,323 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A Socket over a SocketChannel that has no socket of its own, such as a Unix
+ * domain socket connection. The channel is always in non-blocking mode, reads
+ * and writes that can't make progress wait on a selector instead, which is
+ * how the read timeout is enforced.
+ */
+final class ChannelSocket extends Socket {
+
+	private final SocketChannel channel;
+	private final InputStream in = new ChannelInputStream();
+	private final OutputStream out = new ChannelOutputStream();
+	private Selector readSelector = null;
+	private Selector writeSelector = null;
+	private volatile int soTimeout = 0;
+	private volatile boolean closed = false;
+	private volatile boolean inputShutdown = false;
+	private volatile boolean outputShutdown = false;
+
+	ChannelSocket(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+	}
+
+	private int read(ByteBuffer dst) throws IOException {
+		int amount = channel.read(dst);
+		if (amount != 0) {
+			return amount;
+		}
+		if (readSelector == null) {
+			readSelector = openSelector(SelectionKey.OP_READ);
+		}
+		int timeout = soTimeout;
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			long wait = 0L;
+			if (timeout > 0) {
+				wait = deadline - System.currentTimeMillis();
+				if (wait <= 0L) {
+					throw new SocketTimeoutException("Read timed out");
+				}
+			}
+			select(readSelector, wait);
+			amount = channel.read(dst);
+			if (amount != 0) {
+				return amount;
+			}
+			if (closed) {
+				throw new SocketException("Socket is closed");
+			}
+		}
+	}
+
+	private void write(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			if (channel.write(src) > 0) {
+				continue;
+			}
+			if (writeSelector == null) {
+				writeSelector = openSelector(SelectionKey.OP_WRITE);
+			}
+			select(writeSelector, 0L);
+			if (closed) {
+				throw new SocketException("Socket is closed");
+			}
+		}
+	}
+
+	private void select(Selector selector, long timeout) throws IOException {
+		try {
+			selector.select(timeout);
+			selector.selectedKeys().clear();
+		} catch (ClosedSelectorException e) {
+			// closed by another thread
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	private Selector openSelector(int ops) throws IOException {
+		Selector selector = Selector.open();
+		try {
+			channel.register(selector, ops);
+		} catch (IOException | RuntimeException e) {
+			selector.close();
+			throw e;
+		}
+		if (closed) {
+			selector.close();
+			throw new SocketException("Socket is closed");
+		}
+		return selector;
+	}
+
+	@Override
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		return out;
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		channel.shutdownOutput();
+		outputShutdown = true;
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		channel.shutdownInput();
+		inputShutdown = true;
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return outputShutdown;
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return inputShutdown;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			channel.close();
+		} finally {
+			closeSelector(readSelector);
+			closeSelector(writeSelector);
+		}
+	}
+
+	private void closeSelector(Selector selector) {
+		if (selector == null) {
+			return;
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+
+	/**
+	 * There is no peer InetAddress, the connection is not over IP.
+	 *
+	 * @return null
+	 */
+	@Override
+	public InetAddress getInetAddress() {
+		return null;
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return null;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return -1;
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		try {
+			return channel.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		try {
+			return channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout can't be negative");
+		}
+		soTimeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return soTimeout;
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return false;
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return false;
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+	}
+
+	@Override
+	public int getSoLinger() throws SocketException {
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return "ChannelSocket[" + channel + "]";
+	}
+
+	private final class ChannelInputStream extends InputStream {
+
+		private final byte[] singleByte = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			int amount = read(singleByte, 0, 1);
+			return amount < 0 ? -1 : (singleByte[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return ChannelSocket.this.read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException {
+			ChannelSocket.this.close();
+		}
+	}
+
+	private final class ChannelOutputStream extends OutputStream {
+
+		private final byte[] singleByte = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			singleByte[0] = (byte) b;
+			write(singleByte, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ChannelSocket.this.write(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException {
+			ChannelSocket.this.close();
+		}
+	}
+}
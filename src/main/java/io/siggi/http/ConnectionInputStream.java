@@ -0,0 +1,253 @@
+package io.siggi.http;
+
+import io.siggi.http.exception.TooBigException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The buffered input side of a client connection. The buffer is reused for the
+ * whole lifetime of the connection, {@link RequestParser} scans request lines
+ * and headers directly inside it, and whatever is left over after the headers
+ * is served to the request body.
+ */
+final class ConnectionInputStream extends InputStream {
+
+	private static final int maxBufferSize = Integer.MAX_VALUE - 8;
+
+	private final InputStream in;
+	private ConnectionOutputStream output = null;
+	byte[] buffer;
+	int pos = 0;
+	int limit = 0;
+
+	ConnectionInputStream(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Set the output side of the connection. Anything waiting in its buffer is
+	 * written out before this stream blocks to wait for the client, so that a
+	 * held response can never stall the connection.
+	 *
+	 * @param output the output side of the connection
+	 */
+	void setOutput(ConnectionOutputStream output) {
+		this.output = output;
+	}
+
+	private int readUnderlying(byte[] b, int off, int len) throws IOException {
+		if (output != null) {
+			output.forceFlush();
+		}
+		return in.read(b, off, len);
+	}
+
+	/**
+	 * Get the number of bytes that are already in the buffer and can be read
+	 * without touching the underlying stream.
+	 *
+	 * @return the number of buffered bytes
+	 */
+	int buffered() {
+		return limit - pos;
+	}
+
+	/**
+	 * Read more data from the underlying stream into the buffer without
+	 * discarding unread bytes. The buffer is compacted first, and if it is full
+	 * it is grown, but never beyond <code>maxBuffered</code> unread bytes.
+	 *
+	 * @param maxBuffered the maximum amount of unread bytes to hold
+	 * @return the amount of bytes read, 0 if the buffer could not be grown, or
+	 * -1 at the end of the stream
+	 * @throws IOException if something goes wrong
+	 */
+	int fill(int maxBuffered) throws IOException {
+		if (!makeRoom(maxBuffered)) {
+			return 0;
+		}
+		int amountRead = readUnderlying(buffer, limit, buffer.length - limit);
+		if (amountRead > 0) {
+			limit += amountRead;
+		}
+		return amountRead;
+	}
+
+	/**
+	 * Same as {@link #fill(int)}, but reads from a channel, which may be in
+	 * non-blocking mode.
+	 *
+	 * @param channel the channel to read from
+	 * @param maxBuffered the maximum amount of unread bytes to hold
+	 * @return the amount of bytes read, 0 if nothing was available or the
+	 * buffer could not be grown, or -1 at the end of the stream
+	 * @throws IOException if something goes wrong
+	 */
+	int fill(ReadableByteChannel channel, int maxBuffered) throws IOException {
+		if (!makeRoom(maxBuffered)) {
+			return 0;
+		}
+		int amountRead = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+		if (amountRead > 0) {
+			limit += amountRead;
+		}
+		return amountRead;
+	}
+
+	private boolean makeRoom(int maxBuffered) {
+		if (pos == limit) {
+			pos = limit = 0;
+		} else if (limit == buffer.length) {
+			int unread = limit - pos;
+			if (pos > 0) {
+				System.arraycopy(buffer, pos, buffer, 0, unread);
+				pos = 0;
+				limit = unread;
+			} else if (buffer.length < maxBuffered && buffer.length < maxBufferSize) {
+				int newSize = (int) Math.min(Math.min((long) buffer.length * 2L, (long) maxBuffered), (long) maxBufferSize);
+				byte[] newBuffer = new byte[newSize];
+				System.arraycopy(buffer, 0, newBuffer, 0, limit);
+				buffer = newBuffer;
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if the buffer holds a complete request head, that is a request line
+	 * followed by headers and an empty line. Blank lines before the request
+	 * line are skipped, the same way {@link RequestParser} skips them.
+	 *
+	 * @return true if a complete request head is buffered
+	 */
+	boolean hasCompleteHead() {
+		byte[] b = buffer;
+		int i = pos;
+		while (i < limit && (b[i] & 0xff) <= 0x20) {
+			i++;
+		}
+		for (; i < limit; i++) {
+			if (b[i] != 0x0A) {
+				continue;
+			}
+			if (i + 1 < limit && b[i + 1] == 0x0A) {
+				return true;
+			}
+			if (i + 2 < limit && b[i + 1] == 0x0D && b[i + 2] == 0x0A) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Make sure a complete line starting at the current position is in the
+	 * buffer.
+	 *
+	 * @param maxLength the maximum length of the line excluding the line feed,
+	 * or -1 for no limit
+	 * @return the position of the line feed in the buffer, {@link #limit} if
+	 * the stream ended in the middle of the line, or -1 if the stream ended
+	 * before any data was available
+	 * @throws IOException if something goes wrong
+	 * @throws TooBigException if the line is longer than
+	 * <code>maxLength</code>
+	 */
+	int nextLine(int maxLength) throws IOException {
+		int scan = pos;
+		while (true) {
+			byte[] b = buffer;
+			for (int i = scan, l = limit; i < l; i++) {
+				if (b[i] == 0x0A) {
+					if (maxLength >= 0 && i - pos > maxLength) {
+						throw new TooBigException();
+					}
+					return i;
+				}
+			}
+			int scanned = limit - pos;
+			if (maxLength >= 0 && scanned > maxLength) {
+				throw new TooBigException();
+			}
+			int amountRead = fill(maxLength >= 0 ? maxLength + 1 : maxBufferSize);
+			if (amountRead < 0) {
+				return pos == limit ? -1 : limit;
+			} else if (amountRead == 0 && limit - pos == scanned) {
+				throw new TooBigException();
+			}
+			scan = pos + scanned;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos >= limit) {
+			if (fill(buffer.length) < 0 || pos >= limit) {
+				return -1;
+			}
+		}
+		return buffer[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len <= 0) {
+			return 0;
+		}
+		if (pos >= limit) {
+			if (len >= buffer.length) {
+				// nothing is buffered and the caller wants more than we can
+				// hold anyway, skip the copy
+				return readUnderlying(b, off, len);
+			}
+			if (fill(buffer.length) < 0 || pos >= limit) {
+				return -1;
+			}
+		}
+		int amount = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, b, off, amount);
+		pos += amount;
+		return amount;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0L) {
+			return 0L;
+		}
+		int avail = limit - pos;
+		if (avail <= 0) {
+			if (output != null) {
+				output.forceFlush();
+			}
+			return in.skip(n);
+		}
+		int skipped = (int) Math.min((long) avail, n);
+		pos += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		int available = in.available();
+		int localAvailable = limit - pos;
+		return available > (Integer.MAX_VALUE - localAvailable)
+				? Integer.MAX_VALUE
+				: localAvailable + available;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,176 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The buffered output side of a client connection. Everything written for a
+ * response is collected here, and only written to the socket when the buffer
+ * fills up or the stream is flushed. While flushes are held, calls to
+ * {@link #flush()} leave the data in the buffer, which lets the responses to
+ * pipelined requests go out together.
+ * <p>
+ * The response head is written into the same buffer as the body, so a small
+ * response goes out in a single write. When a write is too big for the
+ * buffer, what is already buffered and the new data are written together
+ * with a single gathering write if the connection has a blocking channel.
+ */
+final class ConnectionOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final GatheringByteChannel channel;
+	private final byte[] buffer;
+	private ByteBuffer[] gather = null;
+	private int count = 0;
+	private boolean holdFlushes = false;
+
+	ConnectionOutputStream(OutputStream out, int bufferSize) {
+		this(out, null, bufferSize);
+	}
+
+	/**
+	 * @param out the stream to write to
+	 * @param channel the channel behind out, which must be in blocking mode
+	 * whenever data is written, or null if there isn't one
+	 * @param bufferSize the size of the buffer
+	 */
+	ConnectionOutputStream(OutputStream out, GatheringByteChannel channel, int bufferSize) {
+		this.out = out;
+		this.channel = channel;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Set whether {@link #flush()} should leave data in the buffer.
+	 *
+	 * @param holdFlushes true to hold flushes
+	 */
+	void holdFlushes(boolean holdFlushes) {
+		this.holdFlushes = holdFlushes;
+	}
+
+	/**
+	 * Get the number of bytes waiting to be written to the socket.
+	 *
+	 * @return the number of buffered bytes
+	 */
+	int buffered() {
+		return count;
+	}
+
+	private void drain() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			drain();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > buffer.length - count) {
+			if (len >= buffer.length) {
+				if (count > 0 && channel != null) {
+					gatherWrite(b, off, len);
+				} else {
+					drain();
+					out.write(b, off, len);
+				}
+				return;
+			}
+			drain();
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	private void gatherWrite(byte[] b, int off, int len) throws IOException {
+		if (gather == null) {
+			gather = new ByteBuffer[]{ByteBuffer.wrap(buffer), null};
+		}
+		ByteBuffer head = gather[0];
+		head.clear().limit(count);
+		ByteBuffer data = gather[1] = ByteBuffer.wrap(b, off, len);
+		try {
+			while (data.hasRemaining()) {
+				channel.write(gather);
+			}
+		} finally {
+			gather[1] = null;
+			count = 0;
+		}
+	}
+
+	/**
+	 * Write a string encoded as UTF-8. ASCII strings, which header lines
+	 * nearly always are, are copied straight into the buffer.
+	 *
+	 * @param str the string to write
+	 * @throws IOException if something goes wrong
+	 */
+	void writeString(String str) throws IOException {
+		int length = str.length();
+		if (length > buffer.length - count) {
+			drain();
+			if (length > buffer.length) {
+				write(str.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+		}
+		byte[] b = buffer;
+		int start = count;
+		for (int i = 0; i < length; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				write(str.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			b[start + i] = (byte) c;
+		}
+		count = start + length;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (holdFlushes) {
+			return;
+		}
+		forceFlush();
+	}
+
+	/**
+	 * Write everything in the buffer to the socket, even if flushes are held.
+	 *
+	 * @throws IOException if something goes wrong
+	 */
+	void forceFlush() throws IOException {
+		if (count > 0) {
+			drain();
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package io.siggi.http;
+
+import io.siggi.http.util.HTMLUtils;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Caches for HTTP dates. The current date is formatted at most once per
+ * second and shared by all connections, and recently formatted and parsed
+ * dates, such as a file's Last-Modified date and the If-Modified-Since
+ * header a browser sends back for it, are kept in small direct mapped
+ * tables. All of it is lock free, a lost update only means a date gets
+ * formatted or parsed again.
+ */
+final class DateCache {
+
+	private static final int tableSize = 256;
+	private static final byte[] dateHeaderName = "Date: ".getBytes(StandardCharsets.US_ASCII);
+	private static volatile Now now = new Now(Long.MIN_VALUE, null, null);
+	private static final Formatted[] formatted = new Formatted[tableSize];
+	private static final Parsed[] parsed = new Parsed[tableSize];
+
+	private DateCache() {
+	}
+
+	private static final class Now {
+
+		final long second;
+		final String value;
+		final byte[] line;
+
+		Now(long second, String value, byte[] line) {
+			this.second = second;
+			this.value = value;
+			this.line = line;
+		}
+	}
+
+	private static final class Formatted {
+
+		final long second;
+		final String value;
+
+		Formatted(long second, String value) {
+			this.second = second;
+			this.value = value;
+		}
+	}
+
+	private static final class Parsed {
+
+		final String value;
+		final long time;
+
+		Parsed(String value, long time) {
+			this.value = value;
+			this.time = time;
+		}
+	}
+
+	private static Now now() {
+		long second = System.currentTimeMillis() / 1000L;
+		Now n = now;
+		if (n.second != second) {
+			String value = HTMLUtils.getSimpleDateFormat().format(new Date(second * 1000L));
+			byte[] line = new byte[dateHeaderName.length + value.length() + 2];
+			System.arraycopy(dateHeaderName, 0, line, 0, dateHeaderName.length);
+			for (int i = 0, l = value.length(); i < l; i++) {
+				line[dateHeaderName.length + i] = (byte) value.charAt(i);
+			}
+			line[line.length - 2] = 0x0D;
+			line[line.length - 1] = 0x0A;
+			now = n = new Now(second, value, line);
+		}
+		return n;
+	}
+
+	/**
+	 * Get the current date formatted for the Date header.
+	 *
+	 * @return the current date
+	 */
+	static String currentDate() {
+		return now().value;
+	}
+
+	/**
+	 * Get the complete Date header line, including the CRLF, if the value is
+	 * the one returned by {@link #currentDate()}.
+	 *
+	 * @param value the value of the Date header
+	 * @return the encoded header line, or null if the value is something else
+	 */
+	static byte[] dateHeaderLine(String value) {
+		Now n = now;
+		return n.value == value ? n.line : null;
+	}
+
+	/**
+	 * Format a date for use in a header.
+	 *
+	 * @param date the date in milliseconds
+	 * @param format the format to use if the date isn't cached
+	 * @return the formatted date
+	 */
+	static String format(long date, SimpleDateFormat format) {
+		long second = Math.floorDiv(date, 1000L);
+		int slot = (int) (second ^ (second >>> 32)) & (tableSize - 1);
+		Formatted f = formatted[slot];
+		if (f != null && f.second == second) {
+			return f.value;
+		}
+		String value = format.format(new Date(date));
+		formatted[slot] = new Formatted(second, value);
+		return value;
+	}
+
+	/**
+	 * Parse a date from a header.
+	 *
+	 * @param date the date
+	 * @param format the format to use if the date isn't cached
+	 * @return the date in milliseconds, or -1 if it could not be parsed
+	 */
+	static long parse(String date, SimpleDateFormat format) {
+		int slot = date.hashCode() & (tableSize - 1);
+		Parsed p = parsed[slot];
+		if (p != null && p.value.equals(date)) {
+			return p.time;
+		}
+		long time;
+		try {
+			time = format.parse(date).getTime();
+		} catch (ParseException ex) {
+			time = -1L;
+		}
+		parsed[slot] = new Parsed(date, time);
+		return time;
+	}
+}
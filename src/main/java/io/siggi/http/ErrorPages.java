@@ -0,0 +1,66 @@
+package io.siggi.http;
+
+import io.siggi.http.defaultresponders.DefaultResponder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The built in error pages, rendered once and kept as bytes that can be sent
+ * as they are. A page is only rendered again if the server signature changes.
+ */
+final class ErrorPages {
+
+	static final String badRequest = "I'm sorry, but I don't understand your request.<br>\n<hr>\n";
+	static final String uriTooLong = "That's what she said!<br>\n<br>\nThe request URI you submitted is too large for this server to handle!<br>\n<br>\n<hr>\n";
+	static final String tooBig = "That's what she said!<br>\n<br>\nThe data you submitted is too large for this server to handle!<br>\n<br>\n<hr>\n";
+	static final String no404 = "The server failed to produce a 404 response.  Check the server code to make sure it's working properly!<br>\n";
+	static final String internalError = "*puke* ugh, I feel sick.<br>\n<hr>\n";
+
+	private static final Map<String, Page> pages = new ConcurrentHashMap<>();
+
+	private ErrorPages() {
+	}
+
+	private static final class Page {
+
+		final String status;
+		final String signature;
+		final byte[] bytes;
+
+		Page(String status, String signature, byte[] bytes) {
+			this.status = status;
+			this.signature = signature;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Render an error page.
+	 *
+	 * @param status the status code and reason, such as "400 Bad Request"
+	 * @param message the HTML between the heading and the server signature
+	 * @param signature the server signature
+	 * @return the page
+	 */
+	static String render(String status, String message, String signature) {
+		return "<!DOCTYPE html>\n<html>\n<head>\n<title>" + status + "</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>" + status + "</h1><br>\n" + message + signature + "<br>\n</body>\n</html>";
+	}
+
+	/**
+	 * Get a rendered error page. The returned array must not be modified.
+	 *
+	 * @param status the status code and reason, such as "400 Bad Request"
+	 * @param message one of the messages in this class
+	 * @param signature the server signature
+	 * @return the page encoded as UTF-8
+	 */
+	static byte[] get(String status, String message, String signature) {
+		Page page = pages.get(message);
+		if (page == null || !page.status.equals(status) || !page.signature.equals(signature)) {
+			page = new Page(status, signature, render(status, message, signature).getBytes(StandardCharsets.UTF_8));
+			pages.put(message, page);
+		}
+		return page.bytes;
+	}
+}
@@ -0,0 +1,20 @@
+package io.siggi.http;
+
+/**
+ * Receives the exceptions thrown while handling requests. Reports are rate
+ * limited by the server, see {@link HTTPServer#setErrorReportLimit(int)}.
+ */
+@FunctionalInterface
+public interface ErrorReporter {
+
+	/**
+	 * Report an exception that caused a 500 response or an aborted response.
+	 *
+	 * @param request the request that was being handled, or null if the
+	 * exception was thrown before the request was read
+	 * @param error the exception
+	 * @param suppressed the number of exceptions that were not reported since
+	 * the last report because the rate limit was reached
+	 */
+	public void report(HTTPRequest request, Throwable error, int suppressed);
+}
@@ -0,0 +1,350 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ */
+final class HPACK {
+
+	private static final String[][] staticTable = {
+		{":authority", ""},
+		{":method", "GET"},
+		{":method", "POST"},
+		{":path", "/"},
+		{":path", "/index.html"},
+		{":scheme", "http"},
+		{":scheme", "https"},
+		{":status", "200"},
+		{":status", "204"},
+		{":status", "206"},
+		{":status", "304"},
+		{":status", "400"},
+		{":status", "404"},
+		{":status", "500"},
+		{"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"},
+		{"accept-language", ""},
+		{"accept-ranges", ""},
+		{"accept", ""},
+		{"access-control-allow-origin", ""},
+		{"age", ""},
+		{"allow", ""},
+		{"authorization", ""},
+		{"cache-control", ""},
+		{"content-disposition", ""},
+		{"content-encoding", ""},
+		{"content-language", ""},
+		{"content-length", ""},
+		{"content-location", ""},
+		{"content-range", ""},
+		{"content-type", ""},
+		{"cookie", ""},
+		{"date", ""},
+		{"etag", ""},
+		{"expect", ""},
+		{"expires", ""},
+		{"from", ""},
+		{"host", ""},
+		{"if-match", ""},
+		{"if-modified-since", ""},
+		{"if-none-match", ""},
+		{"if-range", ""},
+		{"if-unmodified-since", ""},
+		{"last-modified", ""},
+		{"link", ""},
+		{"location", ""},
+		{"max-forwards", ""},
+		{"proxy-authenticate", ""},
+		{"proxy-authorization", ""},
+		{"range", ""},
+		{"referer", ""},
+		{"refresh", ""},
+		{"retry-after", ""},
+		{"server", ""},
+		{"set-cookie", ""},
+		{"strict-transport-security", ""},
+		{"transfer-encoding", ""},
+		{"user-agent", ""},
+		{"vary", ""},
+		{"via", ""},
+		{"www-authenticate", ""}
+	};
+	private static final byte[][][] staticTableBytes = new byte[staticTable.length][][];
+	private static final Map<String, Integer> staticNameIndex = new HashMap<>();
+	private static final Map<String, Integer> staticFieldIndex = new HashMap<>();
+
+	static {
+		for (int i = 0; i < staticTable.length; i++) {
+			String name = staticTable[i][0];
+			String value = staticTable[i][1];
+			staticTableBytes[i] = new byte[][]{
+				name.getBytes(StandardCharsets.ISO_8859_1),
+				value.getBytes(StandardCharsets.ISO_8859_1)
+			};
+			staticNameIndex.putIfAbsent(name, i + 1);
+			if (!value.isEmpty()) {
+				staticFieldIndex.put(name + "\u0000" + value, i + 1);
+			}
+		}
+	}
+
+	private HPACK() {
+	}
+
+	/**
+	 * Receives decoded header fields.
+	 */
+	interface HeaderListener {
+
+		void header(byte[] name, byte[] value) throws IOException;
+	}
+
+	/**
+	 * Decodes header blocks sent by the client. One decoder is used for all
+	 * header blocks on a connection, since they share the dynamic table.
+	 */
+	static final class Decoder {
+
+		private final List<byte[][]> dynamicTable = new ArrayList<>();
+		private final int maxTableSizeLimit;
+		private int maxTableSize;
+		private int tableSize = 0;
+		private byte[] huffmanBuffer = new byte[256];
+		private byte[] data;
+		private int pos;
+		private int end;
+
+		/**
+		 * Create a decoder.
+		 *
+		 * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE that was
+		 * announced to the client
+		 */
+		Decoder(int maxTableSize) {
+			this.maxTableSizeLimit = maxTableSize;
+			this.maxTableSize = maxTableSize;
+		}
+
+		/**
+		 * Decode a complete header block.
+		 *
+		 * @param block the buffer holding the header block
+		 * @param offset the start of the header block
+		 * @param length the length of the header block
+		 * @param listener where to send the decoded fields
+		 * @throws IOException if the header block can't be decoded, this is a
+		 * connection error
+		 */
+		void decode(byte[] block, int offset, int length, HeaderListener listener) throws IOException {
+			data = block;
+			pos = offset;
+			end = offset + length;
+			try {
+				boolean fieldSeen = false;
+				while (pos < end) {
+					int b = data[pos] & 0xff;
+					if ((b & 0x80) != 0) {
+						int index = readInt(7);
+						byte[][] field = field(index);
+						listener.header(field[0], field[1]);
+						fieldSeen = true;
+					} else if ((b & 0xc0) == 0x40) {
+						byte[][] field = readLiteral(6);
+						add(field);
+						listener.header(field[0], field[1]);
+						fieldSeen = true;
+					} else if ((b & 0xe0) == 0x20) {
+						if (fieldSeen) {
+							throw new IOException("Dynamic table size update after a header field");
+						}
+						int size = readInt(5);
+						if (size > maxTableSizeLimit) {
+							throw new IOException("Dynamic table size update too large");
+						}
+						maxTableSize = size;
+						evict(0);
+					} else {
+						byte[][] field = readLiteral(4);
+						listener.header(field[0], field[1]);
+						fieldSeen = true;
+					}
+				}
+			} finally {
+				data = null;
+			}
+		}
+
+		private byte[][] field(int index) throws IOException {
+			if (index <= 0) {
+				throw new IOException("Invalid header index " + index);
+			}
+			if (index <= staticTableBytes.length) {
+				return staticTableBytes[index - 1];
+			}
+			int dynamicIndex = index - staticTableBytes.length;
+			if (dynamicIndex > dynamicTable.size()) {
+				throw new IOException("Invalid header index " + index);
+			}
+			return dynamicTable.get(dynamicTable.size() - dynamicIndex);
+		}
+
+		private byte[][] readLiteral(int prefixBits) throws IOException {
+			int nameIndex = readInt(prefixBits);
+			byte[] name = nameIndex == 0 ? readString() : field(nameIndex)[0];
+			byte[] value = readString();
+			return new byte[][]{name, value};
+		}
+
+		private void add(byte[][] field) {
+			int size = field[0].length + field[1].length + 32;
+			if (size > maxTableSize) {
+				dynamicTable.clear();
+				tableSize = 0;
+				return;
+			}
+			evict(size);
+			dynamicTable.add(field);
+			tableSize += size;
+		}
+
+		private void evict(int room) {
+			while (tableSize + room > maxTableSize && !dynamicTable.isEmpty()) {
+				byte[][] oldest = dynamicTable.remove(0);
+				tableSize -= oldest[0].length + oldest[1].length + 32;
+			}
+		}
+
+		private int readInt(int prefixBits) throws IOException {
+			int mask = (1 << prefixBits) - 1;
+			long value = data[pos++] & mask;
+			if (value < mask) {
+				return (int) value;
+			}
+			int shift = 0;
+			while (true) {
+				if (pos >= end) {
+					throw new IOException("Truncated HPACK integer");
+				}
+				int b = data[pos++] & 0xff;
+				value += ((long) (b & 0x7f)) << shift;
+				if (value > Integer.MAX_VALUE) {
+					throw new IOException("HPACK integer overflow");
+				}
+				if ((b & 0x80) == 0) {
+					return (int) value;
+				}
+				shift += 7;
+				if (shift > 28) {
+					// more continuation bytes than an int can need, even if
+					// they're all zero
+					throw new IOException("HPACK integer too large");
+				}
+			}
+		}
+
+		private byte[] readString() throws IOException {
+			if (pos >= end) {
+				throw new IOException("Truncated HPACK string");
+			}
+			boolean huffman = (data[pos] & 0x80) != 0;
+			int length = readInt(7);
+			if (length > end - pos) {
+				throw new IOException("Truncated HPACK string");
+			}
+			byte[] result;
+			if (huffman) {
+				int maxLength = (int) (((long) length * 8L) / 5L) + 1;
+				if (huffmanBuffer.length < maxLength) {
+					huffmanBuffer = new byte[maxLength];
+				}
+				int decoded = Huffman.decode(data, pos, length, huffmanBuffer);
+				result = Arrays.copyOf(huffmanBuffer, decoded);
+			} else {
+				result = Arrays.copyOfRange(data, pos, pos + length);
+			}
+			pos += length;
+			return result;
+		}
+	}
+
+	/**
+	 * Encodes response header blocks. The encoder doesn't use the dynamic
+	 * table, fields are either a static table reference or a literal that is
+	 * not indexed, so it keeps no state between header blocks.
+	 */
+	static final class Encoder {
+
+		private byte[] buffer = new byte[512];
+		private int count = 0;
+
+		void reset() {
+			count = 0;
+		}
+
+		byte[] buffer() {
+			return buffer;
+		}
+
+		int size() {
+			return count;
+		}
+
+		/**
+		 * Encode a header field.
+		 *
+		 * @param name the lower case header name
+		 * @param value the header value
+		 */
+		void encode(String name, String value) {
+			Integer index = staticFieldIndex.get(name + "\u0000" + value);
+			if (index != null) {
+				writeInt(0x80, 7, index);
+				return;
+			}
+			Integer nameIndex = staticNameIndex.get(name);
+			if (nameIndex != null) {
+				writeInt(0x00, 4, nameIndex);
+			} else {
+				writeInt(0x00, 4, 0);
+				writeString(name.getBytes(StandardCharsets.ISO_8859_1));
+			}
+			writeString(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		private void writeInt(int flags, int prefixBits, int value) {
+			ensureCapacity(6);
+			int mask = (1 << prefixBits) - 1;
+			if (value < mask) {
+				buffer[count++] = (byte) (flags | value);
+				return;
+			}
+			buffer[count++] = (byte) (flags | mask);
+			value -= mask;
+			while (value >= 0x80) {
+				buffer[count++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buffer[count++] = (byte) value;
+		}
+
+		private void writeString(byte[] string) {
+			writeInt(0x00, 7, string.length);
+			ensureCapacity(string.length);
+			System.arraycopy(string, 0, buffer, count, string.length);
+			count += string.length;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (count + extra > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+			}
+		}
+	}
+}
@@ -0,0 +1,867 @@
+package io.siggi.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cleartext HTTP/2 connection (RFC 9113). Frames are read on the thread that
+ * took over the connection, and every stream is handed to its own
+ * {@link HTTPHandler} running in stream mode, so responders see the same
+ * {@link HTTPRequest} and {@link HTTPResponse} they get over HTTP/1.1. Frames
+ * are written by the stream threads under a single lock.
+ */
+final class HTTP2Connection {
+
+	/**
+	 * What is left of the connection preface after the request line
+	 * <code>PRI * HTTP/2.0</code> has been read.
+	 */
+	static final byte[] prefaceRest = "\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] preface = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int frameData = 0x0;
+	private static final int frameHeaders = 0x1;
+	private static final int framePriority = 0x2;
+	private static final int frameRstStream = 0x3;
+	private static final int frameSettings = 0x4;
+	private static final int framePushPromise = 0x5;
+	private static final int framePing = 0x6;
+	private static final int frameGoAway = 0x7;
+	private static final int frameWindowUpdate = 0x8;
+	private static final int frameContinuation = 0x9;
+
+	private static final int flagEndStream = 0x1;
+	private static final int flagAck = 0x1;
+	private static final int flagEndHeaders = 0x4;
+	private static final int flagPadded = 0x8;
+	private static final int flagPriority = 0x20;
+
+	private static final int settingsEnablePush = 0x2;
+	private static final int settingsMaxConcurrentStreams = 0x3;
+	private static final int settingsInitialWindowSize = 0x4;
+	private static final int settingsMaxFrameSize = 0x5;
+	private static final int settingsMaxHeaderListSize = 0x6;
+
+	static final int noError = 0x0;
+	static final int protocolError = 0x1;
+	static final int internalError = 0x2;
+	static final int flowControlError = 0x3;
+	static final int streamClosed = 0x5;
+	static final int frameSizeError = 0x6;
+	static final int refusedStream = 0x7;
+	static final int compressionError = 0x9;
+
+	static final int defaultWindowSize = 65535;
+	static final int idleTimeout = 60000;
+	private static final int maxFrameSize = 16384;
+	private static final int maxConcurrentStreams = 100;
+	private static final int headerTableSize = 4096;
+
+	private final HTTPServer server;
+	private final Socket socket;
+	/**
+	 * The client address from a PROXY protocol header, or null.
+	 */
+	final InetAddress proxiedAddress;
+	private final ConnectionInputStream in;
+	private final ConnectionOutputStream out;
+	private final Executor executor;
+	private final Map<Integer, HTTP2Stream> streams = new ConcurrentHashMap<>();
+
+	// reader thread only
+	private final HPACK.Decoder decoder = new HPACK.Decoder(headerTableSize);
+	private final RequestHeaderCollector collector = new RequestHeaderCollector();
+	private final byte[] frameHeader = new byte[9];
+	private final byte[] payload = new byte[maxFrameSize];
+	private byte[] headerBlock = new byte[maxFrameSize];
+	private int headerBlockLength = 0;
+	private int headerBlockStreamId = 0;
+	private boolean headerBlockEndsStream = false;
+	private int lastStreamId = 0;
+	private int connectionConsumed = 0;
+	private boolean goAwayReceived = false;
+
+	// guarded by writeLock
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final Condition windowUpdated = writeLock.newCondition();
+	private final HPACK.Encoder encoder = new HPACK.Encoder();
+	private final byte[] writeHeader = new byte[9];
+	private int peerMaxFrameSize = maxFrameSize;
+	private int peerInitialWindowSize = defaultWindowSize;
+	private int sendWindow = defaultWindowSize;
+	private boolean closed = false;
+
+	HTTP2Connection(HTTPServer server, Socket socket, InetAddress proxiedAddress, ConnectionInputStream in, ConnectionOutputStream out, Executor executor) {
+		this.server = server;
+		this.socket = socket;
+		this.proxiedAddress = proxiedAddress;
+		this.in = in;
+		this.out = out;
+		this.executor = executor;
+		// frames are written by the stream threads, the reader must not flush
+		// the output behind their back
+		in.setOutput(null);
+	}
+
+	/**
+	 * Serve a connection that started with the connection preface, which has
+	 * already been read. Returns when the connection is finished, the caller
+	 * closes the socket.
+	 */
+	void serve() {
+		try {
+			writeSettings();
+			readFrames();
+		} catch (IOException e) {
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Serve a connection that was upgraded from HTTP/1.1 after the
+	 * <code>101 Switching Protocols</code> response was sent. The request that
+	 * asked for the upgrade becomes stream 1.
+	 *
+	 * @param settings the decoded HTTP2-Settings header
+	 * @param method the method of the upgrade request
+	 * @param target the request target of the upgrade request
+	 * @param headers the headers of the upgrade request
+	 */
+	void serveUpgrade(byte[] settings, String method, String target, RequestHeaders headers) {
+		try {
+			try {
+				applySettings(settings, 0, settings.length);
+			} catch (ConnectionError e) {
+				return;
+			}
+			writeSettings();
+			lastStreamId = 1;
+			startStream(new HTTP2Stream(this, 1, method, target, headers, false, true, peerInitialWindowSize()));
+			byte[] b = new byte[preface.length];
+			readFully(b, 0, b.length);
+			if (!Arrays.equals(b, preface)) {
+				throw new ConnectionError(protocolError);
+			}
+			readFrames();
+		} catch (IOException e) {
+		} finally {
+			shutdown();
+		}
+	}
+
+	private void readFrames() throws IOException {
+		try {
+			socket.setSoTimeout(idleTimeout);
+			boolean first = true;
+			while (true) {
+				int b;
+				try {
+					b = in.read();
+				} catch (SocketTimeoutException e) {
+					if (streams.isEmpty()) {
+						writeGoAway(noError);
+						return;
+					}
+					continue;
+				}
+				if (b < 0) {
+					return;
+				}
+				frameHeader[0] = (byte) b;
+				readFully(frameHeader, 1, 8);
+				int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+				int type = frameHeader[3] & 0xff;
+				int flags = frameHeader[4] & 0xff;
+				int streamId = readInt(frameHeader, 5) & 0x7fffffff;
+				if (length > maxFrameSize) {
+					throw new ConnectionError(frameSizeError);
+				}
+				readFully(payload, 0, length);
+				if (first && (type != frameSettings || (flags & flagAck) != 0)) {
+					throw new ConnectionError(protocolError);
+				}
+				first = false;
+				if (headerBlockStreamId != 0 && (type != frameContinuation || streamId != headerBlockStreamId)) {
+					throw new ConnectionError(protocolError);
+				}
+				handleFrame(type, flags, streamId, length);
+				if (goAwayReceived && streams.isEmpty()) {
+					return;
+				}
+			}
+		} catch (ConnectionError e) {
+			try {
+				writeGoAway(e.errorCode);
+			} catch (IOException e2) {
+			}
+		}
+	}
+
+	private void handleFrame(int type, int flags, int streamId, int length) throws IOException {
+		switch (type) {
+			case frameData:
+				handleData(flags, streamId, length);
+				break;
+			case frameHeaders: {
+				if (streamId == 0 || (streamId & 1) == 0) {
+					throw new ConnectionError(protocolError);
+				}
+				int start = 0;
+				int end = length;
+				if ((flags & flagPadded) != 0) {
+					if (length < 1) {
+						throw new ConnectionError(frameSizeError);
+					}
+					end -= payload[0] & 0xff;
+					start += 1;
+				}
+				if ((flags & flagPriority) != 0) {
+					start += 5;
+				}
+				if (end < start) {
+					throw new ConnectionError(protocolError);
+				}
+				headerBlockLength = 0;
+				headerBlockEndsStream = (flags & flagEndStream) != 0;
+				appendHeaderBlock(start, end - start);
+				if ((flags & flagEndHeaders) != 0) {
+					handleHeaderBlock(streamId);
+				} else {
+					headerBlockStreamId = streamId;
+				}
+				break;
+			}
+			case frameContinuation:
+				if (headerBlockStreamId == 0) {
+					throw new ConnectionError(protocolError);
+				}
+				appendHeaderBlock(0, length);
+				if ((flags & flagEndHeaders) != 0) {
+					headerBlockStreamId = 0;
+					handleHeaderBlock(streamId);
+				}
+				break;
+			case framePriority:
+				if (streamId == 0) {
+					throw new ConnectionError(protocolError);
+				}
+				if (length != 5) {
+					writeReset(streamId, frameSizeError);
+				}
+				break;
+			case frameRstStream: {
+				if (streamId == 0 || streamId > lastStreamId) {
+					throw new ConnectionError(protocolError);
+				}
+				if (length != 4) {
+					throw new ConnectionError(frameSizeError);
+				}
+				HTTP2Stream stream = streams.remove(streamId);
+				if (stream != null) {
+					stream.remoteReset();
+					signalWindowUpdated();
+				}
+				break;
+			}
+			case frameSettings:
+				if (streamId != 0) {
+					throw new ConnectionError(protocolError);
+				}
+				if ((flags & flagAck) != 0) {
+					if (length != 0) {
+						throw new ConnectionError(frameSizeError);
+					}
+					break;
+				}
+				if (length % 6 != 0) {
+					throw new ConnectionError(frameSizeError);
+				}
+				applySettings(payload, 0, length);
+				writeFrame(frameSettings, flagAck, 0, payload, 0, 0);
+				break;
+			case framePushPromise:
+				throw new ConnectionError(protocolError);
+			case framePing:
+				if (streamId != 0) {
+					throw new ConnectionError(protocolError);
+				}
+				if (length != 8) {
+					throw new ConnectionError(frameSizeError);
+				}
+				if ((flags & flagAck) == 0) {
+					writeFrame(framePing, flagAck, 0, payload, 0, 8);
+				}
+				break;
+			case frameGoAway:
+				if (streamId != 0) {
+					throw new ConnectionError(protocolError);
+				}
+				goAwayReceived = true;
+				break;
+			case frameWindowUpdate:
+				handleWindowUpdate(streamId, length);
+				break;
+			default:
+				// unknown frame types must be ignored
+				break;
+		}
+	}
+
+	private void handleData(int flags, int streamId, int length) throws IOException {
+		if (streamId == 0) {
+			throw new ConnectionError(protocolError);
+		}
+		int start = 0;
+		int end = length;
+		if ((flags & flagPadded) != 0) {
+			if (length < 1 || (payload[0] & 0xff) >= length) {
+				throw new ConnectionError(protocolError);
+			}
+			end -= payload[0] & 0xff;
+			start += 1;
+		}
+		// the whole frame counts against the connection window, and it is
+		// handed back right away, the stream windows limit what is buffered
+		connectionConsumed += length;
+		if (connectionConsumed >= defaultWindowSize / 2) {
+			writeWindowUpdate(0, connectionConsumed);
+			connectionConsumed = 0;
+		}
+		HTTP2Stream stream = streams.get(streamId);
+		if (stream == null) {
+			if (streamId > lastStreamId) {
+				throw new ConnectionError(protocolError);
+			}
+			// a stream we already finished, the client may not have seen our
+			// RST_STREAM yet
+			return;
+		}
+		if (stream.isRemoteClosed()) {
+			resetStream(stream, streamClosed);
+			return;
+		}
+		int windowUpdate = stream.receiveData(payload, start, end - start, length, (flags & flagEndStream) != 0);
+		if (windowUpdate < 0) {
+			resetStream(stream, flowControlError);
+		} else if (windowUpdate > 0) {
+			writeWindowUpdate(streamId, windowUpdate);
+		}
+	}
+
+	private void handleWindowUpdate(int streamId, int length) throws IOException {
+		if (length != 4) {
+			throw new ConnectionError(frameSizeError);
+		}
+		int increment = readInt(payload, 0) & 0x7fffffff;
+		HTTP2Stream stream = null;
+		if (streamId != 0) {
+			stream = streams.get(streamId);
+			if (stream == null) {
+				if (streamId > lastStreamId) {
+					throw new ConnectionError(protocolError);
+				}
+				return;
+			}
+		}
+		if (increment == 0) {
+			if (stream == null) {
+				throw new ConnectionError(protocolError);
+			}
+			resetStream(stream, protocolError);
+			return;
+		}
+		boolean overflow = false;
+		writeLock.lock();
+		try {
+			if (stream == null) {
+				if ((long) sendWindow + increment > Integer.MAX_VALUE) {
+					overflow = true;
+				} else {
+					sendWindow += increment;
+				}
+			} else if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+				overflow = true;
+			} else {
+				stream.sendWindow += increment;
+			}
+			windowUpdated.signalAll();
+		} finally {
+			writeLock.unlock();
+		}
+		if (overflow) {
+			if (stream == null) {
+				throw new ConnectionError(flowControlError);
+			}
+			resetStream(stream, flowControlError);
+		}
+	}
+
+	private void applySettings(byte[] b, int offset, int length) throws IOException {
+		if (length % 6 != 0) {
+			throw new ConnectionError(frameSizeError);
+		}
+		for (int i = offset; i < offset + length; i += 6) {
+			int id = ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+			int value = readInt(b, i + 2);
+			switch (id) {
+				case settingsEnablePush:
+					if (value != 0 && value != 1) {
+						throw new ConnectionError(protocolError);
+					}
+					break;
+				case settingsInitialWindowSize:
+					if (value < 0) {
+						throw new ConnectionError(flowControlError);
+					}
+					writeLock.lock();
+					try {
+						int delta = value - peerInitialWindowSize;
+						peerInitialWindowSize = value;
+						for (HTTP2Stream stream : streams.values()) {
+							if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+								throw new ConnectionError(flowControlError);
+							}
+							stream.sendWindow += delta;
+						}
+						windowUpdated.signalAll();
+					} finally {
+						writeLock.unlock();
+					}
+					break;
+				case settingsMaxFrameSize:
+					if (value < 16384 || value > 16777215) {
+						throw new ConnectionError(protocolError);
+					}
+					writeLock.lock();
+					try {
+						peerMaxFrameSize = value;
+					} finally {
+						writeLock.unlock();
+					}
+					break;
+				default:
+					// the encoder doesn't use the dynamic table, and the other
+					// settings only limit what the client receives from us in
+					// ways we never exceed
+					break;
+			}
+		}
+	}
+
+	private void appendHeaderBlock(int offset, int length) throws IOException {
+		int headerSizeLimit = server.getHeaderSizeLimit();
+		int maxHeaderBlock = headerSizeLimit > 0 ? Math.max(headerSizeLimit, maxFrameSize) * 2 : 1048576;
+		if (headerBlockLength + length > maxHeaderBlock) {
+			throw new ConnectionError(compressionError);
+		}
+		if (headerBlockLength + length > headerBlock.length) {
+			headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length * 2, headerBlockLength + length));
+		}
+		System.arraycopy(payload, offset, headerBlock, headerBlockLength, length);
+		headerBlockLength += length;
+	}
+
+	private void handleHeaderBlock(int streamId) throws IOException {
+		HTTP2Stream stream = streams.get(streamId);
+		if (stream != null || streamId <= lastStreamId) {
+			// trailers, or headers for a stream that is already finished, the
+			// block still has to be decoded to keep the dynamic table in sync
+			decode(null);
+			if (stream == null) {
+				throw new ConnectionError(streamClosed);
+			}
+			if (!headerBlockEndsStream) {
+				resetStream(stream, protocolError);
+			} else {
+				stream.receiveEnd();
+			}
+			return;
+		}
+		lastStreamId = streamId;
+		collector.reset(server.getHeaderSizeLimit());
+		decode(collector);
+		if (streams.size() >= maxConcurrentStreams) {
+			writeReset(streamId, refusedStream);
+			return;
+		}
+		if (collector.malformed || collector.method == null || collector.path == null) {
+			writeReset(streamId, protocolError);
+			return;
+		}
+		RequestHeaders headers = collector.finish();
+		startStream(new HTTP2Stream(this, streamId, collector.method, collector.path, headers, collector.tooLarge, headerBlockEndsStream, peerInitialWindowSize()));
+	}
+
+	private void decode(HPACK.HeaderListener listener) throws IOException {
+		try {
+			decoder.decode(headerBlock, 0, headerBlockLength, listener == null ? (name, value) -> {
+			} : listener);
+		} catch (IOException e) {
+			throw new ConnectionError(compressionError);
+		}
+	}
+
+	private void startStream(HTTP2Stream stream) throws IOException {
+		streams.put(stream.id, stream);
+		new HTTPHandler(server, stream, executor).start();
+	}
+
+	private int peerInitialWindowSize() {
+		writeLock.lock();
+		try {
+			return peerInitialWindowSize;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	Socket getSocket() {
+		return socket;
+	}
+
+	void removeStream(HTTP2Stream stream) {
+		streams.remove(stream.id, stream);
+	}
+
+	private void resetStream(HTTP2Stream stream, int errorCode) throws IOException {
+		streams.remove(stream.id, stream);
+		stream.remoteReset();
+		signalWindowUpdated();
+		writeReset(stream.id, errorCode);
+	}
+
+	private void signalWindowUpdated() {
+		writeLock.lock();
+		try {
+			windowUpdated.signalAll();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void shutdown() {
+		writeLock.lock();
+		try {
+			closed = true;
+			windowUpdated.signalAll();
+		} finally {
+			writeLock.unlock();
+		}
+		for (HTTP2Stream stream : streams.values()) {
+			stream.remoteReset();
+		}
+		streams.clear();
+	}
+
+	private void readFully(byte[] b, int offset, int length) throws IOException {
+		while (length > 0) {
+			int amount = in.read(b, offset, length);
+			if (amount < 0) {
+				throw new EOFException();
+			}
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	private void writeSettings() throws IOException {
+		int headerSizeLimit = server.getHeaderSizeLimit();
+		byte[] settings = new byte[headerSizeLimit > 0 ? 12 : 6];
+		settings[1] = settingsMaxConcurrentStreams;
+		writeInt(settings, 2, maxConcurrentStreams);
+		if (headerSizeLimit > 0) {
+			settings[7] = settingsMaxHeaderListSize;
+			writeInt(settings, 8, headerSizeLimit);
+		}
+		writeFrame(frameSettings, 0, 0, settings, 0, settings.length);
+	}
+
+	private void writeGoAway(int errorCode) throws IOException {
+		byte[] b = new byte[8];
+		writeInt(b, 0, lastStreamId);
+		writeInt(b, 4, errorCode);
+		writeFrame(frameGoAway, 0, 0, b, 0, b.length);
+	}
+
+	void writeReset(int streamId, int errorCode) throws IOException {
+		byte[] b = new byte[4];
+		writeInt(b, 0, errorCode);
+		writeFrame(frameRstStream, 0, streamId, b, 0, b.length);
+	}
+
+	void writeWindowUpdate(int streamId, int increment) throws IOException {
+		byte[] b = new byte[4];
+		writeInt(b, 0, increment);
+		writeFrame(frameWindowUpdate, 0, streamId, b, 0, b.length);
+	}
+
+	private void writeFrame(int type, int flags, int streamId, byte[] b, int offset, int length) throws IOException {
+		writeLock.lock();
+		try {
+			checkOpen();
+			writeFrameHeader(length, type, flags, streamId);
+			out.write(b, offset, length);
+			out.forceFlush();
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Write the response headers for a stream. Header names are sent in lower
+	 * case, and headers that only make sense on an HTTP/1.1 connection are
+	 * left out.
+	 */
+	void writeHeaders(HTTP2Stream stream, int status, ResponseHeaders headers) throws IOException {
+		writeLock.lock();
+		try {
+			checkOpen(stream);
+			encoder.reset();
+			encoder.encode(":status", Integer.toString(status));
+			for (int i = 0, size = headers.size(); i < size; i++) {
+				int count = headers.valueCount(i);
+				if (count == 0) {
+					continue;
+				}
+				String name = headers.name(i).toLowerCase(Locale.ROOT);
+				switch (name) {
+					case "connection":
+					case "keep-alive":
+					case "proxy-connection":
+					case "transfer-encoding":
+					case "upgrade":
+						continue;
+				}
+				for (int j = 0; j < count; j++) {
+					encoder.encode(name, headers.value(i, j));
+				}
+			}
+			byte[] block = encoder.buffer();
+			int size = encoder.size();
+			int offset = 0;
+			int type = frameHeaders;
+			do {
+				int length = Math.min(size - offset, peerMaxFrameSize);
+				writeFrameHeader(length, type, offset + length == size ? flagEndHeaders : 0, stream.id);
+				out.write(block, offset, length);
+				offset += length;
+				type = frameContinuation;
+			} while (offset < size);
+			out.forceFlush();
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Write response data for a stream, waiting for the client to open the
+	 * flow control windows when they are exhausted.
+	 */
+	void writeData(HTTP2Stream stream, byte[] b, int offset, int length, boolean endStream) throws IOException {
+		writeLock.lock();
+		try {
+			do {
+				int amount;
+				while (true) {
+					checkOpen(stream);
+					amount = length == 0 ? 0 : Math.min(length, Math.min(peerMaxFrameSize, Math.min(sendWindow, stream.sendWindow)));
+					if (amount > 0 || length == 0) {
+						break;
+					}
+					out.forceFlush();
+					if (!windowUpdated.await(idleTimeout, TimeUnit.MILLISECONDS)) {
+						throw new SocketTimeoutException("Timed out waiting for the client to accept more data");
+					}
+				}
+				sendWindow -= amount;
+				stream.sendWindow -= amount;
+				writeFrameHeader(amount, frameData, endStream && amount == length ? flagEndStream : 0, stream.id);
+				out.write(b, offset, amount);
+				offset += amount;
+				length -= amount;
+			} while (length > 0);
+			out.forceFlush();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+		writeHeader[0] = (byte) (length >>> 16);
+		writeHeader[1] = (byte) (length >>> 8);
+		writeHeader[2] = (byte) length;
+		writeHeader[3] = (byte) type;
+		writeHeader[4] = (byte) flags;
+		writeInt(writeHeader, 5, streamId);
+		out.write(writeHeader, 0, 9);
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new StreamUnusableException("Connection closed");
+		}
+	}
+
+	private void checkOpen(HTTP2Stream stream) throws IOException {
+		checkOpen();
+		if (stream.isReset()) {
+			throw new StreamUnusableException("Stream was reset");
+		}
+	}
+
+	/**
+	 * If a write failed part way through a frame, the connection can't be used
+	 * anymore. Closing the socket also stops the reader thread.
+	 */
+	private void fail(IOException e) {
+		if (e instanceof StreamUnusableException || e instanceof SocketTimeoutException) {
+			// nothing was written
+			return;
+		}
+		closed = true;
+		windowUpdated.signalAll();
+		try {
+			socket.close();
+		} catch (IOException e2) {
+		}
+	}
+
+	private static final class StreamUnusableException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		StreamUnusableException(String message) {
+			super(message);
+		}
+	}
+
+	private static final class ConnectionError extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		final int errorCode;
+
+		ConnectionError(int errorCode) {
+			super("HTTP/2 connection error " + errorCode);
+			this.errorCode = errorCode;
+		}
+	}
+
+	/**
+	 * Collects the fields of a request header block, separating the pseudo
+	 * headers from the regular ones.
+	 */
+	private static final class RequestHeaderCollector implements HPACK.HeaderListener {
+
+		private static final byte[] hostName = "host".getBytes(StandardCharsets.US_ASCII);
+
+		private final RequestParser parser = new RequestParser();
+		private final List<byte[]> authority = new ArrayList<>(1);
+		private int sizeLimit;
+		private int size;
+		private boolean regularSeen;
+		private boolean hostSeen;
+		String method;
+		String path;
+		boolean malformed;
+		boolean tooLarge;
+
+		void reset(int sizeLimit) {
+			parser.beginHeaders();
+			authority.clear();
+			this.sizeLimit = sizeLimit;
+			size = 0;
+			regularSeen = false;
+			hostSeen = false;
+			method = null;
+			path = null;
+			malformed = false;
+			tooLarge = false;
+		}
+
+		@Override
+		public void header(byte[] name, byte[] value) {
+			size += name.length + value.length + 32;
+			if (sizeLimit > 0 && size > sizeLimit) {
+				tooLarge = true;
+				return;
+			}
+			if (name.length > 0 && name[0] == ':') {
+				if (regularSeen) {
+					malformed = true;
+					return;
+				}
+				String pseudo = new String(name, StandardCharsets.US_ASCII);
+				String string = new String(value, StandardCharsets.ISO_8859_1);
+				switch (pseudo) {
+					case ":method":
+						method = string;
+						break;
+					case ":path":
+						path = string;
+						break;
+					case ":authority":
+						authority.add(value);
+						break;
+					case ":scheme":
+						break;
+					default:
+						malformed = true;
+						break;
+				}
+				return;
+			}
+			regularSeen = true;
+			if (Arrays.equals(name, hostName)) {
+				hostSeen = true;
+			}
+			parser.addHeader(name, 0, name.length, value, 0, value.length);
+		}
+
+		RequestHeaders finish() {
+			if (!hostSeen && !authority.isEmpty()) {
+				byte[] value = authority.get(0);
+				parser.addHeader(hostName, 0, hostName.length, value, 0, value.length);
+			}
+			return parser.finishHeaders();
+		}
+	}
+}
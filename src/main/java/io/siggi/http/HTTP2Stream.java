@@ -0,0 +1,300 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single request and response on an {@link HTTP2Connection}. The request
+ * body is buffered here by the connection's reader thread and read by the
+ * stream's {@link HTTPHandler}, and the response is written straight to the
+ * connection as frames.
+ */
+final class HTTP2Stream {
+
+	private static final byte[] empty = new byte[0];
+	private static final ResponseHeaders noHeaders = new ResponseHeaders();
+
+	final HTTP2Connection connection;
+	final int id;
+	final String method;
+	final String target;
+	final RequestHeaders headers;
+	final boolean headersTooLarge;
+	/**
+	 * The amount of data the client will currently accept on this stream,
+	 * guarded by the connection's write lock.
+	 */
+	int sendWindow;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition dataAvailable = lock.newCondition();
+	private final boolean hasBody;
+	private byte[] buffer = null;
+	private int readPos = 0;
+	private int count = 0;
+	private int outstanding = 0;
+	private int consumed = 0;
+	private boolean remoteClosed;
+	private volatile boolean reset = false;
+	private volatile boolean localClosed = false;
+
+	HTTP2Stream(HTTP2Connection connection, int id, String method, String target, RequestHeaders headers, boolean headersTooLarge, boolean remoteClosed, int sendWindow) {
+		this.connection = connection;
+		this.id = id;
+		this.method = method;
+		this.target = target;
+		this.headers = headers;
+		this.headersTooLarge = headersTooLarge;
+		this.remoteClosed = remoteClosed;
+		this.hasBody = !remoteClosed;
+		this.sendWindow = sendWindow;
+	}
+
+	/**
+	 * Check if the client said it would send a request body, that is, the
+	 * request headers did not end the stream.
+	 *
+	 * @return true if there is a request body
+	 */
+	boolean hasBody() {
+		return hasBody;
+	}
+
+	boolean isReset() {
+		return reset;
+	}
+
+	boolean isLocalClosed() {
+		return localClosed;
+	}
+
+	/**
+	 * Called by the reader thread when a DATA frame arrives.
+	 *
+	 * @param flowLength the length of the whole frame payload, including
+	 * padding, which is what counts against the flow control window
+	 * @return the window update to send for this stream, 0 for none, or -1 if
+	 * the client sent more than the flow control window allows
+	 */
+	int receiveData(byte[] data, int offset, int length, int flowLength, boolean endStream) {
+		lock.lock();
+		try {
+			if (outstanding + flowLength > HTTP2Connection.defaultWindowSize) {
+				return -1;
+			}
+			outstanding += flowLength;
+			// padding is never read, so it's consumed as soon as it arrives
+			consumed += flowLength - length;
+			if (length > 0 && !localClosed) {
+				if (buffer == null) {
+					buffer = new byte[HTTP2Connection.defaultWindowSize];
+				}
+				int writePos = (readPos + count) % buffer.length;
+				int first = Math.min(length, buffer.length - writePos);
+				System.arraycopy(data, offset, buffer, writePos, first);
+				System.arraycopy(data, offset + first, buffer, 0, length - first);
+				count += length;
+			}
+			if (endStream) {
+				remoteClosed = true;
+			}
+			dataAvailable.signalAll();
+			int windowUpdate = 0;
+			if (consumed >= HTTP2Connection.defaultWindowSize / 2 && !remoteClosed) {
+				windowUpdate = consumed;
+				outstanding -= consumed;
+				consumed = 0;
+			}
+			return windowUpdate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the reader thread when the client ends the stream with a
+	 * trailing header block.
+	 */
+	void receiveEnd() {
+		lock.lock();
+		try {
+			remoteClosed = true;
+			dataAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isRemoteClosed() {
+		lock.lock();
+		try {
+			return remoteClosed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called when the client resets the stream or the connection goes away.
+	 */
+	void remoteReset() {
+		reset = true;
+		localClosed = true;
+		lock.lock();
+		try {
+			dataAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send the response headers.
+	 *
+	 * @param status the status code
+	 * @param headers the response headers
+	 * @throws IOException if something goes wrong
+	 */
+	void writeHeaders(int status, ResponseHeaders headers) throws IOException {
+		connection.writeHeaders(this, status, headers);
+	}
+
+	/**
+	 * Send an interim 100 Continue response.
+	 *
+	 * @throws IOException if something goes wrong
+	 */
+	void writeContinue() throws IOException {
+		connection.writeHeaders(this, 100, noHeaders);
+	}
+
+	/**
+	 * End the response. If the request body was not read completely, the
+	 * client is told to stop sending it.
+	 */
+	void end() {
+		if (localClosed) {
+			return;
+		}
+		try {
+			connection.writeData(this, empty, 0, 0, true);
+			localClosed = true;
+			if (!isRemoteClosed()) {
+				connection.writeReset(id, HTTP2Connection.noError);
+			}
+		} catch (IOException e) {
+		} finally {
+			localClosed = true;
+			connection.removeStream(this);
+		}
+	}
+
+	/**
+	 * Abort the response, used when a complete response could not be sent.
+	 */
+	void reset() {
+		if (localClosed) {
+			return;
+		}
+		localClosed = true;
+		try {
+			connection.writeReset(id, HTTP2Connection.internalError);
+		} catch (IOException e) {
+		} finally {
+			connection.removeStream(this);
+		}
+	}
+
+	InputStream getInputStream() {
+		return new BodyInputStream();
+	}
+
+	OutputStream getOutputStream() {
+		return new BodyOutputStream();
+	}
+
+	private final class BodyInputStream extends InputStream {
+
+		private final byte[] singleByte = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			int amount = read(singleByte, 0, 1);
+			return amount < 0 ? -1 : (singleByte[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len <= 0) {
+				return 0;
+			}
+			int amount;
+			int windowUpdate = 0;
+			lock.lock();
+			try {
+				while (count == 0) {
+					if (reset) {
+						throw new IOException("Stream was reset");
+					}
+					if (remoteClosed) {
+						return -1;
+					}
+					if (!dataAvailable.await(HTTP2Connection.idleTimeout, TimeUnit.MILLISECONDS) && count == 0) {
+						throw new SocketTimeoutException("Timed out waiting for request body");
+					}
+				}
+				amount = Math.min(len, count);
+				int first = Math.min(amount, buffer.length - readPos);
+				System.arraycopy(buffer, readPos, b, off, first);
+				System.arraycopy(buffer, 0, b, off + first, amount - first);
+				readPos = (readPos + amount) % buffer.length;
+				count -= amount;
+				consumed += amount;
+				if (consumed >= HTTP2Connection.defaultWindowSize / 2 && !remoteClosed) {
+					windowUpdate = consumed;
+					outstanding -= consumed;
+					consumed = 0;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				lock.unlock();
+			}
+			if (windowUpdate > 0) {
+				connection.writeWindowUpdate(id, windowUpdate);
+			}
+			return amount;
+		}
+
+		@Override
+		public int available() {
+			lock.lock();
+			try {
+				return count;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private final class BodyOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > 0) {
+				connection.writeData(HTTP2Stream.this, b, off, len, false);
+			}
+		}
+	}
+}
@@ -8,35 +8,35 @@ import io.siggi.http.io.ConcatenatedInputStream;
 import io.siggi.http.io.EOFInputStream;
 import io.siggi.http.io.ReadLimitInputStream;
 import io.siggi.http.io.SubInputStream;
+import io.siggi.http.io.UrlEncodedFormParser;
 import io.siggi.http.registry.HTTPResponderRegistry;
-import io.siggi.http.util.CaseInsensitiveHashMap;
 import io.siggi.http.util.CloudFlare;
 import io.siggi.http.util.HTMLUtils;
+import io.siggi.http.util.LazyHashMap;
+import io.siggi.http.util.PercentDecoder;
 import io.siggi.http.util.Util;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.Writer;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -44,6 +44,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLSocket;
 
 final class HTTPHandler {
@@ -64,9 +65,8 @@ final class HTTPHandler {
 			finishBody();
 		} else {
 			if (isRedirectCode(responseCode)) {
-				List<String> list = headers.get(headerName("Location"));
-				if (list != null && list.size() == 1) {
-					String location = list.get(0);
+				if (headers.valueCount(ResponseHeaders.location) == 1) {
+					String location = headers.value(ResponseHeaders.location, 0);
 					String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>" + responseHeader + "</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>" + responseHeader + "</h1><br>\nThe resource you requested has moved to a new location.  <a href=\"" + HTMLUtils.htmlentities(location) + "\">Click here to go to the new location.</a><br>\n<hr>\n" + request.getServerSignature() + "<br>\n</body>\n</html>";
 					byte[] pageBytes = getBytes(page);
 					setHeader("Content-Length", Integer.toString(pageBytes.length));
@@ -89,8 +89,7 @@ final class HTTPHandler {
 				if (wrote) {
 					finishBody();
 				} else {
-					String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>500 Internal Server Error</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>500 Internal Server Error</h1><br>\nThe server failed to produce a 404 response.  Check the server code to make sure it's working properly!<br>\n" + server.getServerSignature(host) + "<br>\n</body>\n</html>";
-					byte pageBytes[] = getBytes(page);
+					byte pageBytes[] = ErrorPages.get("500 Internal Server Error", ErrorPages.no404, server.getServerSignature(host));
 					setHeader("500 Internal Server Error");
 					setHeader("Content-Length", Integer.toString(pageBytes.length));
 					setHeader("Content-Type", "text/html; charset=utf-8");
@@ -112,32 +111,63 @@ final class HTTPHandler {
 	}
 
 	private void finishBody() throws IOException {
+		closeWriter();
 		if (usingHeadMethod) {
 			return;
 		}
-		if (chunked) {
-			if (contentOutStream instanceof BufferedOutputStream) {
-				contentOutStream.flush();
+		out.holdFlushes(true);
+		try {
+			if (staging.active) {
+				if (trailers.isEmpty()) {
+					staging.finish();
+					return;
+				}
+				// trailers can only be sent with a chunked body
+				staging.overflow();
 			}
-			chunkOutputStream.close();
-		} else if (writtenBodyLength < outputContentLength) {
-			// website code didn't write the whole body
-			// just pad it with zeroes
-			mustEndConnection = true;
-			if (contentOutStream instanceof BufferedOutputStream) {
-				contentOutStream.flush();
+			if (chunked) {
+				for (int i = 0; i < trailers.size(); i += 2) {
+					chunkOutputStream.addTrailer(trailers.get(i), trailers.get(i + 1));
+				}
+				chunkOutputStream.close();
+			} else if (writtenBodyLength < outputContentLength) {
+				// website code didn't write the whole body
+				// just pad it with zeroes
+				mustEndConnection = true;
+				if (contentOutStream instanceof BufferedOutputStream) {
+					contentOutStream.flush();
+				}
 			}
+		} finally {
+			out.holdFlushes(false);
+		}
+	}
+
+	/**
+	 * Flush the response, unless the next request is already waiting in the
+	 * input buffer, in which case its response can go out in the same write.
+	 * Whatever is held back is flushed before the connection blocks to wait
+	 * for the client, is parked, or is closed.
+	 */
+	private void flushUnlessPipelined() throws IOException {
+		if (in.buffered() == 0) {
+			out.flush();
 		}
 	}
 	String postData = null;
 
 	private void badRequest() throws IOException {
 		resetHeaders();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		new RuntimeException().printStackTrace(new PrintStream(baos, true));
-		String req = new String(baos.toByteArray());
-		String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>400 Bad Request</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>400 Bad Request</h1><br>\n<br>\n<pre style=\"font-family: Monaco; font-size: 10px\">" + req + "</pre><br>\n<br>\n<hr>\n" + server.getServerSignature(host) + "<br>\n</body>\n</html>";
-		byte pageBytes[] = getBytes(page);
+		byte pageBytes[];
+		if (server.isProductionMode()) {
+			pageBytes = ErrorPages.get("400 Bad Request", ErrorPages.badRequest, server.getServerSignature(host));
+		} else {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			new RuntimeException().printStackTrace(new PrintStream(baos, true));
+			String req = new String(baos.toByteArray());
+			String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>400 Bad Request</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>400 Bad Request</h1><br>\n<br>\n<pre style=\"font-family: Monaco; font-size: 10px\">" + req + "</pre><br>\n<br>\n<hr>\n" + server.getServerSignature(host) + "<br>\n</body>\n</html>";
+			pageBytes = getBytes(page);
+		}
 		setHeader("400 Bad Request");
 		setHeader("Content-Length", Integer.toString(pageBytes.length));
 		setHeader("Content-Type", "text/html; charset=utf-8");
@@ -148,8 +178,7 @@ final class HTTPHandler {
 
 	private void requestUriTooBig() throws IOException {
 		resetHeaders();
-		String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>414 Request URI Too Long</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>414 Request URI Too Long</h1><br>\nThat's what she said!<br>\n<br>\nThe request URI you submitted is too large for this server to handle!<br>\n<br>\n<hr>\n" + server.getServerSignature(host) + "<br>\n</body>\n</html>";
-		byte pageBytes[] = getBytes(page);
+		byte pageBytes[] = ErrorPages.get("414 Request URI Too Long", ErrorPages.uriTooLong, server.getServerSignature(host));
 		setHeader("414 Request URI Too Long");
 		setHeader("Content-Length", Integer.toString(pageBytes.length));
 		setHeader("Content-Type", "text/html; charset=utf-8");
@@ -160,8 +189,7 @@ final class HTTPHandler {
 
 	private void tooBig() throws IOException {
 		resetHeaders();
-		String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>413 Request Entity Too Large</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>413 Request Entity Too Large</h1><br>\nThat's what she said!<br>\n<br>\nThe data you submitted is too large for this server to handle!<br>\n<br>\n<hr>\n" + server.getServerSignature(host) + "<br>\n</body>\n</html>";
-		byte pageBytes[] = getBytes(page);
+		byte pageBytes[] = ErrorPages.get("413 Request Entity Too Large", ErrorPages.tooBig, server.getServerSignature(host));
 		setHeader("413 Request Entity Too Large");
 		setHeader("Content-Length", Integer.toString(pageBytes.length));
 		setHeader("Content-Type", "text/html; charset=utf-8");
@@ -197,23 +225,52 @@ final class HTTPHandler {
 		this.sock = socket;
 		this.sourceSocket = sourceSocket;
 		rawIn = socket.getInputStream();
-		in = rawIn;
-		out = socket.getOutputStream();
-		realInetAddress = inetAddress = socket.getInetAddress();
+		in = new ConnectionInputStream(rawIn, 8192);
+		out = new ConnectionOutputStream(socket.getOutputStream(), 8192);
+		in.setOutput(out);
+		realInetAddress = inetAddress = peerAddress(socket);
 		ip = inetAddress.getHostAddress();
 		this.executor = executor;
 	}
 
-	HTTPHandler(HTTPServer server, Socket socket, InputStream preRead, Executor executor) throws IOException {
+	HTTPHandler(HTTPServer server, Socket socket, InputStream preRead, Executor executor, NioTransport.EventLoop eventLoop) throws IOException {
 		this.server = server;
 		this.sock = socket;
 		this.sourceSocket = null;
 		rawIn = preRead == null ? socket.getInputStream() : new ConcatenatedInputStream(preRead, socket.getInputStream());
-		in = rawIn;
-		out = socket.getOutputStream();
-		realInetAddress = inetAddress = socket.getInetAddress();
+		in = new ConnectionInputStream(rawIn, 8192);
+		out = new ConnectionOutputStream(socket.getOutputStream(), blockingChannel(socket), 8192);
+		in.setOutput(out);
+		realInetAddress = inetAddress = peerAddress(socket);
+		ip = inetAddress.getHostAddress();
+		this.executor = executor;
+		this.eventLoop = eventLoop;
+		if (socket instanceof TLSSocket && eventLoop != null) {
+			((TLSSocket) socket).setTaskDone(() -> eventLoop.resume(this));
+		}
+	}
+
+	/**
+	 * Create a handler for a single HTTP/2 stream. The request line and
+	 * headers come from the stream, and the socket belongs to the connection,
+	 * so it is never closed or reconfigured by this handler.
+	 */
+	HTTPHandler(HTTPServer server, HTTP2Stream stream, Executor executor) throws IOException {
+		this.server = server;
+		this.sock = stream.connection.getSocket();
+		this.sourceSocket = null;
+		this.h2Stream = stream;
+		rawIn = stream.getInputStream();
+		in = new ConnectionInputStream(rawIn, 8192);
+		out = new ConnectionOutputStream(stream.getOutputStream(), 8192);
+		in.setOutput(out);
+		realInetAddress = inetAddress = peerAddress(sock);
 		ip = inetAddress.getHostAddress();
+		setProxiedAddress(stream.connection.proxiedAddress);
 		this.executor = executor;
+		parser.method = stream.method;
+		parser.target = stream.target;
+		parser.version = "HTTP/2.0";
 	}
 
 	private boolean started = false;
@@ -227,52 +284,304 @@ final class HTTPHandler {
 		startHandlingNewRequest();
 	}
 
-	private static int clientHandlerID = 0;
+	/**
+	 * Continue handling a connection that was parked in an event loop, the
+	 * next request head is in the buffer.
+	 */
+	void dispatch() {
+		started = true;
+		startHandlingNewRequest();
+	}
+
+	/**
+	 * Get the peer address of a socket. Connections that are not over IP,
+	 * like Unix domain sockets, come from a process on the same host and are
+	 * treated like connections from loopback, so the client's address can only
+	 * come from the forwarded headers trusted for loopback.
+	 */
+	private static InetAddress peerAddress(Socket socket) {
+		InetAddress address = socket.getInetAddress();
+		return address == null ? InetAddress.getLoopbackAddress() : address;
+	}
 
-	private static synchronized String nextClientHandler() {
-		return "HTTPServer-ClientHandler-" + (clientHandlerID++);
+	/**
+	 * Get the channel a socket's output stream writes to, if writes can go
+	 * straight to it. TLS sockets have to encrypt first, and channel sockets
+	 * keep their channel in non-blocking mode.
+	 */
+	private static SocketChannel blockingChannel(Socket socket) {
+		if (socket instanceof TLSSocket || socket instanceof ChannelSocket) {
+			return null;
+		}
+		return socket.getChannel();
 	}
 
-	private String toString(byte[] b) {
-		char[] ch = new char[b.length];
-		for (int i = 0; i < b.length; i++) {
-			ch[i] = (char) (((int) b[i]) & 0xff);
+	/**
+	 * Expect a PROXY protocol header at the start of the connection, before
+	 * the first request or the TLS handshake.
+	 */
+	void expectProxyHeader() {
+		proxyHeaderPending = true;
+		if (sock instanceof TLSSocket) {
+			((TLSSocket) sock).expectProxyHeader();
 		}
-		return new String(ch);
 	}
 
-	private String readCRLF(long timeout, int maxLength) throws IOException, HTTPTimedOutException {
-		String line = readLine(timeout, maxLength);
-		if (line == null) {
-			return null;
+	/**
+	 * Use the client address sent by a load balancer for this connection. The
+	 * forwarded headers are no longer looked at, the address is only ever
+	 * taken from the balancer.
+	 *
+	 * @param address the client address, or null to keep the peer address
+	 */
+	private void setProxiedAddress(InetAddress address) {
+		if (address == null) {
+			return;
 		}
-		if (line.substring(line.length() - 1).equals("\r")) {
-			line = line.substring(0, line.length() - 1);
+		proxiedAddress = realInetAddress = inetAddress = address;
+		ip = address.getHostAddress();
+	}
+
+	/**
+	 * Decode the PROXY protocol header if it is in the buffer.
+	 *
+	 * @return true if the header was decoded, false if more data is needed
+	 * @throws IOException if the header is not valid
+	 */
+	private boolean decodeProxyHeader() throws IOException {
+		ProxyProtocol header = ProxyProtocol.parse(in.buffer, in.pos, in.buffered());
+		if (header == null) {
+			return false;
 		}
-		return line;
+		in.pos += header.length;
+		proxyHeaderPending = false;
+		setProxiedAddress(header.source == null ? null : header.source.getAddress());
+		return true;
 	}
 
-	private String readLine(long timeout, int maxLength) throws IOException, HTTPTimedOutException {
-		sock.setSoTimeout((int) timeout);
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
-		boolean readAny = false;
+	/**
+	 * Read the PROXY protocol header from a blocking connection.
+	 *
+	 * @return false if the connection should be closed
+	 */
+	private boolean readProxyHeader() throws IOException {
+		setReadTimeout(getIdleTimeout());
 		try {
-			for (int i; (i = in.read()) != -1 && i != 10;) {
-				readAny = true;
-				if (baos.size() >= maxLength) {
-					throw new TooBigException();
+			while (!decodeProxyHeader()) {
+				if (in.fill(ProxyProtocol.maxLength) <= 0) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			// timed out or not a valid header
+			return false;
+		}
+	}
+
+	/**
+	 * Put the channel back in blocking mode before the connection is handed
+	 * from an event loop to a thread. Channel sockets and TLS sockets keep
+	 * their channels in non-blocking mode and wait on their own selectors.
+	 */
+	void restoreBlocking() throws IOException {
+		if (sock instanceof TLSSocket) {
+			((TLSSocket) sock).setBlocking(true);
+		} else if (!(sock instanceof ChannelSocket)) {
+			getChannel().configureBlocking(true);
+		}
+	}
+
+	/**
+	 * Put the channel in non-blocking mode before the connection is given to
+	 * an event loop.
+	 */
+	void setNonBlocking() throws IOException {
+		if (sock instanceof TLSSocket) {
+			((TLSSocket) sock).setBlocking(false);
+		}
+		getChannel().configureBlocking(false);
+	}
+
+	SocketChannel getChannel() {
+		if (sock instanceof TLSSocket) {
+			return ((TLSSocket) sock).channel();
+		}
+		return sock.getChannel();
+	}
+
+	boolean isTLS() {
+		return sock instanceof TLSSocket;
+	}
+
+	/**
+	 * Get the selector operations this connection is waiting for while it is
+	 * in an event loop.
+	 *
+	 * @return the interest set for the channel
+	 */
+	int interestOps() {
+		if (sock instanceof TLSSocket) {
+			return ((TLSSocket) sock).interestOps();
+		}
+		return SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Read whatever is available from the non-blocking channel.
+	 *
+	 * @return -1 if the connection should be closed, 1 if the request should
+	 * be dispatched, or 0 if more data is needed
+	 * @throws IOException if something goes wrong
+	 */
+	int readHead() throws IOException {
+		int maxHeadSize = getMaxHeadSize();
+		if (!(sock instanceof TLSSocket)) {
+			if (proxyHeaderPending) {
+				int amountRead = in.fill(sock.getChannel(), ProxyProtocol.maxLength);
+				if (!decodeProxyHeader()) {
+					return amountRead < 0 ? -1 : 0;
 				}
-				baos.write(i);
 			}
+			if (in.fill(sock.getChannel(), maxHeadSize) < 0) {
+				return in.buffered() > 0 ? 1 : -1;
+			}
+			// if the head doesn't fit, dispatch anyway and let the parser
+			// respond with the appropriate error
+			return in.hasCompleteHead() || in.buffered() >= maxHeadSize ? 1 : 0;
+		}
+		TLSSocket tls = (TLSSocket) sock;
+		int handshake = tls.handshake();
+		if (handshake <= 0) {
+			return handshake;
+		}
+		if (proxyHeaderPending) {
+			proxyHeaderPending = false;
+			InetSocketAddress source = tls.getProxiedSource();
+			setProxiedAddress(source == null ? null : source.getAddress());
+		}
+		// one read from the socket can hold several records, keep decrypting
+		// until there is nothing left, the selector won't fire for data that
+		// has already been read
+		while (true) {
+			int amountRead = in.fill(tls.getReadChannel(), maxHeadSize);
+			if (amountRead < 0) {
+				return in.buffered() > 0 ? 1 : -1;
+			}
+			if (in.hasCompleteHead() || in.buffered() >= maxHeadSize) {
+				return 1;
+			}
+			if (amountRead == 0) {
+				tls.releaseBuffersIfIdle();
+				return 0;
+			}
+		}
+	}
+
+	boolean hasCompleteHead() {
+		return in.hasCompleteHead();
+	}
+
+	private int getMaxHeadSize() {
+		int headerSizeLimit = server.getHeaderSizeLimit();
+		long max = (long) server.getRequestURISizeLimit() + (headerSizeLimit > 0 ? headerSizeLimit : 1048576) + 2L;
+		return (int) Math.min(max, (long) (Integer.MAX_VALUE - 8));
+	}
+
+	/**
+	 * Get how long to wait for the next request line on this connection.
+	 *
+	 * @return the timeout in milliseconds
+	 */
+	int getIdleTimeout() {
+		if (keepAliveTime != -1) {
+			return (keepAliveTime * 1000) + 10000; // Wait an extra 10 seconds
+		}
+		return 60000;
+	}
+
+	private void park() {
+		try {
+			out.forceFlush();
+		} catch (Exception e) {
+			closeSocket();
+			return;
+		}
+		staging.release();
+		responseWriter = null;
+		formBuffer = null;
+		eventLoop.park(this);
+	}
+
+	/**
+	 * Finish the HTTP/2 stream this handler is serving. A response that is
+	 * missing or shorter than its Content-Length resets the stream instead,
+	 * so the client doesn't take it as complete.
+	 */
+	private void endStream() {
+		try {
+			out.forceFlush();
+		} catch (Exception e) {
+		}
+		if (!wrote || (!usingHeadMethod && outputContentLength >= 0L && writtenBodyLength < outputContentLength)) {
+			h2Stream.reset();
+		} else {
+			h2Stream.end();
+		}
+	}
+
+	void closeSocket() {
+		try {
+			out.forceFlush();
+		} catch (Exception e) {
+		}
+		if (getChannel() != null) {
+			// closing a channel with unread input resets the connection, which
+			// can make the client lose the end of the response
+			try {
+				sock.shutdownOutput();
+			} catch (Exception e) {
+			}
+		}
+		try {
+			sock.close();
+		} catch (Exception e) {
+		}
+	}
+
+	private static final AtomicInteger clientHandlerID = new AtomicInteger();
+
+	private static String nextClientHandler() {
+		return "HTTPServer-ClientHandler-" + clientHandlerID.getAndIncrement();
+	}
+
+	private String toString(byte[] b) {
+		char[] ch = new char[b.length];
+		for (int i = 0; i < b.length; i++) {
+			ch[i] = (char) (((int) b[i]) & 0xff);
+		}
+		return new String(ch);
+	}
+
+	private boolean readRequestLine(long timeout, int maxLength) throws IOException, HTTPTimedOutException {
+		setReadTimeout((int) timeout);
+		try {
+			return parser.readRequestLine(in, maxLength);
 		} catch (SocketTimeoutException e) {
 			throw new HTTPTimedOutException();
-		} finally {
-			sock.setSoTimeout(0);
 		}
-		if (!readAny) {
-			return null;
+	}
+
+	private void setReadTimeout(int timeout) throws IOException {
+		if (h2Stream != null) {
+			// the socket is shared with the other streams, the stream body
+			// has its own timeout
+			return;
+		}
+		if (readTimeout != timeout) {
+			sock.setSoTimeout(timeout);
+			readTimeout = timeout;
 		}
-		return new String(baos.toByteArray());
 	}
 
 	private void write(String data) throws IOException {
@@ -285,6 +594,7 @@ final class HTTPHandler {
 	}
 
 	private void run() {
+		boolean parked = false;
 		try {
 			theLoop:
 			while (keepAlive && !mustEndConnection) {
@@ -296,45 +606,58 @@ final class HTTPHandler {
 					writtenBodyLength = 0L;
 					outputContentLength = -1L;
 					bufferDisabled = false;
+					trailers.clear();
+					activeWriter = null;
+					currentRequest = null;
 					keepAlive = false;
 					resetHeaders();
-					String request = "";
-					try {
-						while (request.trim().equals("")) {
-							if (keepAliveTime != -1) {
-								request = readCRLF((((long) keepAliveTime) * 1000L) + 10000L /*Wait an extra 10 seconds*/, server.getRequestURISizeLimit());
-							} else {
-								request = readCRLF(60000L, server.getRequestURISizeLimit());
-							}
-							if (request == null) {
+					if (h2Stream == null) {
+						if (proxyHeaderPending && !readProxyHeader()) {
+							break theLoop;
+						}
+						try {
+							if (!readRequestLine(getIdleTimeout(), server.getRequestURISizeLimit())) {
 								break theLoop;
 							}
+						} catch (TooBigException ex) {
+							requestUriTooBig();
+							break;
+						}
+						if (server.isHTTP2Enabled() && "PRI".equals(parser.method) && "*".equals(parser.target) && "HTTP/2.0".equals(parser.version)) {
+							// HTTP/2 with prior knowledge, this thread reads
+							// frames until the connection is finished
+							if (readHTTP2Preface()) {
+								new HTTP2Connection(server, sock, proxiedAddress, in, out, executor).serve();
+							}
+							break theLoop;
 						}
-					} catch (TooBigException ex) {
-						requestUriTooBig();
-						break;
-					}
-					int s = request.indexOf(" ");
-					if (s == -1) {
-						s = request.length();
 					}
-					String method = request.substring(0, s).toUpperCase();
-					usingHeadMethod = method.equals("HEAD");
+					usingHeadMethod = parser.method.equalsIgnoreCase("HEAD");
 					cleanupTasks.clear();
-					processRequest(request);
+					processRequest();
 				} catch (SocketTimeoutException | HTTPTimedOutException ste) {
 					// Timed out
 					keepAlive = false;
 				} catch (Exception e) {
-					/*System.err.print("Server error (500 sent to client): ");
-					 e.printStackTrace();*/
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					e.printStackTrace(new PrintStream(baos, true));
-					String stackTrace = new String(baos.toByteArray());
+					server.reportError(currentRequest, e);
+					if (staging.active) {
+						// nothing has been sent yet, the error page can
+						// replace what the responder wrote
+						staging.discard();
+						activeWriter = null;
+					}
 					if (!wrote) {
 						try {
-							String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>500 Internal Server Error</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>500 Internal Server Error</h1><br>\n*puke* ugh, I feel sick.<p>An error has occurred. The details of this problem are shown below.<br>\n<hr>\n<pre style=\"font-family: Monaco; font-size: 10px\">" + stackTrace + "</pre>\n<hr>\n" + server.getServerSignature(host) + "<br>\n</body>\n</html>";
-							byte pageBytes[] = getBytes(page);
+							byte pageBytes[];
+							if (server.isProductionMode()) {
+								pageBytes = ErrorPages.get("500 Internal Server Error", ErrorPages.internalError, server.getServerSignature(host));
+							} else {
+								ByteArrayOutputStream baos = new ByteArrayOutputStream();
+								e.printStackTrace(new PrintStream(baos, true));
+								String stackTrace = new String(baos.toByteArray());
+								String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>500 Internal Server Error</title>\n" + DefaultResponder.STYLE + "</head>\n<body>\n<h1>500 Internal Server Error</h1><br>\n*puke* ugh, I feel sick.<p>An error has occurred. The details of this problem are shown below.<br>\n<hr>\n<pre style=\"font-family: Monaco; font-size: 10px\">" + stackTrace + "</pre>\n<hr>\n" + server.getServerSignature(host) + "<br>\n</body>\n</html>";
+								pageBytes = getBytes(page);
+							}
 							setHeader("500 Internal Server Error");
 							setHeader("Content-Length", Integer.toString(pageBytes.length));
 							setHeader("Content-Type", "text/html; charset=utf-8");
@@ -353,13 +676,23 @@ final class HTTPHandler {
 				if (cleanupIsExplicit && !cleanedUpOnHandlerThread) {
 					break;
 				}
+				if (h2Stream != null) {
+					break;
+				}
+				if (eventLoop != null && keepAlive && !mustEndConnection && in.buffered() == 0) {
+					parked = true;
+					break;
+				}
 			}
 		} finally {
-			if (!noAutoClose && !cleanupIsExplicit) {
-				try {
-					sock.close();
-				} catch (Exception e) {
+			if (parked) {
+				park();
+			} else if (h2Stream != null) {
+				if (!cleanupIsExplicit || cleanedUpOnHandlerThread) {
+					endStream();
 				}
+			} else if (!noAutoClose && !cleanupIsExplicit) {
+				closeSocket();
 			}
 		}
 	}
@@ -383,13 +716,16 @@ final class HTTPHandler {
 			cleanedUpOnHandlerThread = true;
 			return;
 		}
+		if (h2Stream != null) {
+			endStream();
+			return;
+		}
 		if (!keepAlive || mustEndConnection) {
 			if (!noAutoClose) {
-				try {
-					sock.close();
-				} catch (Exception e) {
-				}
+				closeSocket();
 			}
+		} else if (eventLoop != null && in.buffered() == 0) {
+			park();
 		} else {
 			startHandlingNewRequest();
 		}
@@ -403,28 +739,6 @@ final class HTTPHandler {
 		cleanupTasks.clear();
 	}
 
-	private static String deURLEncode(String encoded) {
-		byte abyte0[] = encoded.getBytes();
-		int i = 0;
-		byte abyte1[] = new byte[encoded.length()];
-		for (int j = 0; j < abyte0.length; j++) {
-			if (abyte0[j] == 37) {
-				byte abyte3[] = {
-					abyte0[j + 1], abyte0[j + 2]
-				};
-				byte byte0 = (byte) Integer.parseInt(new String(abyte3), 16);
-				j += 2;
-				abyte1[i++] = byte0;
-			} else {
-				abyte1[i++] = abyte0[j];
-			}
-		}
-
-		byte abyte2[] = new byte[i];
-		System.arraycopy(abyte1, 0, abyte2, 0, i);
-		return new String(abyte2);
-	}
-
 	void keepAlive(boolean keepAlive) {
 		int timeout = 15;
 		if (cannotKeepAlive) {
@@ -433,58 +747,81 @@ final class HTTPHandler {
 		this.keepAlive = keepAlive;
 		if (keepAlive) {
 			keepAliveTime = timeout;
-			setHeader("Keep-Alive", "timeout=" + timeout);
-			setHeader("Connection", "Keep-Alive");
+			headers.set(ResponseHeaders.keepAlive, "timeout=" + timeout);
+			headers.set(ResponseHeaders.connection, "Keep-Alive");
 		} else {
-			deleteHeader("Keep-Alive");
-			setHeader("Connection", "close");
+			headers.remove(ResponseHeaders.keepAlive);
+			headers.set(ResponseHeaders.connection, "close");
 		}
 	}
 
-	private void processRequest(String request) throws Exception {
+	private void processRequest() throws Exception {
 		EOFInputStream contentStream = null;
 		HTTPRequest req = null;
 		try {
-			String method = request.substring(0, request.indexOf(" "));
+			String method = parser.method;
 			String requestURI;
-			String httpVersion = "HTTP/0.0";
-			if (request.substring(request.lastIndexOf(" ") + 1).startsWith("HTTP/")) {
-				requestURI = request.substring(request.indexOf(" ") + 1, request.lastIndexOf(" "));
-				httpVersion = request.substring(request.lastIndexOf(" ") + 1);
+			if (parser.version != null) {
+				requestURI = parser.target;
 			} else {
 				out.write(("Please send a full HTTP request.  If you are seeing this message, you may have an out of date browser.").getBytes());
 				return;
 			}
-			Map<String, String> get = new HashMap<>();
+			RequestHeaders headers;
+			referer = null;
+			host = null;
+			userAgent = null;
+			setReadTimeout(60000);
+			if (h2Stream != null) {
+				if (h2Stream.headersTooLarge) {
+					tooBig();
+					return;
+				}
+				headers = h2Stream.headers;
+			} else {
+				try {
+					headers = parser.readHeaders(in, server.getHeaderSizeLimit());
+				} catch (TooBigException e) {
+					tooBig();
+					return;
+				}
+				if (serveStatic(method, requestURI, headers)) {
+					return;
+				}
+			}
+			// the query string, cookies and form data are only decoded if
+			// the responder looks at them
+			Map<String, String> get;
 			Map<String, String> post = new HashMap<>();
-			Map<String, String> cookies = new HashMap<>();
-			Map<String, List<String>> headers = new CaseInsensitiveHashMap<>();
+			Map<String, String> cookies;
 			Map<String, UploadedFile> uploadedFiles = new HashMap<>();
 			String fullRequestURI = requestURI;
 			if (requestURI.contains("?")) {
 				String getRaw = requestURI.substring(requestURI.indexOf("?") + 1);
 				requestURI = requestURI.substring(0, requestURI.indexOf("?"));
-				Util.parseQueryString(getRaw, get);
+				get = new LazyHashMap<String, String>() {
+					@Override
+					protected void prepare() {
+						Util.parseQueryString(getRaw, this);
+					}
+				};
+			} else {
+				get = new HashMap<>();
 			}
-			requestURI = deURLEncode(requestURI);
+			requestURI = PercentDecoder.decode(requestURI, false);
 			long incomingContentLength = -1L;
 			String incomingContentType = "application/x-octet-stream";
-			referer = null;
-			host = null;
-			userAgent = null;
 			String forceHost = null;
-			sock.setSoTimeout(60000);
-			try {
-				Util.readHeaders(in, headers, server.getHeaderSizeLimit());
-			} catch (TooBigException e) {
-				tooBig();
-				return;
-			}
 			String expect = null;
-			for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
-				String key = entry.getKey();
-				for (String val : entry.getValue()) {
-					if (key.equalsIgnoreCase("X-Forwarded-For")) { // Loopback gateway
+			boolean hasCookies = false;
+			for (int h = 0, headerCount = headers.headerCount(); h < headerCount; h++) {
+				switch (headers.known(h)) {
+					case RequestHeaders.xForwardedFor: { // Loopback gateway
+						if (proxiedAddress != null) {
+							// the client address came from the PROXY protocol
+							break;
+						}
+						String val = headers.value(h);
 						if (realInetAddress.isLoopbackAddress() || CloudFlare.isCloudFlare(realInetAddress) || server.isIPTrusted(realInetAddress.getHostAddress())) {
 							String[] forwardedFor = val.split(",");
 							for (int i = 0; i < forwardedFor.length; i++) {
@@ -500,61 +837,76 @@ final class HTTPHandler {
 								break;
 							}
 						}
-					} else if (key.equalsIgnoreCase("CF-Connecting-IP")) { // CloudFlare gateway
+						break;
+					}
+					case RequestHeaders.cfConnectingIP: { // CloudFlare gateway
+						if (proxiedAddress != null) {
+							// the client address came from the PROXY protocol
+							break;
+						}
+						String val = headers.value(h);
 						if (CloudFlare.isCloudFlare(realInetAddress) || server.isIPTrusted(realInetAddress.getHostAddress())) {
 							inetAddress = InetAddress.getByName(val);
 							ip = inetAddress.getHostAddress();
 						}
-					} else if (key.equalsIgnoreCase("X-Forwarded-Host")) { // Loopback gateway
+						break;
+					}
+					case RequestHeaders.xForwardedHost: { // Loopback gateway
+						String val = headers.value(h);
 						if (realInetAddress.isLoopbackAddress() || server.isIPTrusted(realInetAddress.getHostAddress())) {
 							forceHost = val;
 						}
-					} else if (key.equalsIgnoreCase("Cookie")) {
-						String cookieParts[] = val.split(";");
-						for (String cookiePart : cookieParts) {
-							if (cookiePart.contains("=")) {
-								String ckey = cookiePart.substring(0, cookiePart.indexOf("=")).trim();
-								String cval = cookiePart.substring(cookiePart.indexOf("=") + 1).trim();
-								while (ckey.contains("+")) {
-									ckey = ckey.substring(0, ckey.indexOf("+")) + "%20" + ckey.substring(ckey.indexOf("+") + 1);
-								}
-								while (cval.contains("+")) {
-									cval = cval.substring(0, cval.indexOf("+")) + "%20" + cval.substring(cval.indexOf("+") + 1);
-								}
-								ckey = fixString(deURLEncode(ckey));
-								cval = fixString(deURLEncode(cval));
-								cookies.put(ckey, cval);
-							} else {
-								cookies.put(fixString(deURLEncode(cookiePart)), "");
-							}
-						}
-					} else if (key.equalsIgnoreCase("Content-Length")) {
+						break;
+					}
+					case RequestHeaders.cookie:
+						hasCookies = true;
+						break;
+					case RequestHeaders.contentLength: {
+						String val = headers.value(h);
 						try {
 							incomingContentLength = Long.parseLong(val);
 						} catch (Exception e) {
 							badRequest();
 							return;
 						}
-					} else if (key.equalsIgnoreCase("Content-Type")) {
-						incomingContentType = val;
-					} else if (key.equalsIgnoreCase("Referer")) {
-						referer = val;
-					} else if (key.equalsIgnoreCase("Host")) {
-						host = val;
-					} else if (key.equalsIgnoreCase("User-Agent")) {
-						userAgent = val;
-					} else if (key.equalsIgnoreCase("Connection")) {
-						if (val.equalsIgnoreCase("close")) {
+						break;
+					}
+					case RequestHeaders.contentType:
+						incomingContentType = headers.value(h);
+						break;
+					case RequestHeaders.referer:
+						referer = headers.value(h);
+						break;
+					case RequestHeaders.host:
+						host = headers.value(h);
+						break;
+					case RequestHeaders.userAgent:
+						userAgent = headers.value(h);
+						break;
+					case RequestHeaders.connection:
+						if (headers.value(h).equalsIgnoreCase("close")) {
 							cannotKeepAlive = true;
 						}
-					} else if (key.equalsIgnoreCase("Expect")) {
-						expect = val;
-					}
+						break;
+					case RequestHeaders.expect:
+						expect = headers.value(h);
+						break;
 				}
 			}
 			if (forceHost != null) {
 				host = forceHost;
 			}
+			if (hasCookies) {
+				RequestHeaders cookieHeaders = headers;
+				cookies = new LazyHashMap<String, String>() {
+					@Override
+					protected void prepare() {
+						parseCookies(cookieHeaders, this);
+					}
+				};
+			} else {
+				cookies = new HashMap<>();
+			}
 			if (!requestURI.startsWith("/")) {
 				badRequest();
 				return;
@@ -571,27 +923,36 @@ final class HTTPHandler {
 						tooBig();
 						return;
 					}
-					write("HTTP/1.1 100 Continue\r\n\r\n");
+					if (h2Stream != null) {
+						h2Stream.writeContinue();
+					} else {
+						write("HTTP/1.1 100 Continue\r\n\r\n");
+					}
 				}
 			}
 			postData = null;
 			boolean incomingIsChunked = false;
-			{
-				List<String> encodingL = headers.get("Transfer-Encoding");
-				if (encodingL != null && !encodingL.isEmpty()) {
-					String encoding = encodingL.get(0);
-					if (encoding != null && encoding.equals("chunked")) {
-						incomingIsChunked = true;
-					}
+			if (h2Stream == null) {
+				String encoding = headers.getFirst(RequestHeaders.transferEncoding);
+				if (encoding != null && encoding.equals("chunked")) {
+					incomingIsChunked = true;
 				}
 			}
-			boolean hasStream = incomingContentLength >= 0 || incomingIsChunked;
+			if (h2Stream == null && server.isHTTP2Enabled() && incomingContentLength <= 0L && !incomingIsChunked && isHTTP2Upgrade(headers)) {
+				upgradeToHTTP2(method, fullRequestURI, headers);
+				return;
+			}
+			chunkedIn = null;
+			boolean hasStream = incomingContentLength >= 0 || incomingIsChunked || (h2Stream != null && h2Stream.hasBody());
 			if (hasStream) {
 				InputStream stream;
 				if (incomingIsChunked) {
-					stream = new ChunkedInputStream(in);
-				} else {
+					stream = chunkedIn = new ChunkedInputStream(in, 4096, server.getHeaderSizeLimit());
+				} else if (incomingContentLength >= 0) {
 					stream = new SubInputStream(in, incomingContentLength);
+				} else {
+					// an HTTP/2 body without a Content-Length ends with the stream
+					stream = in;
 				}
 				contentStream = new EOFInputStream(stream);
 			}
@@ -657,7 +1018,7 @@ final class HTTPHandler {
 												if (fileName.startsWith("\"") && fileName.endsWith("\"")) {
 													fileName = fileName.substring(1, fileName.length() - 1);
 												}
-												fileName = Util.urldecode(fileName, false);
+												fileName = PercentDecoder.decode(fileName, false);
 											}
 										} else if (key.equalsIgnoreCase("Content-Length")) {
 											contentLength = Integer.parseInt(val);
@@ -713,16 +1074,24 @@ final class HTTPHandler {
 							tooBig();
 							return;
 						}
-						int icl = (int) incomingContentLength;
-						byte buffer[] = new byte[icl];
-						int writePtr = 0;
-						int amountRead;
-						for (int i = icl; i > 0; i -= amountRead) {
-							amountRead = contentStream.read(buffer, writePtr, icl - writePtr);
-							writePtr += amountRead;
+						if (formBuffer == null) {
+							formBuffer = new byte[8192];
+						}
+						UrlEncodedFormParser formParser = new UrlEncodedFormParser(contentStream, formBuffer, postLimit);
+						ByteArrayOutputStream raw = null;
+						if (server.isKeepingPostData()) {
+							raw = new ByteArrayOutputStream();
+							formParser.setRawOutput(raw);
+						}
+						try {
+							formParser.parse(post);
+						} catch (TooBigException ex) {
+							tooBig();
+							return;
+						}
+						if (raw != null) {
+							postData = new String(raw.toByteArray(), StandardCharsets.UTF_8);
 						}
-						postData = new String(buffer);
-						Util.parseQueryString(postData, post);
 					} finally {
 						if (keepAlive) {
 							contentStream.setEofSequence(null);
@@ -735,12 +1104,21 @@ final class HTTPHandler {
 			}
 
 			req = new HTTPRequest(this, method, requestURI, fullRequestURI, get, post, cookies, headers, uploadedFiles, host, referer, userAgent, contentStream);
+			currentRequest = req;
 			cleanupTasks.add(req::saveSession);
 			cleanupTasks.add(() -> {
+				try {
+					closeWriter();
+				} catch (Exception ignored) {
+				}
+				activeWriter = null;
 				if (contentOutStream != null) {
+					out.holdFlushes(true);
 					try {
 						contentOutStream.flush();
 					} catch (Exception ignored) {
+					} finally {
+						out.holdFlushes(false);
 					}
 					contentOutStream = null;
 				}
@@ -748,11 +1126,11 @@ final class HTTPHandler {
 					chunkOutputStream = null;
 				}
 				try {
-					out.flush();
+					flushUnlessPipelined();
 				} catch (Exception ignored) {
 				}
 			});
-			if (contentStream != null) {
+			if (contentStream != null && h2Stream == null) {
 				final EOFInputStream finalContentStream = contentStream;
 				cleanupTasks.add(() -> {
 					finalContentStream.setEofSequence(null);
@@ -774,6 +1152,96 @@ final class HTTPHandler {
 		}
 	}
 
+	/**
+	 * Answer a plain GET or HEAD request for a {@link StaticResponder} with its
+	 * pre-rendered response, skipping everything else a request goes through.
+	 *
+	 * @return true if the request was answered
+	 */
+	private boolean serveStatic(String method, String target, RequestHeaders headers) throws IOException {
+		if (!usingHeadMethod && !method.equals("GET")) {
+			return false;
+		}
+		int queryStart = target.indexOf('?');
+		String path = queryStart == -1 ? target : target.substring(0, queryStart);
+		if (!path.startsWith("/") || path.indexOf('%') != -1) {
+			return false;
+		}
+		String requestHost = headers.getFirst(RequestHeaders.host);
+		if (requestHost == null
+				|| headers.getFirst(RequestHeaders.contentLength) != null
+				|| headers.getFirst(RequestHeaders.transferEncoding) != null
+				|| headers.getFirst(RequestHeaders.expect) != null
+				|| headers.getFirst(RequestHeaders.upgrade) != null
+				|| headers.getFirst(RequestHeaders.xForwardedHost) != null) {
+			return false;
+		}
+		HTTPResponder responder = server.getResponderRegistry(requestHost).getResponder(path);
+		if (!(responder instanceof StaticResponder)) {
+			return false;
+		}
+		String connection = headers.getFirst(RequestHeaders.connection);
+		if (connection != null && connection.equalsIgnoreCase("close")) {
+			cannotKeepAlive = true;
+			keepAlive(false);
+		}
+		wrote = true;
+		((StaticResponder) responder).write(out, this.headers, keepAlive, usingHeadMethod);
+		flushUnlessPipelined();
+		return true;
+	}
+
+	private boolean readHTTP2Preface() throws IOException {
+		byte[] rest = new byte[HTTP2Connection.prefaceRest.length];
+		for (int i = 0; i < rest.length; i++) {
+			int b = in.read();
+			if (b != (HTTP2Connection.prefaceRest[i] & 0xff)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isHTTP2Upgrade(RequestHeaders headers) {
+		String upgrade = headers.getFirst(RequestHeaders.upgrade);
+		if (upgrade == null || headers.getFirst(RequestHeaders.http2Settings) == null) {
+			return false;
+		}
+		for (String protocol : upgrade.split(",")) {
+			if (protocol.trim().equalsIgnoreCase("h2c")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Switch the connection to HTTP/2 after an <code>Upgrade: h2c</code>
+	 * request, the request is answered as stream 1. This thread reads frames
+	 * until the connection is finished.
+	 */
+	private void upgradeToHTTP2(String method, String target, RequestHeaders headers) throws IOException {
+		byte[] settings;
+		try {
+			settings = Base64.getUrlDecoder().decode(headers.getFirst(RequestHeaders.http2Settings).trim());
+		} catch (IllegalArgumentException e) {
+			badRequest();
+			return;
+		}
+		wrote = true;
+		keepAlive = false;
+		mustEndConnection = true;
+		out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		out.forceFlush();
+		new HTTP2Connection(server, sock, proxiedAddress, in, out, executor).serveUpgrade(settings, method, target, headers);
+	}
+
+	private final RequestParser parser = new RequestParser();
+	private byte[] formBuffer = null;
+	private HTTP2Stream h2Stream = null;
+	private NioTransport.EventLoop eventLoop = null;
+	long idleDeadline = 0L;
+	private int readTimeout = 0;
 	private Thread handlerThread = null;
 	private final List<Runnable> cleanupTasks = new LinkedList<>();
 	private boolean cleanupIsExplicit = false;
@@ -788,15 +1256,6 @@ final class HTTPHandler {
 		return b;
 	}
 
-	private String headerName(String header) {
-		for (String h : headers.keySet()) {
-			if (h.equalsIgnoreCase(header)) {
-				return h;
-			}
-		}
-		return header;
-	}
-
 	private void resetHeaders() {
 		if (wrote) {
 			throw new RuntimeException("Headers already sent, and cannot be modified!");
@@ -804,11 +1263,10 @@ final class HTTPHandler {
 		responseCode = 200;
 		responseHeader = "200 OK";
 		headers.clear();
-		String currentDate = formatDate(System.currentTimeMillis());
-		setHeader("Content-Type", "text/html; charset=utf-8");
-		setHeader("Date", currentDate);
-		setHeader("Server", server.serverName);
-		setHeader("Transfer-Encoding", "chunked");
+		headers.set(ResponseHeaders.contentType, "text/html; charset=utf-8");
+		headers.set(ResponseHeaders.date, DateCache.currentDate());
+		headers.set(ResponseHeaders.server, server.serverName);
+		headers.set(ResponseHeaders.transferEncoding, "chunked");
 		keepAlive(true);
 		chunked = true;
 	}
@@ -832,45 +1290,57 @@ final class HTTPHandler {
 		}
 		if (key.equalsIgnoreCase("Content-Length")) {
 			chunked = false;
-			deleteHeader("Transfer-Encoding");
+			headers.remove(ResponseHeaders.transferEncoding);
 		}
-		key = headerName(key);
-		ArrayList<String> list = new ArrayList<>();
-		headers.put(key, list);
-		list.add(val);
+		headers.set(key, val);
 	}
 
 	void addHeader(String key, String val) {
 		if (key.equalsIgnoreCase("Content-Length")) {
 			chunked = false;
-			deleteHeader("Transfer-Encoding");
+			headers.remove(ResponseHeaders.transferEncoding);
+		}
+		headers.add(key, val);
+	}
+
+	/**
+	 * Get the writer for a response, reusing the one this connection used
+	 * before.
+	 */
+	ResponseWriter responseWriter(HTTPResponse response) {
+		if (responseWriter == null) {
+			responseWriter = new ResponseWriter();
 		}
-		key = headerName(key);
-		List<String> list = headers.get(key);
-		if (list == null) {
-			list = new ArrayList<>();
-			headers.put(key, list);
+		responseWriter.reset(response);
+		activeWriter = responseWriter;
+		return responseWriter;
+	}
+
+	private void closeWriter() throws IOException {
+		if (activeWriter != null) {
+			activeWriter.close();
 		}
-		list.add(val);
+	}
+
+	Map<String, List<String>> getRequestTrailers() {
+		return chunkedIn == null ? Collections.emptyMap() : chunkedIn.getTrailers();
+	}
+
+	void addTrailer(String key, String val) {
+		trailers.add(key);
+		trailers.add(val);
 	}
 
 	void deleteHeader(String key) {
-		key = headerName(key);
 		headers.remove(key);
 	}
 
 	boolean hasHeader(String key) {
-		key = headerName(key);
-		return headers.containsKey(key);
+		return headers.contains(key);
 	}
 
 	String[] getHeader(String key) {
-		key = headerName(key);
-		ArrayList header = (ArrayList) headers.get(key);
-		if (header == null) {
-			return new String[0];
-		}
-		return (String[]) header.toArray(new String[header.size()]);
+		return headers.get(key);
 	}
 
 	void doNotCache() {
@@ -892,37 +1362,174 @@ final class HTTPHandler {
 			return;
 		}
 		wrote = true;
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		Util.writeCRLF("HTTP/1.1 " + responseHeader, baos);
-		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
-			String header = entry.getKey();
-			List<String> list = entry.getValue();
-			for (String str : list) {
-				Util.writeCRLF(header + ": " + str, baos);
-				if (header.equalsIgnoreCase("Content-Length")) {
-					try {
-						outputContentLength = Long.parseLong(str);
-					} catch (Exception e) {
-					}
+		if (h2Stream == null && chunked && !usingHeadMethod && !bufferDisabled && !cleanupIsExplicit
+				&& mayHaveBody() && headers.valueCount(ResponseHeaders.transferEncoding) > 0
+				&& server.getResponseStagingLimit() > 0) {
+			// hold the head and body back in case the whole body fits in the
+			// staging buffer, then it can be sent with a Content-Length
+			staging.start(server.getResponseStagingLimit());
+			contentOutStream = staging;
+			return;
+		}
+		writeHead();
+	}
+
+	/**
+	 * 1xx, 204 and 304 responses never have a body.
+	 */
+	private boolean mayHaveBody() {
+		return responseCode >= 200 && responseCode != 204 && responseCode != 304;
+	}
+
+	private void writeHead() throws IOException {
+		if (!mayHaveBody()) {
+			// no Transfer-Encoding either, and a Content-Length set by the
+			// responder describes the resource, not this response
+			chunked = false;
+			headers.remove(ResponseHeaders.transferEncoding);
+			outputContentLength = 0L;
+		} else {
+			String contentLength = headers.getLast(ResponseHeaders.contentLength);
+			if (contentLength != null) {
+				try {
+					outputContentLength = Long.parseLong(contentLength);
+				} catch (Exception e) {
 				}
 			}
 		}
-		Util.writeCRLF("", baos);
-		write(baos.toByteArray());
-		OutputStream streamToUse;
+		if (h2Stream != null) {
+			chunked = false;
+			h2Stream.writeHeaders(responseCode, headers);
+			contentOutStream = bufferDisabled ? out : new BufferedOutputStream(out);
+			return;
+		}
+		ResponseHead.writeStatusLine(out, responseHeader);
+		for (int i = 0, size = headers.size(); i < size; i++) {
+			ResponseHead.writeHeader(out, headers, i);
+		}
+		ResponseHead.writeEnd(out);
+		// the head stays in the connection buffer and goes out with the
+		// start of the body, the body is written straight into the same
+		// buffer, small writes to a chunked body are collected into bigger
+		// chunks
 		if (chunked) {
-			streamToUse = chunkOutputStream = new ChunkedOutputStream(out);
+			contentOutStream = chunkOutputStream = new ChunkedOutputStream(out, bufferDisabled ? 0 : 8192);
 		} else {
-			streamToUse = out;
+			contentOutStream = out;
 		}
-		contentOutStream = bufferDisabled ? streamToUse : new BufferedOutputStream(streamToUse);
 	}
 
 	void disableBuffer() throws IOException {
 		bufferDisabled = true;
-		if (contentOutStream instanceof BufferedOutputStream) {
+		if (staging.active) {
+			staging.overflow();
+		}
+		if (chunkOutputStream != null) {
+			chunkOutputStream.setMinChunkSize(0);
+		} else if (contentOutStream instanceof BufferedOutputStream) {
 			contentOutStream.flush();
-			contentOutStream = chunkOutputStream == null ? out : chunkOutputStream;
+			contentOutStream = out;
+		}
+	}
+
+	/**
+	 * Holds the start of a response body that has no Content-Length. If the
+	 * responder finishes before the staging limit is reached, the response is
+	 * sent with a Content-Length in one write, otherwise, or if the responder
+	 * flushes, it is sent chunked from the point it overflowed.
+	 */
+	private final class StagingOutputStream extends OutputStream {
+
+		private byte[] buffer = null;
+		private int count = 0;
+		private int limit = 0;
+		boolean active = false;
+
+		void start(int limit) {
+			if (buffer == null || buffer.length < limit) {
+				buffer = new byte[limit];
+			}
+			this.limit = limit;
+			count = 0;
+			active = true;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!active) {
+				contentOutStream.write(b);
+				return;
+			}
+			if (count == limit) {
+				overflow();
+				contentOutStream.write(b);
+				return;
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!active) {
+				contentOutStream.write(b, off, len);
+				return;
+			}
+			if (len > limit - count) {
+				overflow();
+				contentOutStream.write(b, off, len);
+				return;
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (active) {
+				overflow();
+			}
+			contentOutStream.flush();
+		}
+
+		/**
+		 * Send the head as chunked, followed by what was held back.
+		 */
+		void overflow() throws IOException {
+			active = false;
+			writeHead();
+			if (count > 0) {
+				contentOutStream.write(buffer, 0, count);
+			}
+		}
+
+		/**
+		 * Send the whole response with a Content-Length.
+		 */
+		void finish() throws IOException {
+			active = false;
+			headers.remove(ResponseHeaders.transferEncoding);
+			headers.set(ResponseHeaders.contentLength, Integer.toString(count));
+			chunked = false;
+			writeHead();
+			out.write(buffer, 0, count);
+		}
+
+		/**
+		 * Let go of the buffer while the connection is idle.
+		 */
+		void release() {
+			buffer = null;
+		}
+
+		/**
+		 * Throw away what was held back, so that a different response can be
+		 * sent instead.
+		 */
+		void discard() {
+			active = false;
+			wrote = false;
+			writtenBodyLength = 0L;
+			contentOutStream = null;
 		}
 	}
 
@@ -936,39 +1543,31 @@ final class HTTPHandler {
 	}
 
 	String formatDate(long date) {
-		return getSimpleDateFormat().format(new Date(date));
+		return DateCache.format(date, getSimpleDateFormat());
 	}
 
 	long parseDate(String date) {
-		try {
-			return getSimpleDateFormat().parse(date).getTime();
-		} catch (ParseException ex) {
-			return -1L;
-		}
+		return DateCache.parse(date, getSimpleDateFormat());
 	}
 
-	private static String fixString(String s) {
-		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(s.getBytes()), "UTF-8"));
-			s = "";
-			String s2;
-			while ((s2 = reader.readLine()) != null) {
-				s += (s.equals("") ? "" : "\n") + s2;
+	private static void parseCookies(RequestHeaders headers, Map<String, String> cookies) {
+		for (String val : headers.getAll(RequestHeaders.cookie)) {
+			String cookieParts[] = val.split(";");
+			for (String cookiePart : cookieParts) {
+				int equals = cookiePart.indexOf('=');
+				if (equals != -1) {
+					String ckey = cookiePart.substring(0, equals).trim();
+					String cval = cookiePart.substring(equals + 1).trim();
+					cookies.put(PercentDecoder.decode(ckey, true), PercentDecoder.decode(cval, true));
+				} else {
+					cookies.put(PercentDecoder.decode(cookiePart, false), "");
+				}
 			}
-		} catch (Exception e) {
 		}
-		return s;
 	}
 
 	private static byte[] getBytes(String str) {
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		try (Writer writer = new OutputStreamWriter(os, "UTF-8")) {
-			writer.write(str);
-			writer.flush();
-			return os.toByteArray();
-		} catch (Exception e) {
-		}
-		return new byte[]{};
+		return str.getBytes(StandardCharsets.UTF_8);
 	}
 
 	Map<String, String> getCacheMap() {
@@ -979,11 +1578,16 @@ final class HTTPHandler {
 	}
 
 	InetSocketAddress getLocalAddress() {
-		return (InetSocketAddress) sock.getLocalSocketAddress();
+		SocketAddress address = sock.getLocalSocketAddress();
+		return address instanceof InetSocketAddress ? (InetSocketAddress) address : null;
+	}
+
+	SocketAddress getLocalSocketAddress() {
+		return sock.getLocalSocketAddress();
 	}
 
 	boolean isSocketSecure() {
-		return (sock instanceof SSLSocket);
+		return (sock instanceof SSLSocket) || (sock instanceof TLSSocket);
 	}
 
 	final HTTPServer server;
@@ -991,16 +1595,24 @@ final class HTTPHandler {
 	long writtenBodyLength = 0L;
 	long outputContentLength = -1L;
 	private boolean bufferDisabled = false;
+	private final StagingOutputStream staging = new StagingOutputStream();
+	private final List<String> trailers = new ArrayList<>();
+	private ChunkedInputStream chunkedIn = null;
+	private ResponseWriter responseWriter = null;
+	private ResponseWriter activeWriter = null;
+	private HTTPRequest currentRequest = null;
 	ChunkedOutputStream chunkOutputStream = null;
 	OutputStream contentOutStream = null;
 	private Socket sock = null;
 	private InputStream rawIn = null;
-	private InputStream in = null;
+	private ConnectionInputStream in = null;
 	@Deprecated
 	ServerSocket sourceSocket = null;
-	private OutputStream out = null;
+	private ConnectionOutputStream out = null;
 	private InetAddress realInetAddress = null;
 	private InetAddress inetAddress = null;
+	private InetAddress proxiedAddress = null;
+	private boolean proxyHeaderPending = false;
 	String ip = null;
 	private boolean mustEndConnection = false;
 	private boolean noAutoClose = false;
@@ -1014,7 +1626,7 @@ final class HTTPHandler {
 	private Map<String, String> cacheMap = null;
 	private int responseCode = 0;
 	private String responseHeader = null;
-	private final Map<String, List<String>> headers = new HashMap<>();
+	private final ResponseHeaders headers = new ResponseHeaders();
 	boolean chunked = true;
 
 	private boolean isRedirectCode(int code) {//301, 302, 303, 307, 308
@@ -1030,10 +1642,18 @@ final class HTTPHandler {
 		}
 	}
 
+	boolean isHTTP2() {
+		return h2Stream != null;
+	}
+
 	Socket upgradeSocket() {
 		cannotKeepAlive = true;
 		keepAlive = false;
 		noAutoClose = true;
+		try {
+			out.forceFlush();
+		} catch (IOException e) {
+		}
 		return sock;
 	}
 }
@@ -0,0 +1,364 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * The settings for an address that an {@link HTTPServer} listens on. Add it to
+ * the server with {@link HTTPServerBuilder#addListener(HTTPListener)} or
+ * {@link HTTPServerBuilder#addNioListener(HTTPListener)}, it will be bound when
+ * {@link HTTPServer#start()} is called.
+ */
+public final class HTTPListener {
+
+	private final SocketAddress address;
+	private int backlog = 0;
+	private int acceptorThreads = 1;
+	private Boolean tcpNoDelay = null;
+	private Integer sendBufferSize = null;
+	private Integer receiveBufferSize = null;
+	private Boolean keepAlive = null;
+	private boolean proxyProtocol = false;
+	private SSLContext sslContext = null;
+	private int tlsSessionCacheSize = 10000;
+	private int tlsSessionTimeout = 0;
+	private int tlsBufferPoolSize = 256;
+	private BufferPool packetBuffers = null;
+	private BufferPool applicationBuffers = null;
+
+	/**
+	 * Create a listener for the specified address.
+	 *
+	 * @param address the address to listen on
+	 */
+	public HTTPListener(SocketAddress address) {
+		if (address == null) {
+			throw new NullPointerException();
+		}
+		this.address = address;
+	}
+
+	/**
+	 * Create a listener for a Unix domain socket, for running behind a reverse
+	 * proxy on the same host without going through TCP. Connections have no
+	 * peer IP address, so the client's address is taken from the
+	 * X-Forwarded-For header the same way it is for connections from
+	 * loopback, and {@link HTTPRequest#getIPAddress()} is the loopback address
+	 * when the proxy doesn't send one. Requires Java 16 or newer. The socket
+	 * file is deleted when the server stops, or when the server starts if it
+	 * was left behind and nothing is listening on it.
+	 *
+	 * @param path the path of the socket file
+	 * @return the listener
+	 * @throws UnsupportedOperationException if Unix domain sockets are not
+	 * supported by this Java version
+	 */
+	public static HTTPListener forUnixSocket(Path path) {
+		return new HTTPListener(UnixDomainSockets.address(path));
+	}
+
+	public SocketAddress getAddress() {
+		return address;
+	}
+
+	boolean isUnixSocket() {
+		return UnixDomainSockets.isUnixAddress(address);
+	}
+
+	/**
+	 * Set the maximum number of pending connections. Default is 0, which lets
+	 * the system pick.
+	 *
+	 * @param backlog the backlog
+	 * @return this listener
+	 */
+	public HTTPListener setBacklog(int backlog) {
+		this.backlog = backlog;
+		return this;
+	}
+
+	/**
+	 * Set the number of threads that accept connections on this address.
+	 * Default is 1. Not used by the non-blocking transport, where the event
+	 * loops accept connections.
+	 *
+	 * @param acceptorThreads the number of acceptor threads
+	 * @return this listener
+	 */
+	public HTTPListener setAcceptorThreads(int acceptorThreads) {
+		if (acceptorThreads < 1) {
+			throw new IllegalArgumentException("acceptorThreads must be at least 1");
+		}
+		this.acceptorThreads = acceptorThreads;
+		return this;
+	}
+
+	/**
+	 * Set TCP_NODELAY on accepted connections. By default the system default is
+	 * used.
+	 *
+	 * @param tcpNoDelay whether to disable Nagle's algorithm
+	 * @return this listener
+	 */
+	public HTTPListener setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	/**
+	 * Set SO_SNDBUF on accepted connections. By default the system default is
+	 * used.
+	 *
+	 * @param sendBufferSize the send buffer size in bytes
+	 * @return this listener
+	 */
+	public HTTPListener setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+		return this;
+	}
+
+	/**
+	 * Set SO_RCVBUF on accepted connections. By default the system default is
+	 * used.
+	 *
+	 * @param receiveBufferSize the receive buffer size in bytes
+	 * @return this listener
+	 */
+	public HTTPListener setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+		return this;
+	}
+
+	/**
+	 * Set SO_KEEPALIVE on accepted connections. By default the system default
+	 * is used.
+	 *
+	 * @param keepAlive whether to enable TCP keep-alive
+	 * @return this listener
+	 */
+	public HTTPListener setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	/**
+	 * Require a PROXY protocol header, version 1 or 2, at the start of every
+	 * connection. Only enable this for listeners that can only be reached
+	 * through a trusted layer 4 load balancer, since the client address is
+	 * taken from the header as is. Connections without a valid header are
+	 * closed. The address is decoded once per connection, and the
+	 * X-Forwarded-For and CF-Connecting-IP headers are ignored on
+	 * connections that have one.
+	 *
+	 * @param proxyProtocol true to expect the PROXY protocol
+	 * @return this listener
+	 */
+	public HTTPListener setProxyProtocol(boolean proxyProtocol) {
+		this.proxyProtocol = proxyProtocol;
+		return this;
+	}
+
+	/**
+	 * Serve TLS on this listener using the specified context. The handshake is
+	 * done by an event loop, with the engine's CPU heavy tasks on a separate
+	 * pool, so a burst of new connections doesn't tie up responder threads.
+	 * The session cache of the context is bounded according to
+	 * {@link #setTLSSessionCacheSize(int)} when the listener is bound. On Java
+	 * 13 and newer the JDK can also resume sessions from stateless session
+	 * tickets, which is controlled by the
+	 * <code>jdk.tls.server.enableSessionTicketExtension</code> system property.
+	 *
+	 * @param sslContext the context to create the TLS engines with, or null to
+	 * serve plain HTTP
+	 * @return this listener
+	 */
+	public HTTPListener setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of TLS sessions kept for resumption. Default is
+	 * 10000. Resuming a session skips the expensive part of the handshake.
+	 *
+	 * @param tlsSessionCacheSize the number of sessions to keep, 0 for no
+	 * limit
+	 * @return this listener
+	 */
+	public HTTPListener setTLSSessionCacheSize(int tlsSessionCacheSize) {
+		if (tlsSessionCacheSize < 0) {
+			throw new IllegalArgumentException("tlsSessionCacheSize must not be negative");
+		}
+		this.tlsSessionCacheSize = tlsSessionCacheSize;
+		return this;
+	}
+
+	/**
+	 * Set how long TLS sessions can be resumed for. By default the timeout of
+	 * the context is left alone.
+	 *
+	 * @param seconds the session timeout in seconds
+	 * @return this listener
+	 */
+	public HTTPListener setTLSSessionTimeout(int seconds) {
+		if (seconds < 1) {
+			throw new IllegalArgumentException("seconds must be at least 1");
+		}
+		this.tlsSessionTimeout = seconds;
+		return this;
+	}
+
+	/**
+	 * Set the number of direct buffers of each kind kept around for reuse by
+	 * TLS connections. Default is 256.
+	 *
+	 * @param tlsBufferPoolSize the maximum number of pooled buffers
+	 * @return this listener
+	 */
+	public HTTPListener setTLSBufferPoolSize(int tlsBufferPoolSize) {
+		if (tlsBufferPoolSize < 0) {
+			throw new IllegalArgumentException("tlsBufferPoolSize must not be negative");
+		}
+		this.tlsBufferPoolSize = tlsBufferPoolSize;
+		return this;
+	}
+
+	int getAcceptorThreads() {
+		return acceptorThreads;
+	}
+
+	boolean isTLS() {
+		return sslContext != null;
+	}
+
+	boolean isProxyProtocol() {
+		return proxyProtocol;
+	}
+
+	/**
+	 * Get the Socket to handle an accepted connection with.
+	 *
+	 * @param channel the accepted channel
+	 * @return a TLSSocket if this is a TLS listener, a ChannelSocket if the
+	 * channel has no socket of its own, otherwise the channel's socket
+	 * @throws IOException if the socket could not be set up
+	 */
+	Socket newSocket(SocketChannel channel) throws IOException {
+		if (sslContext != null) {
+			return new TLSSocket(channel, sslContext.createSSLEngine(), packetBuffers, applicationBuffers);
+		} else if (isUnixSocket()) {
+			return new ChannelSocket(channel);
+		}
+		return channel.socket();
+	}
+
+	/**
+	 * Get a short description of a bound server channel for thread names.
+	 *
+	 * @param channel the channel returned by {@link #open()}
+	 * @return the port, or the socket file name for Unix domain sockets
+	 */
+	static String describe(ServerSocketChannel channel) {
+		try {
+			SocketAddress local = channel.getLocalAddress();
+			if (local instanceof InetSocketAddress) {
+				return Integer.toString(((InetSocketAddress) local).getPort());
+			}
+			String name = String.valueOf(local);
+			return name.substring(name.lastIndexOf('/') + 1);
+		} catch (IOException e) {
+			return "closed";
+		}
+	}
+
+	/**
+	 * Close a server channel returned by {@link #open()}, and delete its
+	 * socket file if it is a Unix domain socket.
+	 *
+	 * @param channel the channel to close
+	 */
+	static void close(ServerSocketChannel channel) {
+		SocketAddress local = null;
+		try {
+			local = channel.getLocalAddress();
+		} catch (IOException e) {
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		UnixDomainSockets.deleteSocketFile(local);
+	}
+
+	private void initTLS() {
+		SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+		if (sessionContext != null) {
+			sessionContext.setSessionCacheSize(tlsSessionCacheSize);
+			if (tlsSessionTimeout > 0) {
+				sessionContext.setSessionTimeout(tlsSessionTimeout);
+			}
+		}
+		SSLEngine engine = sslContext.createSSLEngine();
+		SSLSession session = engine.getSession();
+		packetBuffers = new BufferPool(session.getPacketBufferSize(), tlsBufferPoolSize);
+		applicationBuffers = new BufferPool(session.getApplicationBufferSize(), tlsBufferPoolSize);
+	}
+
+	ServerSocketChannel open() throws IOException {
+		boolean unix = isUnixSocket();
+		if (sslContext != null) {
+			if (unix) {
+				throw new IOException("TLS is not supported on Unix domain sockets");
+			}
+			initTLS();
+		}
+		ServerSocketChannel channel;
+		if (unix) {
+			UnixDomainSockets.deleteStaleSocketFile(address);
+			channel = UnixDomainSockets.openServerChannel();
+		} else {
+			channel = ServerSocketChannel.open();
+		}
+		try {
+			if (receiveBufferSize != null) {
+				// has to be set before binding for windows larger than 64k
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+			}
+			channel.bind(address, backlog);
+		} catch (IOException e) {
+			try {
+				channel.close();
+			} catch (IOException e2) {
+			}
+			throw e;
+		}
+		return channel;
+	}
+
+	void configure(SocketChannel channel) throws IOException {
+		// Unix domain sockets have no TCP options
+		boolean tcp = !isUnixSocket();
+		if (tcpNoDelay != null && tcp) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+		}
+		if (sendBufferSize != null) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+		if (receiveBufferSize != null) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (keepAlive != null && tcp) {
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketAddress;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -44,7 +45,10 @@ public class HTTPRequest {
 	public final Map<String, String> get;
 	/**
 	 * The data passed in the content data. This may be content from a form
-	 * submitted with the <code>POST</code> method.
+	 * submitted with the <code>POST</code> method. Unlike {@link #get} and
+	 * {@link #cookies}, this is not decoded lazily, an
+	 * application/x-www-form-urlencoded body is decoded while it is read,
+	 * before the responder is called.
 	 */
 	public final Map<String, String> post;
 	/**
@@ -55,6 +59,7 @@ public class HTTPRequest {
 	 * The HTTP request headers
 	 */
 	public final Map<String, List<String>> headers;
+	private final RequestHeaders requestHeaders;
 	/**
 	 * The files uploaded. Files will only appear in this list if form
 	 * enctype="multipart/form-data" and form is submitted with POST.
@@ -74,7 +79,8 @@ public class HTTPRequest {
 	public final String userAgent;
 	/**
 	 * Post data exactly as it was sent to the server.
-	 * (application/x-www-form-urlencoded only)
+	 * (application/x-www-form-urlencoded only, and only if the server is
+	 * keeping it, see {@link HTTPServer#setKeepingPostData(boolean)})
 	 */
 	public final String postData;
 	/**
@@ -116,12 +122,23 @@ public class HTTPRequest {
 	/**
 	 * Returns the Address that the User Agent has connected to.
 	 *
-	 * @return the InetSocketAddress
+	 * @return the InetSocketAddress, or null if the connection was not made
+	 * over IP, such as on a Unix domain socket
 	 */
 	public InetSocketAddress getLocalAddress() {
 		return handler.getLocalAddress();
 	}
 
+	/**
+	 * Returns the address that the User Agent has connected to, including
+	 * addresses that are not IP addresses such as Unix domain sockets.
+	 *
+	 * @return the SocketAddress
+	 */
+	public SocketAddress getLocalSocketAddress() {
+		return handler.getLocalSocketAddress();
+	}
+
 	/**
 	 * Returns the Map of the current connection. NOTE: Every page load is NOT
 	 * guaranteed to keep the same Map. Use this for caching purposes only.
@@ -139,11 +156,7 @@ public class HTTPRequest {
 	 * @return the header
 	 */
 	public String getHeader(String header) {
-		List<String> g = headers.get(header);
-		if (g != null && !g.isEmpty()) {
-			return g.get(0);
-		}
-		return null;
+		return requestHeaders.getFirst(header);
 	}
 
 	/**
@@ -153,7 +166,17 @@ public class HTTPRequest {
 	 * @return the headers
 	 */
 	public List<String> getHeaders(String header) {
-		return headers.get(header);
+		return requestHeaders.getAll(header);
+	}
+
+	/**
+	 * Get the trailers sent after a chunked request body. They are only
+	 * available once the body has been read to the end.
+	 *
+	 * @return the trailers, an empty map if there are none
+	 */
+	public Map<String, List<String>> getTrailers() {
+		return handler.getRequestTrailers();
 	}
 
 	/**
@@ -259,7 +282,7 @@ public class HTTPRequest {
 		}
 	}
 
-	HTTPRequest(HTTPHandler handler, String method, String url, String fullUrl, Map<String, String> get, Map<String, String> post, Map<String, String> cookies, Map<String, List<String>> headers, Map<String, UploadedFile> uploadedFiles, String host, String referer, String userAgent, InputStream inStream) {
+	HTTPRequest(HTTPHandler handler, String method, String url, String fullUrl, Map<String, String> get, Map<String, String> post, Map<String, String> cookies, RequestHeaders headers, Map<String, UploadedFile> uploadedFiles, String host, String referer, String userAgent, InputStream inStream) {
 		this.server = handler.server;
 		this.handler = handler;
 		this.response = new HTTPResponse(this);
@@ -270,6 +293,7 @@ public class HTTPRequest {
 		this.post = post;
 		this.cookies = cookies;
 		this.headers = headers;
+		this.requestHeaders = headers;
 		this.uploadedFiles = Collections.unmodifiableMap(uploadedFiles);
 		this.host = host;
 		this.referer = referer;
@@ -280,7 +304,7 @@ public class HTTPRequest {
 
 	public String getRequestEtag() {
 		try {
-			List<String> clientETag = headers.get("If-None-Match");
+			List<String> clientETag = getHeaders("If-None-Match");
 			if (clientETag != null && !clientETag.isEmpty()) {
 				String theETag = clientETag.get(0);
 				if (theETag.startsWith("\"") && theETag.endsWith("\"")) {
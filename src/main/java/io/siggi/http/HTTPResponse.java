@@ -7,6 +7,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -25,6 +26,7 @@ public class HTTPResponse extends OutputStream {
 	private final HTTPRequest request;
 	private boolean chunked = true;
 	private boolean closed = false;
+	private ResponseWriter writer = null;
 
 	private void throwIOIfClosed() throws IOException {
 		if (closed) throw new IOException("Already closed");
@@ -131,7 +133,7 @@ public class HTTPResponse extends OutputStream {
 		boolean partialContent = false;
 		long partialStart = 0L;
 		long partialEnd = 0L;
-		List<String> rangeHeaders = request.headers.get("Range");
+		List<String> rangeHeaders = request.getHeaders("Range");
 		if (rangeHeaders != null && !rangeHeaders.isEmpty()) {
 			try {
 				if (rangeHeaders.size() == 1) {
@@ -170,14 +172,14 @@ public class HTTPResponse extends OutputStream {
 		}
 		boolean sendFile = true;
 		if (eTag != null) { // Compare ETag
-			List<String> clientETag = request.headers.get("If-None-Match");
+			List<String> clientETag = request.getHeaders("If-None-Match");
 			if (clientETag != null && !clientETag.isEmpty()) {
 				String theETag = clientETag.get(0);
 				if (theETag.equals(eTag) || theETag.equals("\"" + eTag + "\"")) {
 					sendFile = false;
 				}
 			}
-			List<String> rangeETag = request.headers.get("If-Range");
+			List<String> rangeETag = request.getHeaders("If-Range");
 			if (rangeETag != null && !rangeETag.isEmpty()) {
 				String theETag = rangeETag.get(0);
 				if (theETag.equals(eTag) || theETag.equals("\"" + eTag + "\"")) {
@@ -185,7 +187,7 @@ public class HTTPResponse extends OutputStream {
 				}
 			}
 		}
-		List<String> ifModifiedSinceH = request.headers.get("If-Modified-Since");
+		List<String> ifModifiedSinceH = request.getHeaders("If-Modified-Since");
 		if (ifModifiedSinceH != null && !ifModifiedSinceH.isEmpty()) {
 			long check = parseDate(ifModifiedSinceH.get(0));
 			check -= check % 1000;
@@ -409,11 +411,21 @@ public class HTTPResponse extends OutputStream {
 	}
 
 	/**
-	 * This will flush unsent data in the connection immediately.
+	 * This will flush unsent data in the connection immediately. The headers
+	 * are normally held back until the first part of the body is flushed, so
+	 * they go out in the same packet. If nothing has been written yet, this
+	 * sends the headers right away, which is useful when the body will be
+	 * streamed and the client should get the headers before it starts.
 	 */
 	@Override
 	public void flush() throws IOException {
 		throwIOIfClosed();
+		if (writer != null) {
+			writer.push(false);
+		}
+		if (!request.handler.wrote) {
+			request.handler.writeHeaders();
+		}
 		if (request.handler.contentOutStream != null)
 			request.handler.contentOutStream.flush();
 	}
@@ -434,6 +446,13 @@ public class HTTPResponse extends OutputStream {
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
 		throwIOIfClosed();
+		if (writer != null) {
+			writer.push(false);
+		}
+		writeBody(b, off, len);
+	}
+
+	void writeBody(byte[] b, int off, int len) throws IOException {
 		if (!request.handler.wrote) {
 			request.handler.writeHeaders();
 		}
@@ -450,6 +469,9 @@ public class HTTPResponse extends OutputStream {
 	@Override
 	public void write(int b) throws IOException {
 		throwIOIfClosed();
+		if (writer != null) {
+			writer.push(false);
+		}
 		if (!request.handler.wrote) {
 			request.handler.writeHeaders();
 		}
@@ -479,7 +501,26 @@ public class HTTPResponse extends OutputStream {
 	 * Writes <code>string</code> as UTF-8 to the output stream.
 	 */
 	public void write(String string) throws IOException {
-		write(getBytes(string));
+		throwIOIfClosed();
+		writer().write(string);
+	}
+
+	/**
+	 * Get a Writer that writes text as UTF-8 to this response. The same
+	 * Writer is returned every time, and it can be mixed with writing bytes
+	 * directly to the response. Text is collected and encoded in batches,
+	 * it is sent when the response is finished, or right away when either
+	 * the Writer or the response is flushed. Closing the Writer does not
+	 * close the response.
+	 *
+	 * @return the Writer
+	 */
+	public Writer writer() {
+		throwIllegalIfClosed();
+		if (writer == null) {
+			writer = request.handler.responseWriter(this);
+		}
+		return writer;
 	}
 
 	/**
@@ -524,6 +565,17 @@ public class HTTPResponse extends OutputStream {
 		request.handler.addHeader(key, value);
 	}
 
+	/**
+	 * Adds a trailer, a header sent after the body. Trailers are only sent
+	 * with a chunked body over HTTP/1.1, a response that would otherwise be
+	 * sent with a Content-Length because it was small is sent chunked
+	 * instead. Trailers can be added until the response is finished.
+	 */
+	public void addTrailer(String key, String value) {
+		throwIllegalIfClosed();
+		request.handler.addTrailer(key, value);
+	}
+
 	/**
 	 * When using Set-Cookie, adds one cookie header. With all other headers,
 	 * replaces all headers with the key <code>key</code> and with the new
@@ -614,6 +666,9 @@ public class HTTPResponse extends OutputStream {
 
 	public Socket upgradeConnection(String upgradeHeader) throws IOException {
 		throwIOIfClosed();
+		if (request.handler.isHTTP2()) {
+			throw new IOException("Connections can't be upgraded over HTTP/2");
+		}
 		setHeader("101 Switching Protocols");
 		deleteHeader("Content-Type");
 		deleteHeader("Keep-Alive");
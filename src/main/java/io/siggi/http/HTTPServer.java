@@ -10,7 +10,10 @@ import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -18,12 +21,14 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public final class HTTPServer {
 
 	private static final String version;
 	private static final boolean snapshot;
+	private static final String signature;
 
 	static {
 		String ver = "UNKNOWN";
@@ -42,6 +47,7 @@ public final class HTTPServer {
 		}
 		version = ver;
 		snapshot = snap;
+		signature = "SiggiHTTP " + version + (snapshot ? " (snapshot)" : "") + ", an HTTP server by Siggi - made with &hearts; on Planet Earth!";
 	}
 
 	/**
@@ -62,7 +68,7 @@ public final class HTTPServer {
 		return snapshot;
 	}
 
-	HTTPServer(Sessions sessions, String sessionCookieName, File tmpDir, Executor executor) {
+	HTTPServer(Sessions sessions, String sessionCookieName, File tmpDir, Executor executor, List<HTTPListener> listeners, List<HTTPListener> nioListeners, int nioEventLoops, boolean http2Enabled) {
 		this.port = -1;
 		startedProcessing = true;
 		if (sessions != null) {
@@ -73,11 +79,98 @@ public final class HTTPServer {
 		}
 		this.tmpDir = tmpDir;
 		this.executor = executor;
+		this.listeners = new ArrayList<>(listeners);
+		this.nioListeners = new ArrayList<>(nioListeners);
+		this.nioEventLoops = nioEventLoops;
+		this.http2Enabled = http2Enabled;
 		addDefaultTrustedIPs();
 	}
 
 	/**
-	 * Handle the socket. This method will start a new Thread.
+	 * Start listening on the listeners that were added to the
+	 * {@link HTTPServerBuilder}. Does nothing if the server is already started.
+	 *
+	 * @throws IOException if one of the addresses could not be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		startedProcessing = true;
+		running = true;
+		try {
+			for (HTTPListener listener : listeners) {
+				ServerSocketChannel channel = listener.open();
+				listenerChannels.add(channel);
+				String name = HTTPListener.describe(channel);
+				for (int i = 0; i < listener.getAcceptorThreads(); i++) {
+					new Thread(new Acceptor(this, listener, channel), "HTTPServer-Acceptor-" + name + "-" + i).start();
+				}
+			}
+			if (!nioListeners.isEmpty()) {
+				nioTransport = new NioTransport(this, executor, nioEventLoops, "HTTPServer-EventLoop", false);
+				for (HTTPListener listener : nioListeners) {
+					nioTransport.bind(listener);
+				}
+				nioTransport.start();
+			}
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop listening on the listeners that were added to the
+	 * {@link HTTPServerBuilder}, and close idle connections. Requests that are
+	 * already being processed are allowed to finish.
+	 */
+	public synchronized void stop() {
+		running = false;
+		for (ServerSocketChannel channel : listenerChannels) {
+			HTTPListener.close(channel);
+		}
+		listenerChannels.clear();
+		if (nioTransport != null) {
+			nioTransport.stop();
+			nioTransport = null;
+		}
+		if (idleConnectionWatcher != null) {
+			idleConnectionWatcher.stop();
+			idleConnectionWatcher = null;
+		}
+	}
+
+	/**
+	 * Get the event loop that watches idle keep-alive connections passed to
+	 * {@link #handle(Socket)} between requests, starting it if necessary.
+	 *
+	 * @return the event loop, or null if it could not be started
+	 */
+	NioTransport.EventLoop getIdleConnectionWatcher() {
+		NioTransport watcher = idleConnectionWatcher;
+		if (watcher == null) {
+			synchronized (this) {
+				watcher = idleConnectionWatcher;
+				if (watcher == null) {
+					try {
+						watcher = new NioTransport(this, executor, 1, "HTTPServer-IdleConnectionWatcher", true);
+					} catch (IOException e) {
+						return null;
+					}
+					watcher.start();
+					idleConnectionWatcher = watcher;
+				}
+			}
+		}
+		return watcher.nextLoop();
+	}
+
+	/**
+	 * Handle the socket. This method will start a new Thread. If the socket
+	 * was created by a {@link java.nio.channels.SocketChannel}, the connection
+	 * is parked in a shared selector while it is idle between requests instead
+	 * of blocking a thread.
 	 *
 	 * @param socket The Socket to use
 	 * @throws java.io.IOException if something goes wrong
@@ -100,7 +193,40 @@ public final class HTTPServer {
 		if (!startedProcessing) {
 			startedProcessing = true;
 		}
-		new HTTPHandler(this, socket, preRead, executor).start();
+		NioTransport.EventLoop watcher = null;
+		if (preRead == null && socket.getChannel() != null) {
+			watcher = getIdleConnectionWatcher();
+		}
+		new HTTPHandler(this, socket, preRead, executor, watcher).start();
+	}
+
+	/**
+	 * Handle a connection accepted by one of the blocking listeners. TLS
+	 * connections are parked in the idle connection watcher, so the handshake
+	 * and the first request head are read before a thread is used.
+	 *
+	 * @param listener the listener that accepted the connection
+	 * @param channel the accepted channel
+	 * @throws IOException if the connection could not be set up
+	 */
+	void handle(HTTPListener listener, SocketChannel channel) throws IOException {
+		if (!startedProcessing) {
+			startedProcessing = true;
+		}
+		Socket socket = listener.newSocket(channel);
+		NioTransport.EventLoop watcher = getIdleConnectionWatcher();
+		if (watcher == null && socket instanceof TLSSocket) {
+			throw new IOException("The idle connection watcher could not be started");
+		}
+		HTTPHandler handler = new HTTPHandler(this, socket, null, executor, watcher);
+		if (listener.isProxyProtocol()) {
+			handler.expectProxyHeader();
+		}
+		if (socket instanceof TLSSocket) {
+			watcher.park(handler);
+		} else {
+			handler.start();
+		}
 	}
 
 	/**
@@ -272,7 +398,7 @@ public final class HTTPServer {
 	}
 
 	String getServerSignature(String host) {
-		return "SiggiHTTP " + getVersion() + (isSnapshot() ? " (snapshot)" : "") + ", an HTTP server by Siggi - made with &hearts; on Planet Earth!";
+		return signature;
 	}
 
 	/**
@@ -456,6 +582,14 @@ public final class HTTPServer {
 
 	private final File tmpDir;
 	private final Executor executor;
+	private List<HTTPListener> listeners = Collections.emptyList();
+	private List<HTTPListener> nioListeners = Collections.emptyList();
+	private final List<ServerSocketChannel> listenerChannels = new ArrayList<>();
+	private boolean running = false;
+	private int nioEventLoops = 0;
+	private NioTransport nioTransport = null;
+	private boolean http2Enabled = false;
+	private volatile NioTransport idleConnectionWatcher = null;
 
 	/**
 	 * Get the Sessions object for this HTTPServer.
@@ -524,6 +658,29 @@ public final class HTTPServer {
 		this.postLimit = postLimit;
 	}
 
+	private boolean keepingPostData = false;
+
+	/**
+	 * Returns whether the raw body of application/x-www-form-urlencoded
+	 * requests is kept in {@link HTTPRequest#postData}.
+	 *
+	 * @return true if the raw body is kept
+	 */
+	public boolean isKeepingPostData() {
+		return keepingPostData;
+	}
+
+	/**
+	 * Set whether the raw body of application/x-www-form-urlencoded requests
+	 * is kept in {@link HTTPRequest#postData}, false by default. The form is
+	 * decoded into {@link HTTPRequest#post} either way.
+	 *
+	 * @param keep whether to keep the raw body
+	 */
+	public void setKeepingPostData(boolean keep) {
+		this.keepingPostData = keep;
+	}
+
 	private long uploadLimit = 2147483648L;
 
 	/**
@@ -547,6 +704,17 @@ public final class HTTPServer {
 		this.uploadLimit = uploadLimit;
 	}
 
+	/**
+	 * Check if cleartext HTTP/2 is accepted, either with prior knowledge or by
+	 * upgrading an HTTP/1.1 connection.
+	 *
+	 * @return true if HTTP/2 is enabled
+	 * @see HTTPServerBuilder#setHTTP2Enabled(boolean)
+	 */
+	public boolean isHTTP2Enabled() {
+		return http2Enabled;
+	}
+
 	private int headerSizeLimit = 16384;
 
 	/**
@@ -587,6 +755,138 @@ public final class HTTPServer {
 		this.requestURISizeLimit = requestURISizeLimit;
 	}
 
+	private volatile boolean productionMode = false;
+
+	/**
+	 * Check if the server is in production mode.
+	 *
+	 * @return true if the server is in production mode
+	 * @see #setProductionMode(boolean)
+	 */
+	public boolean isProductionMode() {
+		return productionMode;
+	}
+
+	/**
+	 * Set production mode, off by default. In production mode, error pages
+	 * never show stack traces, they are the same every time and are sent from
+	 * a cache, and exceptions go to the error reporter. If none was set, a
+	 * single line without the stack trace is printed to standard error for
+	 * each exception.
+	 *
+	 * @param productionMode true to turn on production mode
+	 */
+	public void setProductionMode(boolean productionMode) {
+		this.productionMode = productionMode;
+	}
+
+	private volatile ErrorReporter errorReporter = null;
+	private volatile int errorReportLimit = 10;
+	private final ReentrantLock errorReportLock = new ReentrantLock();
+	private long errorReportSecond = 0L;
+	private int errorReportsThisSecond = 0;
+	private int suppressedErrorReports = 0;
+
+	/**
+	 * Set the error reporter, which receives the exceptions thrown while
+	 * handling requests. Without one, exceptions are printed to standard
+	 * error in production mode, and not reported otherwise.
+	 *
+	 * @param errorReporter the error reporter, or null to remove it
+	 */
+	public void setErrorReporter(ErrorReporter errorReporter) {
+		this.errorReporter = errorReporter;
+	}
+
+	public ErrorReporter getErrorReporter() {
+		return errorReporter;
+	}
+
+	/**
+	 * Set the most exceptions reported per second, further exceptions in the
+	 * same second are only counted. Default is 10.
+	 *
+	 * @param errorReportLimit the most reports per second
+	 */
+	public void setErrorReportLimit(int errorReportLimit) {
+		this.errorReportLimit = errorReportLimit;
+	}
+
+	public int getErrorReportLimit() {
+		return errorReportLimit;
+	}
+
+	void reportError(HTTPRequest request, Throwable error) {
+		ErrorReporter reporter = errorReporter;
+		if (reporter == null) {
+			if (!productionMode) {
+				return;
+			}
+			reporter = HTTPServer::printError;
+		}
+		long second = System.currentTimeMillis() / 1000L;
+		int suppressed;
+		errorReportLock.lock();
+		try {
+			if (second != errorReportSecond) {
+				errorReportSecond = second;
+				errorReportsThisSecond = 0;
+			}
+			if (errorReportsThisSecond >= errorReportLimit) {
+				suppressedErrorReports++;
+				return;
+			}
+			errorReportsThisSecond++;
+			suppressed = suppressedErrorReports;
+			suppressedErrorReports = 0;
+		} finally {
+			errorReportLock.unlock();
+		}
+		try {
+			reporter.report(request, error, suppressed);
+		} catch (Exception e) {
+		}
+	}
+
+	/**
+	 * The default error reporter, prints a single line for each error, the
+	 * stack trace is left out so that an error storm stays cheap.
+	 */
+	private static void printError(HTTPRequest request, Throwable error, int suppressed) {
+		System.err.println("Server error"
+				+ (request == null ? "" : " (" + request.method + " " + request.fullUrl + ")")
+				+ ": " + error
+				+ (suppressed > 0 ? " (" + suppressed + " more errors were not reported)" : ""));
+	}
+
+	private int responseStagingLimit = 16384;
+
+	/**
+	 * Get the largest response body that is held back so it can be sent with a
+	 * Content-Length. Default is 16 kB.
+	 *
+	 * @return the response staging limit in bytes
+	 */
+	public int getResponseStagingLimit() {
+		return responseStagingLimit;
+	}
+
+	/**
+	 * Set the largest response body that is held back so it can be sent with a
+	 * Content-Length. Responses that don't set a Content-Length are collected
+	 * up to this size, if the responder finishes within it, the response is
+	 * sent with a Content-Length, otherwise it is sent chunked. Default is 16
+	 * kB, 0 sends every such response chunked.
+	 *
+	 * @param responseStagingLimit the new response staging limit
+	 */
+	public void setResponseStagingLimit(int responseStagingLimit) {
+		if (responseStagingLimit < 0) {
+			throw new IllegalArgumentException("responseStagingLimit can't be negative");
+		}
+		this.responseStagingLimit = responseStagingLimit;
+	}
+
 	private boolean ignoringMultipartFormData = false;
 
 	/**
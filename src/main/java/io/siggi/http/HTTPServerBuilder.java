@@ -2,6 +2,9 @@ package io.siggi.http;
 
 import io.siggi.http.session.Sessions;
 import java.io.File;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
 
@@ -11,6 +14,10 @@ public final class HTTPServerBuilder {
 	private String sessionCookieName;
 	private File tmpDir;
 	private Executor executor;
+	private final List<HTTPListener> listeners = new ArrayList<>();
+	private final List<HTTPListener> nioListeners = new ArrayList<>();
+	private int nioEventLoops = Runtime.getRuntime().availableProcessors();
+	private boolean http2Enabled = false;
 
 	public HTTPServerBuilder() {
 		tmpDir = new File(System.getProperty("java.io.tmpdir"));
@@ -36,7 +43,110 @@ public final class HTTPServerBuilder {
 		return this;
 	}
 
+	/**
+	 * Handle each connection on its own virtual thread instead of a platform
+	 * thread. This replaces any executor set with
+	 * {@link #setExecutor(Executor)}. Requires Java 21 or newer.
+	 *
+	 * @return this builder
+	 * @throws UnsupportedOperationException if virtual threads are not
+	 * available on this Java version
+	 */
+	public HTTPServerBuilder useVirtualThreads() {
+		this.executor = VirtualThreads.newExecutor();
+		return this;
+	}
+
+	/**
+	 * Listen on the specified address once {@link HTTPServer#start()} is
+	 * called. Each connection is handled the same way as sockets passed to
+	 * {@link HTTPServer#handle(java.net.Socket)}.
+	 *
+	 * @param address the address to listen on
+	 * @return this builder
+	 */
+	public HTTPServerBuilder addListener(SocketAddress address) {
+		return addListener(new HTTPListener(address));
+	}
+
+	/**
+	 * Listen on an address once {@link HTTPServer#start()} is called, using
+	 * the backlog, acceptor threads and socket options of the listener. Each
+	 * connection is handled the same way as sockets passed to
+	 * {@link HTTPServer#handle(java.net.Socket)}.
+	 *
+	 * @param listener the listener to add
+	 * @return this builder
+	 */
+	public HTTPServerBuilder addListener(HTTPListener listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		listeners.add(listener);
+		return this;
+	}
+
+	/**
+	 * Listen on the specified address using the non-blocking transport once
+	 * {@link HTTPServer#start()} is called. Connections are accepted and
+	 * request heads are read by a small number of event loops, and only
+	 * complete requests are handed to the executor.
+	 *
+	 * @param address the address to listen on
+	 * @return this builder
+	 */
+	public HTTPServerBuilder addNioListener(SocketAddress address) {
+		return addNioListener(new HTTPListener(address));
+	}
+
+	/**
+	 * Same as {@link #addNioListener(SocketAddress)}, but uses the backlog and
+	 * socket options of the listener. The acceptor thread count is not used,
+	 * connections are accepted by the event loops.
+	 *
+	 * @param listener the listener to add
+	 * @return this builder
+	 */
+	public HTTPServerBuilder addNioListener(HTTPListener listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		nioListeners.add(listener);
+		return this;
+	}
+
+	/**
+	 * Set the number of event loops used by the non-blocking transport.
+	 * Default is the number of available processors.
+	 *
+	 * @param eventLoops the number of event loops
+	 * @return this builder
+	 */
+	public HTTPServerBuilder setNioEventLoops(int eventLoops) {
+		if (eventLoops < 1) {
+			throw new IllegalArgumentException("eventLoops must be at least 1");
+		}
+		this.nioEventLoops = eventLoops;
+		return this;
+	}
+
+	/**
+	 * Accept cleartext HTTP/2 (h2c) on all connections, both from clients that
+	 * start with the HTTP/2 connection preface and from HTTP/1.1 requests that
+	 * ask for <code>Upgrade: h2c</code>. Each stream is handled like a regular
+	 * request, so responders don't need any changes. While a connection is
+	 * using HTTP/2, one thread reads its frames for as long as it stays open.
+	 * Default is false.
+	 *
+	 * @param http2Enabled whether to accept HTTP/2
+	 * @return this builder
+	 */
+	public HTTPServerBuilder setHTTP2Enabled(boolean http2Enabled) {
+		this.http2Enabled = http2Enabled;
+		return this;
+	}
+
 	public HTTPServer build() {
-		return new HTTPServer(sessions, sessionCookieName, tmpDir, executor);
+		return new HTTPServer(sessions, sessionCookieName, tmpDir, executor, listeners, nioListeners, nioEventLoops, http2Enabled);
 	}
 }
@@ -0,0 +1,117 @@
+package io.siggi.http;
+
+import java.io.IOException;
+
+/**
+ * The static Huffman code used by HPACK (RFC 7541, Appendix B). The code is
+ * canonical, so it is fully described by the code length of each symbol, the
+ * codes themselves are assigned in order of length and then symbol.
+ */
+final class Huffman {
+
+	private static final byte[] codeLengths = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+		30 // EOS
+	};
+	private static final int eos = 256;
+
+	/**
+	 * The decoding tree. Each internal node takes two slots, one for each bit.
+	 * A positive value is the index of the next node, a negative value is a
+	 * leaf holding the symbol <code>~value</code>.
+	 */
+	private static final int[] tree;
+
+	static {
+		int[] codes = new int[codeLengths.length];
+		int code = 0;
+		int assigned = 0;
+		for (int length = 1; length <= 30; length++) {
+			for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+				if (codeLengths[symbol] == length) {
+					codes[symbol] = code++;
+					assigned++;
+				}
+			}
+			if (assigned < codeLengths.length) {
+				code <<= 1;
+			}
+		}
+		tree = new int[codeLengths.length * 4];
+		int nodes = 1;
+		for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+			int node = 0;
+			for (int bit = codeLengths[symbol] - 1; bit >= 0; bit--) {
+				int slot = node * 2 + ((codes[symbol] >>> bit) & 1);
+				if (bit == 0) {
+					tree[slot] = ~symbol;
+				} else {
+					if (tree[slot] == 0) {
+						tree[slot] = nodes++;
+					}
+					node = tree[slot];
+				}
+			}
+		}
+	}
+
+	private Huffman() {
+	}
+
+	/**
+	 * Decode a Huffman encoded string.
+	 *
+	 * @param data the buffer holding the encoded string
+	 * @param offset the start of the encoded string
+	 * @param length the length of the encoded string
+	 * @param out where to put the decoded bytes, must be able to hold at least
+	 * <code>length * 8 / 5</code> bytes
+	 * @return the number of decoded bytes
+	 * @throws IOException if the string is not validly encoded
+	 */
+	static int decode(byte[] data, int offset, int length, byte[] out) throws IOException {
+		int count = 0;
+		int node = 0;
+		int depth = 0;
+		boolean allOnes = true;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			int b = data[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int one = (b >>> bit) & 1;
+				int next = tree[node * 2 + one];
+				depth++;
+				allOnes &= one == 1;
+				if (next < 0) {
+					if (~next == eos) {
+						throw new IOException("EOS in Huffman string");
+					}
+					out[count++] = (byte) ~next;
+					node = 0;
+					depth = 0;
+					allOnes = true;
+				} else {
+					node = next;
+				}
+			}
+		}
+		if (depth > 7 || !allOnes) {
+			throw new IOException("Invalid Huffman padding");
+		}
+		return count;
+	}
+}
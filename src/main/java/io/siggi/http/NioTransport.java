@@ -0,0 +1,328 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport for {@link HTTPServer}. A small number of event loops
+ * accept connections and read request heads using a {@link Selector}, and a
+ * connection is only handed to the executor once a complete request head has
+ * arrived. The responder then runs on a blocking socket exactly like it does
+ * for sockets passed to {@link HTTPServer#handle(java.net.Socket)}.
+ * Between requests, keep-alive connections are given back to their event loop
+ * so that an idle connection doesn't hold on to a thread.
+ */
+final class NioTransport {
+
+	private final HTTPServer server;
+	private final Executor executor;
+	private final EventLoop[] loops;
+	private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private volatile boolean stopped = false;
+
+	NioTransport(HTTPServer server, Executor executor, int eventLoops, String threadName, boolean daemon) throws IOException {
+		this.server = server;
+		this.executor = executor;
+		this.loops = new EventLoop[Math.max(1, eventLoops)];
+		try {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(threadName + "-" + i, daemon);
+			}
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Bind a new server channel for the specified listener and start accepting
+	 * connections on it.
+	 *
+	 * @param listener the listener to bind
+	 * @throws IOException if the address could not be bound
+	 */
+	void bind(HTTPListener listener) throws IOException {
+		ServerSocketChannel channel = listener.open();
+		serverChannels.add(channel);
+		channel.configureBlocking(false);
+		EventLoop loop = nextLoop();
+		loop.execute(() -> loop.registerServer(channel, listener));
+	}
+
+	void start() {
+		if (stopped) {
+			return;
+		}
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Close the server channels and stop the event loops. This may be called
+	 * before {@link #start()}, such as when binding a listener failed, and
+	 * the transport can't be started again afterwards.
+	 */
+	void stop() {
+		stopped = true;
+		for (ServerSocketChannel channel : serverChannels) {
+			HTTPListener.close(channel);
+		}
+		for (EventLoop loop : loops) {
+			if (loop == null) {
+				continue;
+			}
+			if (loop.thread.getState() == Thread.State.NEW) {
+				// the loop never ran, so it won't close its own selector
+				loop.closeSelector();
+			} else {
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	EventLoop nextLoop() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+
+	final class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Thread thread;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final List<HTTPHandler> ready = new ArrayList<>();
+		private final List<SelectionKey> pausedAccepts = new ArrayList<>();
+		private long acceptBackoff = 0L;
+		private long resumeAcceptingAt = 0L;
+
+		private EventLoop(String name, boolean daemon) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, name);
+			thread.setDaemon(daemon);
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Give a connection to this event loop until its next request head has
+		 * arrived. May be called from any thread.
+		 *
+		 * @param handler the handler of the connection
+		 */
+		void park(HTTPHandler handler) {
+			if (stopped) {
+				handler.closeSocket();
+				return;
+			}
+			handler.idleDeadline = System.currentTimeMillis() + handler.getIdleTimeout();
+			execute(() -> {
+				try {
+					SocketChannel channel = handler.getChannel();
+					handler.setNonBlocking();
+					// a TLS connection may have records that were read from
+					// the socket but not decrypted yet, and it may still have
+					// to do its handshake
+					int result = handler.hasCompleteHead() ? 1 : (handler.isTLS() ? handler.readHead() : 0);
+					if (result < 0) {
+						handler.closeSocket();
+					} else if (result > 0) {
+						ready.add(handler);
+					} else {
+						channel.register(selector, handler.interestOps(), handler);
+					}
+				} catch (IOException | RuntimeException e) {
+					handler.closeSocket();
+				}
+			});
+		}
+
+		/**
+		 * Continue with a connection whose TLS handshake task finished on
+		 * another thread. May be called from any thread.
+		 *
+		 * @param handler the handler of the connection
+		 */
+		void resume(HTTPHandler handler) {
+			execute(() -> {
+				SelectionKey key = handler.getChannel().keyFor(selector);
+				if (key != null && key.isValid()) {
+					read(key);
+				}
+			});
+		}
+
+		private void registerServer(ServerSocketChannel channel, HTTPListener listener) {
+			try {
+				channel.register(selector, SelectionKey.OP_ACCEPT, listener);
+			} catch (IOException | RuntimeException e) {
+			}
+		}
+
+		@Override
+		public void run() {
+			long nextSweep = 0L;
+			try {
+				while (!stopped) {
+					long timeout = 1000L;
+					if (!pausedAccepts.isEmpty()) {
+						timeout = Math.max(1L, Math.min(timeout, resumeAcceptingAt - System.currentTimeMillis()));
+					}
+					selector.select(timeout);
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept(key);
+						} else if (key.isReadable() || key.isWritable()) {
+							read(key);
+						}
+					}
+					dispatchReady();
+					long now = System.currentTimeMillis();
+					if (!pausedAccepts.isEmpty() && now >= resumeAcceptingAt) {
+						for (SelectionKey key : pausedAccepts) {
+							if (key.isValid()) {
+								key.interestOps(SelectionKey.OP_ACCEPT);
+							}
+						}
+						pausedAccepts.clear();
+					}
+					if (now >= nextSweep) {
+						closeExpired(now);
+						nextSweep = now + 1000L;
+					}
+				}
+			} catch (IOException e) {
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					Object attachment = key.attachment();
+					if (attachment instanceof HTTPHandler) {
+						((HTTPHandler) attachment).closeSocket();
+					}
+				}
+				for (HTTPHandler handler : ready) {
+					handler.closeSocket();
+				}
+				ready.clear();
+				closeSelector();
+			}
+		}
+
+		private void closeSelector() {
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void accept(SelectionKey key) {
+			ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+			HTTPListener listener = (HTTPListener) key.attachment();
+			// don't let a single listener starve the connections on this loop
+			for (int i = 0; i < 64; i++) {
+				SocketChannel channel;
+				try {
+					channel = serverChannel.accept();
+				} catch (IOException e) {
+					// most likely out of file descriptors (EMFILE), stop
+					// accepting for a moment instead of spinning on accept
+					acceptBackoff = acceptBackoff == 0L ? 10L : Math.min(acceptBackoff * 2L, 1000L);
+					resumeAcceptingAt = System.currentTimeMillis() + acceptBackoff;
+					key.interestOps(0);
+					pausedAccepts.add(key);
+					return;
+				}
+				if (channel == null) {
+					return;
+				}
+				acceptBackoff = 0L;
+				try {
+					listener.configure(channel);
+					EventLoop loop = nextLoop();
+					HTTPHandler handler = new HTTPHandler(server, listener.newSocket(channel), null, executor, loop);
+					if (listener.isProxyProtocol()) {
+						handler.expectProxyHeader();
+					}
+					loop.park(handler);
+				} catch (IOException | RuntimeException e) {
+					try {
+						channel.close();
+					} catch (IOException e2) {
+					}
+				}
+			}
+		}
+
+		private void read(SelectionKey key) {
+			HTTPHandler handler = (HTTPHandler) key.attachment();
+			int result;
+			try {
+				result = handler.readHead();
+			} catch (IOException | RuntimeException e) {
+				result = -1;
+			}
+			if (result < 0) {
+				key.cancel();
+				handler.closeSocket();
+			} else if (result > 0) {
+				key.cancel();
+				ready.add(handler);
+			} else {
+				key.interestOps(handler.interestOps());
+			}
+		}
+
+		private void dispatchReady() throws IOException {
+			if (ready.isEmpty()) {
+				return;
+			}
+			// the cancelled keys have to be flushed out of the selector before
+			// the channels can be switched back to blocking mode
+			selector.selectNow();
+			for (HTTPHandler handler : ready) {
+				try {
+					handler.restoreBlocking();
+					handler.dispatch();
+				} catch (IOException | RuntimeException e) {
+					handler.closeSocket();
+				}
+			}
+			ready.clear();
+		}
+
+		private void closeExpired(long now) {
+			for (SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof HTTPHandler) {
+					HTTPHandler handler = (HTTPHandler) attachment;
+					if (now >= handler.idleDeadline) {
+						key.cancel();
+						handler.closeSocket();
+					}
+				}
+			}
+		}
+	}
+}
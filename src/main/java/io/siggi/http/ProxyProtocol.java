@@ -0,0 +1,215 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decoded PROXY protocol header, version 1 (text) or 2 (binary), which a
+ * layer 4 load balancer sends at the start of a connection to pass on the
+ * address of the client it accepted the connection from.
+ */
+final class ProxyProtocol {
+
+	/**
+	 * The longest possible version 1 header, including the CRLF.
+	 */
+	private static final int maxV1Length = 107;
+	/**
+	 * The longest possible version 2 header, the 16 byte fixed part and the
+	 * largest address block the length field allows.
+	 */
+	static final int maxLength = 16 + 65535;
+	private static final byte[] v1Signature = "PROXY ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] v2Signature = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A};
+
+	/**
+	 * The client address, or null if the balancer did not send one, for
+	 * example for its own health checks or for clients that are not on IP.
+	 */
+	final InetSocketAddress source;
+	/**
+	 * The length of the header in bytes.
+	 */
+	final int length;
+
+	private ProxyProtocol(InetSocketAddress source, int length) {
+		this.source = source;
+		this.length = length;
+	}
+
+	/**
+	 * Decode a PROXY protocol header from the start of the data.
+	 *
+	 * @param b the buffer
+	 * @param off the start of the data
+	 * @param len the amount of data available
+	 * @return the header, or null if more data is needed
+	 * @throws IOException if the data does not start with a valid PROXY
+	 * protocol header
+	 */
+	static ProxyProtocol parse(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return null;
+		}
+		if (b[off] == v2Signature[0]) {
+			if (!startsWith(b, off, len, v2Signature)) {
+				throw new IOException("Invalid PROXY protocol header");
+			}
+			return len < 16 ? null : parseV2(b, off, len);
+		}
+		if (!startsWith(b, off, len, v1Signature)) {
+			throw new IOException("Missing PROXY protocol header");
+		}
+		return len < v1Signature.length ? null : parseV1(b, off, len);
+	}
+
+	private static boolean startsWith(byte[] b, int off, int len, byte[] prefix) {
+		for (int i = 0, l = Math.min(len, prefix.length); i < l; i++) {
+			if (b[off + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static ProxyProtocol parseV1(byte[] b, int off, int len) throws IOException {
+		int end = -1;
+		for (int i = off, l = off + Math.min(len, maxV1Length); i < l; i++) {
+			if (b[i] == 0x0A) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			if (len >= maxV1Length) {
+				throw new IOException("PROXY protocol header too long");
+			}
+			return null;
+		}
+		if (end == off || b[end - 1] != 0x0D) {
+			throw new IOException("Invalid PROXY protocol header");
+		}
+		int length = end + 1 - off;
+		String[] parts = new String(b, off, end - 1 - off, StandardCharsets.US_ASCII).split(" ");
+		if (parts.length >= 2 && parts[1].equals("UNKNOWN")) {
+			return new ProxyProtocol(null, length);
+		}
+		if (parts.length != 6) {
+			throw new IOException("Invalid PROXY protocol header");
+		}
+		InetAddress address;
+		if (parts[1].equals("TCP4")) {
+			address = InetAddress.getByAddress(parseIPv4(parts[2]));
+		} else if (parts[1].equals("TCP6")) {
+			address = parseIPv6(parts[2]);
+		} else {
+			throw new IOException("Invalid PROXY protocol header");
+		}
+		return new ProxyProtocol(new InetSocketAddress(address, parsePort(parts[4])), length);
+	}
+
+	private static byte[] parseIPv4(String s) throws IOException {
+		byte[] address = new byte[4];
+		int part = 0;
+		int value = -1;
+		for (int i = 0, l = s.length(); i <= l; i++) {
+			char c = i < l ? s.charAt(i) : '.';
+			if (c == '.') {
+				if (value < 0 || part == 4) {
+					throw new IOException("Invalid address in PROXY protocol header");
+				}
+				address[part++] = (byte) value;
+				value = -1;
+			} else if (c >= '0' && c <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+				if (value > 255) {
+					throw new IOException("Invalid address in PROXY protocol header");
+				}
+			} else {
+				throw new IOException("Invalid address in PROXY protocol header");
+			}
+		}
+		if (part != 4) {
+			throw new IOException("Invalid address in PROXY protocol header");
+		}
+		return address;
+	}
+
+	private static InetAddress parseIPv6(String s) throws IOException {
+		// only hex digits, colons and dots are let through so that
+		// getByName parses a literal and never does a DNS lookup
+		if (s.indexOf(':') < 0) {
+			throw new IOException("Invalid address in PROXY protocol header");
+		}
+		for (int i = 0, l = s.length(); i < l; i++) {
+			char c = s.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == ':' || c == '.')) {
+				throw new IOException("Invalid address in PROXY protocol header");
+			}
+		}
+		return InetAddress.getByName(s);
+	}
+
+	private static int parsePort(String s) throws IOException {
+		if (s.isEmpty() || s.length() > 5) {
+			throw new IOException("Invalid port in PROXY protocol header");
+		}
+		int port = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new IOException("Invalid port in PROXY protocol header");
+			}
+			port = port * 10 + (c - '0');
+		}
+		if (port > 65535) {
+			throw new IOException("Invalid port in PROXY protocol header");
+		}
+		return port;
+	}
+
+	private static ProxyProtocol parseV2(byte[] b, int off, int len) throws IOException {
+		int versionCommand = b[off + 12] & 0xff;
+		int family = b[off + 13] & 0xff;
+		int addressLength = ((b[off + 14] & 0xff) << 8) | (b[off + 15] & 0xff);
+		if ((versionCommand & 0xf0) != 0x20) {
+			throw new IOException("Unsupported PROXY protocol version");
+		}
+		int length = 16 + addressLength;
+		if (len < length) {
+			return null;
+		}
+		int command = versionCommand & 0x0f;
+		if (command == 0x0) {
+			// LOCAL, the balancer's own connection
+			return new ProxyProtocol(null, length);
+		} else if (command != 0x1) {
+			throw new IOException("Invalid PROXY protocol command");
+		}
+		int a = off + 16;
+		switch (family >> 4) {
+			case 0x1:
+				if (addressLength < 12) {
+					throw new IOException("Invalid PROXY protocol header");
+				}
+				return new ProxyProtocol(address(b, a, 4, a + 8), length);
+			case 0x2:
+				if (addressLength < 36) {
+					throw new IOException("Invalid PROXY protocol header");
+				}
+				return new ProxyProtocol(address(b, a, 16, a + 32), length);
+			default:
+				// unspecified or a Unix domain socket
+				return new ProxyProtocol(null, length);
+		}
+	}
+
+	private static InetSocketAddress address(byte[] b, int off, int length, int portOffset) throws IOException {
+		byte[] address = new byte[length];
+		System.arraycopy(b, off, address, 0, length);
+		int port = ((b[portOffset] & 0xff) << 8) | (b[portOffset + 1] & 0xff);
+		return new InetSocketAddress(InetAddress.getByAddress(address), port);
+	}
+}
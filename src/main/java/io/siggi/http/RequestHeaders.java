@@ -0,0 +1,499 @@
+package io.siggi.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The request headers as they were received. Names and values are kept as
+ * slices of a single byte array, and are only turned into Strings when they
+ * are asked for.
+ * <p>
+ * When the headers are parsed, each line is matched against a static table
+ * of well known header names, and lines with the same name, ignoring ASCII
+ * case, are grouped together in an open addressing table keyed by a case
+ * folded hash. The handler looks at well known headers by their constant,
+ * and <code>get</code> returns a list view over the values of a header
+ * without copying them. The first time the headers are modified through the
+ * <code>Map</code> interface, they are copied into a regular map.
+ */
+final class RequestHeaders extends AbstractMap<String, List<String>> {
+
+	private static final String[] knownNames = {
+		"Host", "Content-Length", "Content-Type", "Transfer-Encoding",
+		"Connection", "Cookie", "Expect", "Upgrade", "HTTP2-Settings",
+		"Referer", "User-Agent", "X-Forwarded-For", "X-Forwarded-Host",
+		"CF-Connecting-IP", "Accept", "Accept-Encoding", "Accept-Language",
+		"Authorization", "Cache-Control", "If-Modified-Since",
+		"If-None-Match", "Origin", "Range"
+	};
+	static final int host = 0;
+	static final int contentLength = 1;
+	static final int contentType = 2;
+	static final int transferEncoding = 3;
+	static final int connection = 4;
+	static final int cookie = 5;
+	static final int expect = 6;
+	static final int upgrade = 7;
+	static final int http2Settings = 8;
+	static final int referer = 9;
+	static final int userAgent = 10;
+	static final int xForwardedFor = 11;
+	static final int xForwardedHost = 12;
+	static final int cfConnectingIP = 13;
+	private static final int[] knownTable = new int[64];
+
+	static {
+		for (int i = 0; i < knownNames.length; i++) {
+			int slot = hash(knownNames[i]) & (knownTable.length - 1);
+			while (knownTable[slot] != 0) {
+				slot = (slot + 1) & (knownTable.length - 1);
+			}
+			knownTable[slot] = i + 1;
+		}
+	}
+
+	private final byte[] data;
+	// 4 ints per header: name offset, name length, value offset, value length
+	private final int[] slices;
+	private final int count;
+	// the well known header of each line plus one, 0 if it isn't one
+	private final byte[] lineKnown;
+	// the entry of each well known header plus one, 0 if it wasn't sent
+	private final int[] knownEntries = new int[knownNames.length];
+	private final int entryCount;
+	private final int[] entryHash;
+	// the lines of each entry are order[entryStart[e]] onwards
+	private final int[] entryStart;
+	private final int[] entrySize;
+	private final int[] order;
+	private final int[] table;
+	private String[] values = null;
+	private ValueList[] lists = null;
+	private Map<String, List<String>> map = null;
+	private Set<Entry<String, List<String>>> entrySet = null;
+
+	RequestHeaders(byte[] data, int[] slices, int count) {
+		this.data = data;
+		this.slices = slices;
+		this.count = count;
+		this.lineKnown = new byte[count];
+		int tableLength = 8;
+		while (tableLength < count * 2) {
+			tableLength <<= 1;
+		}
+		int mask = tableLength - 1;
+		table = new int[tableLength];
+		int[] lineEntry = new int[count];
+		int[] firstLine = new int[count];
+		int[] hashes = new int[count];
+		int[] sizes = new int[count];
+		int entries = 0;
+		for (int line = 0; line < count; line++) {
+			int offset = slices[line * 4];
+			int length = slices[line * 4 + 1];
+			int h = hash(data, offset, length);
+			int known = knownIndex(h, data, offset, length);
+			lineKnown[line] = (byte) (known + 1);
+			int entry = -1;
+			if (known >= 0) {
+				entry = knownEntries[known] - 1;
+			}
+			if (entry < 0) {
+				int slot = h & mask;
+				while (table[slot] != 0) {
+					int e = table[slot] - 1;
+					if (hashes[e] == h && sameName(line, firstLine[e])) {
+						entry = e;
+						break;
+					}
+					slot = (slot + 1) & mask;
+				}
+				if (entry < 0) {
+					entry = entries++;
+					hashes[entry] = h;
+					firstLine[entry] = line;
+					table[slot] = entry + 1;
+					if (known >= 0) {
+						knownEntries[known] = entry + 1;
+					}
+				}
+			}
+			lineEntry[line] = entry;
+			sizes[entry]++;
+		}
+		entryCount = entries;
+		entryHash = hashes;
+		entrySize = sizes;
+		entryStart = new int[entries];
+		for (int e = 1; e < entries; e++) {
+			entryStart[e] = entryStart[e - 1] + sizes[e - 1];
+		}
+		order = new int[count];
+		int[] filled = new int[entries];
+		for (int line = 0; line < count; line++) {
+			int e = lineEntry[line];
+			order[entryStart[e] + filled[e]++] = line;
+		}
+	}
+
+	private static int hash(String name) {
+		int h = 0;
+		for (int i = 0, l = name.length(); i < l; i++) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				c += 0x20;
+			}
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash(byte[] data, int offset, int length) {
+		int h = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			int c = data[i] & 0xff;
+			if (c >= 'A' && c <= 'Z') {
+				c += 0x20;
+			}
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static int knownIndex(int h, byte[] data, int offset, int length) {
+		for (int slot = h & (knownTable.length - 1);; slot = (slot + 1) & (knownTable.length - 1)) {
+			int index = knownTable[slot] - 1;
+			if (index < 0) {
+				return -1;
+			}
+			if (equalsIgnoreCase(data, offset, length, knownNames[index])) {
+				return index;
+			}
+		}
+	}
+
+	private static int knownIndex(int h, String name) {
+		for (int slot = h & (knownTable.length - 1);; slot = (slot + 1) & (knownTable.length - 1)) {
+			int index = knownTable[slot] - 1;
+			if (index < 0) {
+				return -1;
+			}
+			if (knownNames[index].equalsIgnoreCase(name)) {
+				return index;
+			}
+		}
+	}
+
+	private boolean sameName(int line1, int line2) {
+		int a = slices[line1 * 4];
+		int b = slices[line2 * 4];
+		int length = slices[line1 * 4 + 1];
+		if (length != slices[line2 * 4 + 1]) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			int x = data[a + i] & 0xff;
+			int y = data[b + i] & 0xff;
+			if (x == y) {
+				continue;
+			}
+			if (x >= 'A' && x <= 'Z') {
+				x += 0x20;
+			}
+			if (y >= 'A' && y <= 'Z') {
+				y += 0x20;
+			}
+			if (x != y) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the entry for a header name.
+	 *
+	 * @return the entry, or -1 if the header wasn't sent
+	 */
+	private int entry(Object key) {
+		if (!(key instanceof String)) {
+			return -1;
+		}
+		String name = (String) key;
+		for (int i = 0, l = name.length(); i < l; i++) {
+			if (name.charAt(i) >= 0x80) {
+				// header names are ASCII, but compare it the slow way
+				for (int e = 0; e < entryCount; e++) {
+					int line = order[entryStart[e]];
+					if (equalsIgnoreCase(data, slices[line * 4], slices[line * 4 + 1], name)) {
+						return e;
+					}
+				}
+				return -1;
+			}
+		}
+		int h = hash(name);
+		int known = knownIndex(h, name);
+		if (known >= 0) {
+			return knownEntries[known] - 1;
+		}
+		int mask = table.length - 1;
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			int e = table[slot] - 1;
+			if (e < 0) {
+				return -1;
+			}
+			int line = order[entryStart[e]];
+			if (entryHash[e] == h && equalsIgnoreCase(data, slices[line * 4], slices[line * 4 + 1], name)) {
+				return e;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of header lines, including repeated names.
+	 *
+	 * @return the number of header lines
+	 */
+	int headerCount() {
+		return count;
+	}
+
+	/**
+	 * Get the well known header a header line is.
+	 *
+	 * @param index the header line
+	 * @return one of the well known header constants, or -1 if it's some
+	 * other header
+	 */
+	int known(int index) {
+		return lineKnown[index] - 1;
+	}
+
+	String name(int index) {
+		int i = index * 4;
+		return new String(data, slices[i], slices[i + 1], StandardCharsets.UTF_8);
+	}
+
+	String value(int index) {
+		if (values == null) {
+			values = new String[count];
+		}
+		String value = values[index];
+		if (value == null) {
+			int i = index * 4;
+			values[index] = value = new String(data, slices[i + 2], slices[i + 3], StandardCharsets.UTF_8);
+		}
+		return value;
+	}
+
+	/**
+	 * Get the first value of a well known header as it was received.
+	 *
+	 * @param known one of the well known header constants
+	 * @return the first value, or null if the header was not sent
+	 */
+	String getFirst(int known) {
+		int entry = knownEntries[known] - 1;
+		return entry < 0 ? null : value(order[entryStart[entry]]);
+	}
+
+	/**
+	 * Get all values of a well known header as they were received.
+	 *
+	 * @param known one of the well known header constants
+	 * @return the values, or null if the header was not sent
+	 */
+	List<String> getAll(int known) {
+		int entry = knownEntries[known] - 1;
+		return entry < 0 ? null : list(entry);
+	}
+
+	/**
+	 * Get the first value of a header.
+	 *
+	 * @param name the header name
+	 * @return the first value, or null if the header was not sent
+	 */
+	String getFirst(String name) {
+		if (map != null) {
+			List<String> list = map.get(name);
+			return list == null || list.isEmpty() ? null : list.get(0);
+		}
+		int entry = entry(name);
+		return entry < 0 ? null : value(order[entryStart[entry]]);
+	}
+
+	/**
+	 * Get all values of a header.
+	 *
+	 * @param name the header name
+	 * @return the values, or null if the header was not sent
+	 */
+	List<String> getAll(String name) {
+		return get(name);
+	}
+
+	static boolean equalsIgnoreCase(byte[] data, int offset, int length, String name) {
+		if (length != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			int a = data[offset + i] & 0xff;
+			int b = name.charAt(i);
+			if (a == b) {
+				continue;
+			}
+			if (b >= 0x80) {
+				// not plain ASCII, let String sort it out
+				return new String(data, offset, length, StandardCharsets.UTF_8).equalsIgnoreCase(name);
+			}
+			if (a >= 'A' && a <= 'Z') {
+				a += 0x20;
+			}
+			if (b >= 'A' && b <= 'Z') {
+				b += 0x20;
+			}
+			if (a != b) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<String> list(int entry) {
+		if (lists == null) {
+			lists = new ValueList[entryCount];
+		}
+		ValueList list = lists[entry];
+		if (list == null) {
+			lists[entry] = list = new ValueList(entry);
+		}
+		return list;
+	}
+
+	private final class ValueList extends AbstractList<String> implements RandomAccess {
+
+		private final int entry;
+
+		ValueList(int entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public String get(int index) {
+			if (index < 0 || index >= entrySize[entry]) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			}
+			return value(order[entryStart[entry] + index]);
+		}
+
+		@Override
+		public int size() {
+			return entrySize[entry];
+		}
+	}
+
+	/**
+	 * Copy the headers into a regular map so they can be modified.
+	 */
+	private Map<String, List<String>> map() {
+		if (map == null) {
+			Map<String, List<String>> m = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			for (int e = 0; e < entryCount; e++) {
+				m.put(name(order[entryStart[e]]), new ArrayList<>(list(e)));
+			}
+			map = m;
+		}
+		return map;
+	}
+
+	@Override
+	public int size() {
+		return map != null ? map.size() : entryCount;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return map != null ? map.containsKey(key) : entry(key) >= 0;
+	}
+
+	@Override
+	public List<String> get(Object key) {
+		if (map != null) {
+			return map.get(key);
+		}
+		int entry = entry(key);
+		return entry < 0 ? null : list(entry);
+	}
+
+	@Override
+	public List<String> put(String key, List<String> value) {
+		return map().put(key, value);
+	}
+
+	@Override
+	public List<String> remove(Object key) {
+		return map().remove(key);
+	}
+
+	@Override
+	public void clear() {
+		map().clear();
+	}
+
+	@Override
+	public Set<Entry<String, List<String>>> entrySet() {
+		if (map != null) {
+			return map.entrySet();
+		}
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Entry<String, List<String>>>() {
+				@Override
+				public Iterator<Entry<String, List<String>>> iterator() {
+					if (map != null) {
+						return map.entrySet().iterator();
+					}
+					return new Iterator<Entry<String, List<String>>>() {
+						private int next = 0;
+
+						@Override
+						public boolean hasNext() {
+							return next < entryCount;
+						}
+
+						@Override
+						public Entry<String, List<String>> next() {
+							if (next >= entryCount) {
+								throw new NoSuchElementException();
+							}
+							int e = next++;
+							return new SimpleImmutableEntry<>(name(order[entryStart[e]]), list(e));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return RequestHeaders.this.size();
+				}
+			};
+		}
+		return entrySet;
+	}
+}
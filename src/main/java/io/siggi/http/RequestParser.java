@@ -0,0 +1,250 @@
+package io.siggi.http;
+
+import io.siggi.http.exception.TooBigException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses the request line and the request headers straight out of the buffer
+ * of a {@link ConnectionInputStream}. Header names and values are collected
+ * into a scratch buffer that is reused for every request on the connection,
+ * and only copied out once into a {@link RequestHeaders}.
+ */
+final class RequestParser {
+
+	private static final byte[] httpVersionPrefix = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+	private static final String[] commonMethods = {"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH"};
+
+	private byte[] scratch = new byte[1024];
+	private int scratchUsed = 0;
+	private int[] slices = new int[64];
+	private int count = 0;
+
+	/**
+	 * The method from the last request line.
+	 */
+	String method;
+	/**
+	 * The request target from the last request line, or null if the request
+	 * line did not have an HTTP version.
+	 */
+	String target;
+	/**
+	 * The HTTP version from the last request line, or null if the request line
+	 * did not have one.
+	 */
+	String version;
+
+	/**
+	 * Read the next request line, skipping empty lines before it.
+	 *
+	 * @param in the stream to read from
+	 * @param maxLength the maximum length of the request line
+	 * @return true if a request line was read, false if the stream ended first
+	 * @throws IOException if something goes wrong
+	 * @throws TooBigException if the request line is longer than
+	 * <code>maxLength</code>
+	 */
+	boolean readRequestLine(ConnectionInputStream in, int maxLength) throws IOException {
+		while (true) {
+			int lineFeed = in.nextLine(maxLength);
+			if (lineFeed < 0) {
+				return false;
+			}
+			byte[] b = in.buffer;
+			int start = in.pos;
+			int end = lineFeed;
+			in.pos = lineFeed < in.limit ? lineFeed + 1 : lineFeed;
+			if (end > start && b[end - 1] == 0x0D) {
+				end -= 1;
+			}
+			if (trimStart(b, start, end) == end) {
+				continue;
+			}
+			parseRequestLine(b, start, end);
+			return true;
+		}
+	}
+
+	private void parseRequestLine(byte[] b, int start, int end) {
+		int firstSpace = -1;
+		int lastSpace = -1;
+		for (int i = start; i < end; i++) {
+			if (b[i] == 0x20) {
+				if (firstSpace == -1) {
+					firstSpace = i;
+				}
+				lastSpace = i;
+			}
+		}
+		if (firstSpace == -1) {
+			method = method(b, start, end);
+			target = null;
+			version = null;
+			return;
+		}
+		method = method(b, start, firstSpace);
+		if (!startsWith(b, lastSpace + 1, end, httpVersionPrefix)) {
+			target = null;
+			version = null;
+			return;
+		}
+		version = new String(b, lastSpace + 1, end - lastSpace - 1, StandardCharsets.ISO_8859_1);
+		if (lastSpace > firstSpace) {
+			target = new String(b, firstSpace + 1, lastSpace - firstSpace - 1);
+		} else {
+			target = "";
+		}
+	}
+
+	private static String method(byte[] b, int start, int end) {
+		for (String method : commonMethods) {
+			if (end - start == method.length() && startsWith(b, start, end, method)) {
+				return method;
+			}
+		}
+		return new String(b, start, end - start);
+	}
+
+	private static boolean startsWith(byte[] b, int start, int end, byte[] prefix) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (b[start + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] b, int start, int end, String prefix) {
+		if (end - start < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (b[start + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the header block that follows the request line.
+	 *
+	 * @param in the stream to read from
+	 * @param sizeLimit the maximum size of the header block, or 0 for no limit
+	 * @return the headers
+	 * @throws IOException if something goes wrong
+	 * @throws TooBigException if the headers are larger than
+	 * <code>sizeLimit</code>
+	 */
+	RequestHeaders readHeaders(ConnectionInputStream in, int sizeLimit) throws IOException {
+		beginHeaders();
+		int totalSize = 0;
+		int current = -1;
+		while (true) {
+			int lineFeed = in.nextLine(sizeLimit > 0 ? Math.max(0, sizeLimit - totalSize) : -1);
+			if (lineFeed < 0) {
+				break;
+			}
+			byte[] b = in.buffer;
+			int start = in.pos;
+			int end = lineFeed;
+			in.pos = lineFeed < in.limit ? lineFeed + 1 : lineFeed;
+			if (end > start && b[end - 1] == 0x0D) {
+				end -= 1;
+			}
+			totalSize += end - start + 2;
+			if (sizeLimit > 0 && totalSize > sizeLimit) {
+				throw new TooBigException();
+			}
+			if (end == start) {
+				break;
+			}
+			int trimStart = trimStart(b, start, end);
+			if (trimStart == end) {
+				continue;
+			}
+			int trimEnd = trimEnd(b, trimStart, end);
+			if (trimStart != start) {
+				// folded header line, glue it onto the previous value, which
+				// is always the last thing in the scratch buffer
+				if (current >= 0) {
+					append(b, trimStart, trimEnd - trimStart);
+					slices[current * 4 + 3] += trimEnd - trimStart;
+				}
+				continue;
+			}
+			int colon = -1;
+			for (int i = start; i < end; i++) {
+				if (b[i] == 0x3A) {
+					colon = i;
+					break;
+				}
+			}
+			if (colon == -1) {
+				current = -1;
+				continue;
+			}
+			int nameEnd = trimEnd(b, start, colon);
+			int valueStart = trimStart(b, colon + 1, end);
+			int valueEnd = trimEnd(b, valueStart, end);
+			current = count;
+			addHeader(b, start, nameEnd - start, b, valueStart, valueEnd - valueStart);
+		}
+		return finishHeaders();
+	}
+
+	/**
+	 * Start collecting a header block that arrives already split into fields,
+	 * such as an HTTP/2 header block. Add the fields with
+	 * {@link #addHeader(byte[], int, int, byte[], int, int)} and get the
+	 * result from {@link #finishHeaders()}.
+	 */
+	void beginHeaders() {
+		scratchUsed = 0;
+		count = 0;
+	}
+
+	void addHeader(byte[] name, int nameOffset, int nameLength, byte[] value, int valueOffset, int valueLength) {
+		if (slices.length < (count + 1) * 4) {
+			slices = Arrays.copyOf(slices, slices.length * 2);
+		}
+		int s = count++ * 4;
+		slices[s] = scratchUsed;
+		slices[s + 1] = nameLength;
+		append(name, nameOffset, nameLength);
+		slices[s + 2] = scratchUsed;
+		slices[s + 3] = valueLength;
+		append(value, valueOffset, valueLength);
+	}
+
+	RequestHeaders finishHeaders() {
+		return new RequestHeaders(Arrays.copyOf(scratch, scratchUsed), Arrays.copyOf(slices, count * 4), count);
+	}
+
+	private void append(byte[] b, int offset, int length) {
+		if (scratchUsed + length > scratch.length) {
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchUsed + length));
+		}
+		System.arraycopy(b, offset, scratch, scratchUsed, length);
+		scratchUsed += length;
+	}
+
+	private static int trimStart(byte[] b, int start, int end) {
+		while (start < end && (b[start] & 0xff) <= 0x20) {
+			start++;
+		}
+		return start;
+	}
+
+	private static int trimEnd(byte[] b, int start, int end) {
+		while (end > start && (b[end - 1] & 0xff) <= 0x20) {
+			end--;
+		}
+		return end;
+	}
+}
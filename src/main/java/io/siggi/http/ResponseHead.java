@@ -0,0 +1,155 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the status line and headers of an HTTP/1.1 response straight into
+ * the connection's output buffer. Status lines, common header names and the
+ * header lines that are the same on almost every response are encoded once.
+ */
+final class ResponseHead {
+
+	private static final byte[] crlf = {0x0D, 0x0A};
+	private static final byte[] separator = {0x3A, 0x20};
+	private static final byte[] statusLinePrefix = bytes("HTTP/1.1 ");
+	private static final Map<String, byte[]> statusLines = new HashMap<>();
+	private static final Map<String, KnownHeader> knownHeaders = new HashMap<>();
+
+	static {
+		String[] statuses = {
+			"100 Continue", "101 Switching Protocols",
+			"200 OK", "201 Created", "202 Accepted", "204 No Content", "206 Partial Content",
+			"301 Moved Permanently", "302 Found", "303 See Other", "304 Not Modified", "307 Temporary Redirect", "308 Permanent Redirect",
+			"400 Bad Request", "401 Unauthorized", "403 Forbidden", "404 Not Found", "405 Method Not Allowed",
+			"408 Request Timeout", "413 Request Entity Too Large", "414 Request URI Too Long", "416 Range Not Satisfiable", "429 Too Many Requests",
+			"500 Internal Server Error", "501 Not Implemented", "502 Bad Gateway", "503 Service Unavailable"
+		};
+		for (String status : statuses) {
+			statusLines.put(status, bytes("HTTP/1.1 " + status + "\r\n"));
+		}
+		known("Content-Type", "text/html; charset=utf-8", "text/plain; charset=utf-8", "application/json");
+		known("Transfer-Encoding", "chunked");
+		known("Connection", "Keep-Alive", "close");
+		known("Keep-Alive", "timeout=15");
+		known("Server");
+		known("Content-Length");
+		known("Cache-Control", "no-cache");
+		known("Pragma", "no-cache");
+		known("Expires", "-1");
+		known("Last-Modified");
+		known("Location");
+		known("Set-Cookie");
+		known("Accept-Ranges", "bytes");
+		known("Content-Range");
+		known("ETag");
+		known("Vary");
+	}
+
+	private ResponseHead() {
+	}
+
+	private static final class KnownHeader {
+
+		final byte[] name;
+		final String[] values;
+		final byte[][] lines;
+
+		KnownHeader(byte[] name, String[] values, byte[][] lines) {
+			this.name = name;
+			this.values = values;
+			this.lines = lines;
+		}
+	}
+
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void known(String name, String... values) {
+		byte[][] lines = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			lines[i] = bytes(name + ": " + values[i] + "\r\n");
+		}
+		knownHeaders.put(name, new KnownHeader(bytes(name + ": "), values, lines));
+	}
+
+	/**
+	 * Write the status line.
+	 *
+	 * @param out the connection's output
+	 * @param status the status code and reason, such as "200 OK"
+	 * @throws IOException if something goes wrong
+	 */
+	static void writeStatusLine(ConnectionOutputStream out, String status) throws IOException {
+		byte[] line = statusLines.get(status);
+		if (line != null) {
+			out.write(line);
+			return;
+		}
+		out.write(statusLinePrefix);
+		out.writeString(status);
+		out.write(crlf);
+	}
+
+	/**
+	 * Write all the values of a header, each on its own line.
+	 *
+	 * @param out the connection's output
+	 * @param headers the response headers
+	 * @param index the slot of the header to write, nothing is written if it
+	 * is empty
+	 * @throws IOException if something goes wrong
+	 */
+	static void writeHeader(ConnectionOutputStream out, ResponseHeaders headers, int index) throws IOException {
+		int count = headers.valueCount(index);
+		if (count == 0) {
+			return;
+		}
+		String name = headers.name(index);
+		KnownHeader known = knownHeaders.get(name);
+		for (int i = 0; i < count; i++) {
+			String value = headers.value(index, i);
+			byte[] line = DateCache.dateHeaderLine(value);
+			if (line != null && name.equals("Date")) {
+				out.write(line);
+				continue;
+			}
+			if (known != null) {
+				line = find(known, value);
+				if (line != null) {
+					out.write(line);
+					continue;
+				}
+				out.write(known.name);
+			} else {
+				out.writeString(name);
+				out.write(separator);
+			}
+			out.writeString(value);
+			out.write(crlf);
+		}
+	}
+
+	private static byte[] find(KnownHeader known, String value) {
+		String[] values = known.values;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].equals(value)) {
+				return known.lines[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Write the empty line that ends the headers.
+	 *
+	 * @param out the connection's output
+	 * @throws IOException if something goes wrong
+	 */
+	static void writeEnd(ConnectionOutputStream out) throws IOException {
+		out.write(crlf);
+	}
+}
@@ -0,0 +1,310 @@
+package io.siggi.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The headers of the response being written on a connection. Well known
+ * headers have fixed slots, other headers are found through an ASCII case
+ * insensitive open addressing table, and the whole structure is reused from
+ * request to request instead of being reallocated.
+ * <p>
+ * Header names are matched ignoring case, and a header keeps the case it was
+ * first set with until it is removed. Headers are written with the well known
+ * headers first, followed by the others in the order they were first set.
+ */
+final class ResponseHeaders {
+
+	private static final String[] knownNames = {
+		"Content-Type", "Content-Length", "Transfer-Encoding", "Connection",
+		"Keep-Alive", "Date", "Server", "ETag", "Last-Modified", "Set-Cookie",
+		"Location", "Cache-Control", "Expires", "Pragma", "Accept-Ranges",
+		"Content-Range"
+	};
+	static final int contentType = 0;
+	static final int contentLength = 1;
+	static final int transferEncoding = 2;
+	static final int connection = 3;
+	static final int keepAlive = 4;
+	static final int date = 5;
+	static final int server = 6;
+	static final int location = 10;
+	private static final int knownCount = knownNames.length;
+	private static final int[] knownTable = new int[64];
+
+	static {
+		for (int i = 0; i < knownCount; i++) {
+			int slot = hash(knownNames[i]) & (knownTable.length - 1);
+			while (knownTable[slot] != 0) {
+				slot = (slot + 1) & (knownTable.length - 1);
+			}
+			knownTable[slot] = i + 1;
+		}
+	}
+
+	private String[] names = new String[knownCount + 16];
+	private String[] values = new String[knownCount + 16];
+	private List<String>[] moreValues = newValueLists(knownCount + 16);
+	private int size = knownCount;
+	private int[] table = new int[32];
+
+	@SuppressWarnings("unchecked")
+	private static List<String>[] newValueLists(int length) {
+		return (List<String>[]) new List<?>[length];
+	}
+
+	private static int hash(String name) {
+		int h = 0;
+		for (int i = 0, l = name.length(); i < l; i++) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				c += 0x20;
+			}
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equalsIgnoreCase(String a, String b) {
+		int length = a.length();
+		if (length != b.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char x = a.charAt(i);
+			char y = b.charAt(i);
+			if (x == y) {
+				continue;
+			}
+			if (x >= 'A' && x <= 'Z') {
+				x += 0x20;
+			}
+			if (y >= 'A' && y <= 'Z') {
+				y += 0x20;
+			}
+			if (x != y) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the slot of a header, creating it if requested.
+	 *
+	 * @return the slot, or -1 if there isn't one and create is false
+	 */
+	private int slot(String name, boolean create) {
+		int h = hash(name);
+		for (int slot = h & (knownTable.length - 1);; slot = (slot + 1) & (knownTable.length - 1)) {
+			int index = knownTable[slot] - 1;
+			if (index < 0) {
+				break;
+			}
+			if (equalsIgnoreCase(knownNames[index], name)) {
+				return index;
+			}
+		}
+		int mask = table.length - 1;
+		int slot = h & mask;
+		while (true) {
+			int index = table[slot] - 1;
+			if (index < 0) {
+				break;
+			}
+			if (equalsIgnoreCase(names[index], name)) {
+				return index;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (!create) {
+			return -1;
+		}
+		if (size == names.length) {
+			int newLength = names.length * 2;
+			names = Arrays.copyOf(names, newLength);
+			values = Arrays.copyOf(values, newLength);
+			moreValues = Arrays.copyOf(moreValues, newLength);
+		}
+		int index = size++;
+		names[index] = name;
+		table[slot] = index + 1;
+		if ((size - knownCount) * 2 > table.length) {
+			rehash();
+		}
+		return index;
+	}
+
+	private void rehash() {
+		int[] newTable = new int[table.length * 2];
+		int mask = newTable.length - 1;
+		for (int index = knownCount; index < size; index++) {
+			int slot = hash(names[index]) & mask;
+			while (newTable[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			newTable[slot] = index + 1;
+		}
+		table = newTable;
+	}
+
+	/**
+	 * Remove all headers, ready for the next response.
+	 */
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			if (i >= knownCount) {
+				names[i] = null;
+			}
+			values[i] = null;
+			if (moreValues[i] != null) {
+				moreValues[i].clear();
+			}
+		}
+		if (size > knownCount) {
+			Arrays.fill(table, 0);
+			size = knownCount;
+		}
+	}
+
+	/**
+	 * Replace all values of a header with a single value.
+	 *
+	 * @param name the header name
+	 * @param value the value
+	 */
+	void set(String name, String value) {
+		int index = slot(name, true);
+		if (values[index] == null) {
+			names[index] = name;
+		}
+		values[index] = value;
+		if (moreValues[index] != null) {
+			moreValues[index].clear();
+		}
+	}
+
+	/**
+	 * Same as {@link #set(String, String)} for a well known header, using its
+	 * usual spelling if it isn't set yet.
+	 *
+	 * @param known one of the well known header constants
+	 * @param value the value
+	 */
+	void set(int known, String value) {
+		if (values[known] == null) {
+			names[known] = knownNames[known];
+		}
+		values[known] = value;
+		if (moreValues[known] != null) {
+			moreValues[known].clear();
+		}
+	}
+
+	/**
+	 * Add a value to a header, keeping the values it already has.
+	 *
+	 * @param name the header name
+	 * @param value the value
+	 */
+	void add(String name, String value) {
+		int index = slot(name, true);
+		if (values[index] == null) {
+			names[index] = name;
+			values[index] = value;
+			return;
+		}
+		if (moreValues[index] == null) {
+			moreValues[index] = new ArrayList<>();
+		}
+		moreValues[index].add(value);
+	}
+
+	void remove(String name) {
+		int index = slot(name, false);
+		if (index >= 0) {
+			remove(index);
+		}
+	}
+
+	/**
+	 * Remove a header by its slot, or a well known header by its constant.
+	 *
+	 * @param index the slot
+	 */
+	void remove(int index) {
+		values[index] = null;
+		if (moreValues[index] != null) {
+			moreValues[index].clear();
+		}
+	}
+
+	boolean contains(String name) {
+		int index = slot(name, false);
+		return index >= 0 && values[index] != null;
+	}
+
+	/**
+	 * Get all values of a header.
+	 *
+	 * @param name the header name
+	 * @return the values, an empty array if the header isn't set
+	 */
+	String[] get(String name) {
+		int index = slot(name, false);
+		if (index < 0 || values[index] == null) {
+			return new String[0];
+		}
+		String[] result = new String[valueCount(index)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = value(index, i);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of slots, some of which may be empty. Use with
+	 * {@link #name(int)}, {@link #valueCount(int)} and
+	 * {@link #value(int, int)} to go through the headers in the order they
+	 * are written.
+	 *
+	 * @return the number of slots
+	 */
+	int size() {
+		return size;
+	}
+
+	String name(int index) {
+		return names[index];
+	}
+
+	/**
+	 * Get the number of values in a slot.
+	 *
+	 * @param index the slot
+	 * @return the number of values, 0 if the slot is empty
+	 */
+	int valueCount(int index) {
+		if (values[index] == null) {
+			return 0;
+		}
+		List<String> more = moreValues[index];
+		return more == null ? 1 : 1 + more.size();
+	}
+
+	String value(int index, int valueIndex) {
+		return valueIndex == 0 ? values[index] : moreValues[index].get(valueIndex - 1);
+	}
+
+	/**
+	 * Get the last value of a well known header.
+	 *
+	 * @param known one of the well known header constants
+	 * @return the value, or null if the header isn't set
+	 */
+	String getLast(int known) {
+		int count = valueCount(known);
+		return count == 0 ? null : value(known, count - 1);
+	}
+}
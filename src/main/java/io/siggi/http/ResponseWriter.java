@@ -0,0 +1,175 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Writer that encodes text as UTF-8 into a response body. Characters are
+ * collected in a buffer and encoded in batches with an encoder that is kept
+ * for the lifetime of the connection, so writing many small strings doesn't
+ * allocate a byte array for each of them.
+ */
+final class ResponseWriter extends Writer {
+
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final char[] chars = new char[4096];
+	private final CharBuffer charBuffer = CharBuffer.wrap(chars);
+	// a char is at most 3 bytes in UTF-8, so the chars always fit
+	private final byte[] bytes = new byte[chars.length * 3];
+	private final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+	private HTTPResponse response = null;
+	private int count = 0;
+
+	/**
+	 * Start writing to a new response.
+	 *
+	 * @param response the response to write to
+	 */
+	void reset(HTTPResponse response) {
+		this.response = response;
+		encoder.reset();
+		count = 0;
+	}
+
+	private void ensureHeadersSent() throws IOException {
+		if (!response.alreadyWrote()) {
+			response.sendHeaders();
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureHeadersSent();
+		if (count == chars.length) {
+			push(false);
+		}
+		chars[count++] = (char) c;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureHeadersSent();
+		while (len > 0) {
+			if (count == chars.length) {
+				push(false);
+			}
+			int amount = Math.min(len, chars.length - count);
+			System.arraycopy(cbuf, off, chars, count, amount);
+			count += amount;
+			off += amount;
+			len -= amount;
+		}
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		ensureHeadersSent();
+		while (len > 0) {
+			if (count == chars.length) {
+				push(false);
+			}
+			int amount = Math.min(len, chars.length - count);
+			str.getChars(off, off + amount, chars, count);
+			count += amount;
+			off += amount;
+			len -= amount;
+		}
+	}
+
+	@Override
+	public Writer append(CharSequence csq) throws IOException {
+		if (csq == null) {
+			csq = "null";
+		}
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Writer append(CharSequence csq, int start, int end) throws IOException {
+		if (csq == null) {
+			csq = "null";
+		}
+		if (csq instanceof String) {
+			write((String) csq, start, end - start);
+			return this;
+		}
+		ensureHeadersSent();
+		for (int i = start; i < end; i++) {
+			if (count == chars.length) {
+				push(false);
+			}
+			chars[count++] = csq.charAt(i);
+		}
+		return this;
+	}
+
+	@Override
+	public Writer append(char c) throws IOException {
+		write(c);
+		return this;
+	}
+
+	/**
+	 * Encode the collected characters and write them to the response. Unless
+	 * this is the end of the text, a high surrogate at the end is kept back
+	 * until the rest of its pair arrives.
+	 *
+	 * @param endOfInput true if no more text will be written
+	 * @throws IOException if something goes wrong
+	 */
+	void push(boolean endOfInput) throws IOException {
+		if (count == 0 && !endOfInput) {
+			return;
+		}
+		charBuffer.clear().limit(count);
+		byteBuffer.clear();
+		encoder.encode(charBuffer, byteBuffer, endOfInput);
+		if (endOfInput) {
+			encoder.flush(byteBuffer);
+		}
+		int left = charBuffer.remaining();
+		if (left > 0) {
+			System.arraycopy(chars, charBuffer.position(), chars, 0, left);
+		}
+		count = left;
+		if (byteBuffer.position() > 0) {
+			response.writeBody(bytes, 0, byteBuffer.position());
+		}
+	}
+
+	/**
+	 * Send everything written so far right away.
+	 *
+	 * @throws IOException if something goes wrong
+	 */
+	@Override
+	public void flush() throws IOException {
+		push(false);
+		response.flush();
+	}
+
+	/**
+	 * Write what's left to the response. Closing the writer does not close
+	 * the response, and the writer can still be used afterwards, as
+	 * {@link HTTPResponse#write(String)} goes through the same writer.
+	 *
+	 * @throws IOException if something goes wrong
+	 */
+	@Override
+	public void close() throws IOException {
+		push(true);
+		encoder.reset();
+	}
+}
@@ -0,0 +1,127 @@
+package io.siggi.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A responder that always sends the same response, such as a health check,
+ * a robots.txt or a fixed redirect. Simple GET and HEAD requests over
+ * HTTP/1.1 are answered with a pre-rendered copy of the whole response,
+ * without creating an {@link HTTPRequest} or calling into the responder at
+ * all. The pre-rendered copy is updated when the Date header changes.
+ * Everything else, like HTTP/2 or requests with a body, goes through
+ * {@link #respond(HTTPRequest)} as usual.
+ */
+public final class StaticResponder implements HTTPResponder {
+
+	private final String status;
+	private final String[] headers;
+	private final byte[] body;
+	private volatile Rendered keepAliveResponse = null;
+	private volatile Rendered closeResponse = null;
+
+	/**
+	 * @param status the status code and reason, such as "200 OK"
+	 * @param headers the headers to send, can be null, Content-Length is
+	 * always set from the body
+	 * @param body the body, it is copied
+	 */
+	public StaticResponder(String status, Map<String, String> headers, byte[] body) {
+		if (status == null || !status.contains(" ")) {
+			throw new IllegalArgumentException("Response must be a number followed by the name of that response type.");
+		}
+		try {
+			Integer.parseInt(status.split(" ")[0]);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Response must be a number followed by the name of that response type.");
+		}
+		this.status = status;
+		if (headers == null) {
+			this.headers = new String[0];
+		} else {
+			this.headers = new String[headers.size() * 2];
+			int i = 0;
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				this.headers[i++] = header.getKey();
+				this.headers[i++] = header.getValue();
+			}
+		}
+		this.body = body.clone();
+	}
+
+	private static final class Rendered {
+
+		final String date;
+		final String serverName;
+		final byte[] bytes;
+		final int headLength;
+
+		Rendered(String date, String serverName, byte[] bytes, int headLength) {
+			this.date = date;
+			this.serverName = serverName;
+			this.bytes = bytes;
+			this.headLength = headLength;
+		}
+	}
+
+	@Override
+	public void respond(HTTPRequest request) throws Exception {
+		HTTPResponse response = request.response;
+		response.setHeader(status);
+		for (int i = 0; i < headers.length; i += 2) {
+			response.setHeader(headers[i], headers[i + 1]);
+		}
+		response.contentLength(body.length);
+		response.write(body);
+	}
+
+	/**
+	 * Write the whole response to a connection.
+	 *
+	 * @param out the connection's output
+	 * @param responseHeaders the connection's response headers, freshly reset
+	 * for this request, they are used up if the response has to be rendered
+	 * again
+	 * @param keepAlive whether the connection is kept open afterwards
+	 * @param headOnly true to leave out the body
+	 * @throws IOException if something goes wrong
+	 */
+	void write(ConnectionOutputStream out, ResponseHeaders responseHeaders, boolean keepAlive, boolean headOnly) throws IOException {
+		String date = responseHeaders.getLast(ResponseHeaders.date);
+		String serverName = responseHeaders.getLast(ResponseHeaders.server);
+		Rendered rendered = keepAlive ? keepAliveResponse : closeResponse;
+		if (rendered == null || rendered.date != date || rendered.serverName != serverName) {
+			rendered = render(responseHeaders, date, serverName);
+			if (keepAlive) {
+				keepAliveResponse = rendered;
+			} else {
+				closeResponse = rendered;
+			}
+		}
+		out.write(rendered.bytes, 0, headOnly ? rendered.headLength : rendered.bytes.length);
+	}
+
+	private Rendered render(ResponseHeaders responseHeaders, String date, String serverName) throws IOException {
+		for (int i = 0; i < headers.length; i += 2) {
+			if (headers[i].equalsIgnoreCase("Set-Cookie")) {
+				responseHeaders.add(headers[i], headers[i + 1]);
+			} else {
+				responseHeaders.set(headers[i], headers[i + 1]);
+			}
+		}
+		responseHeaders.remove(ResponseHeaders.transferEncoding);
+		responseHeaders.set(ResponseHeaders.contentLength, Integer.toString(body.length));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ConnectionOutputStream out = new ConnectionOutputStream(baos, 4096);
+		ResponseHead.writeStatusLine(out, status);
+		for (int i = 0, size = responseHeaders.size(); i < size; i++) {
+			ResponseHead.writeHeader(out, responseHeaders, i);
+		}
+		ResponseHead.writeEnd(out);
+		out.forceFlush();
+		int headLength = baos.size();
+		baos.write(body);
+		return new Rendered(date, serverName, baos.toByteArray(), headLength);
+	}
+}
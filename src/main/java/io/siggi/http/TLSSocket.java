@@ -0,0 +1,914 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS connection on a {@link SocketChannel}, using an {@link SSLEngine}. The
+ * handshake is driven by an event loop while the channel is in non-blocking
+ * mode, with the engine's CPU heavy tasks running on a separate pool, so
+ * neither the event loop nor the responder executor is held up by it. Once
+ * the connection is handed to a thread with {@link #setBlocking(boolean)},
+ * the socket's streams behave like those of an
+ * {@link javax.net.ssl.SSLSocket}.
+ * <p>
+ * The channel itself is always in non-blocking mode, like the channel of a
+ * {@link ChannelSocket}, so records are read into and written from the
+ * network buffers directly, and a thread that has to wait does so on a
+ * selector of its own, which is how the read timeout is enforced.
+ * <p>
+ * The network buffers are direct buffers borrowed from the listener's pools,
+ * and they are given back whenever the connection is idle with nothing
+ * buffered. A buffer that had to grow for an unusually large record is not
+ * pooled, it is left to the garbage collector when it is released.
+ */
+final class TLSSocket extends Socket {
+
+	private static final ByteBuffer empty = ByteBuffer.allocate(0);
+	private static volatile ExecutorService handshakeExecutor = null;
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final BufferPool packetBuffers;
+	private final BufferPool applicationBuffers;
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final InputStream inputStream = new TLSInputStream();
+	private final OutputStream outputStream = new TLSOutputStream();
+	private final ReadableByteChannel readChannel = new TLSReadChannel();
+	// guarded by readLock
+	private ByteBuffer netIn = null;
+	private ByteBuffer appIn = null;
+	private boolean inboundDone = false;
+	private volatile Selector readSelector = null;
+	// guarded by writeLock
+	private ByteBuffer netOut = null;
+	private boolean outboundDone = false;
+	private volatile Selector writeSelector = null;
+	private volatile boolean blocking = false;
+	private volatile int soTimeout = 0;
+	private volatile boolean handshakeDone = false;
+	private volatile boolean taskRunning = false;
+	private boolean wantWrite = false;
+	private volatile boolean closed = false;
+	private Runnable taskDone = null;
+	private volatile boolean proxyHeaderPending = false;
+	private volatile InetSocketAddress proxiedSource = null;
+
+	TLSSocket(SocketChannel channel, SSLEngine engine, BufferPool packetBuffers, BufferPool applicationBuffers) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+		this.packetBuffers = packetBuffers;
+		this.applicationBuffers = applicationBuffers;
+		channel.configureBlocking(false);
+		engine.setUseClientMode(false);
+		engine.beginHandshake();
+	}
+
+	private static Executor getHandshakeExecutor() {
+		ExecutorService executor = handshakeExecutor;
+		if (executor == null) {
+			synchronized (TLSSocket.class) {
+				executor = handshakeExecutor;
+				if (executor == null) {
+					AtomicInteger threadId = new AtomicInteger();
+					executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+						Thread thread = new Thread(r, "HTTPServer-TLSHandshake-" + threadId.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					});
+					handshakeExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	SocketChannel channel() {
+		return channel;
+	}
+
+	SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	/**
+	 * Set whether reads and writes wait until they can make progress, which is
+	 * what a thread using the socket's streams expects, or return right away,
+	 * which is what the event loop expects. Off until the connection is first
+	 * handed to a thread.
+	 *
+	 * @param blocking true when a thread takes over the connection
+	 */
+	void setBlocking(boolean blocking) {
+		this.blocking = blocking;
+	}
+
+	/**
+	 * Set what to run when a handshake task finishes on the handshake pool, it
+	 * should get the event loop to call {@link #handshake()} again.
+	 *
+	 * @param taskDone the callback
+	 */
+	void setTaskDone(Runnable taskDone) {
+		this.taskDone = taskDone;
+	}
+
+	/**
+	 * Get the selector operations the handshake is waiting for.
+	 *
+	 * @return the interest set for the channel
+	 */
+	int interestOps() {
+		if (taskRunning) {
+			return 0;
+		}
+		return wantWrite ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Move the handshake forward as far as possible without blocking. Only
+	 * called while the channel is in non-blocking mode.
+	 *
+	 * @return 1 once the handshake is finished, 0 if it is waiting for the
+	 * network or a task, or -1 if the connection was closed
+	 * @throws IOException if the handshake failed
+	 */
+	int handshake() throws IOException {
+		if (handshakeDone) {
+			return 1;
+		}
+		if (taskRunning) {
+			return 0;
+		}
+		readLock.lock();
+		writeLock.lock();
+		try {
+			ensureReadBuffers();
+			ensureWriteBuffer();
+			wantWrite = false;
+			if (proxyHeaderPending) {
+				int result = readProxyHeader();
+				if (result <= 0) {
+					return result;
+				}
+			}
+			while (true) {
+				if (netOut.position() > 0 && !flushNet()) {
+					wantWrite = true;
+					return 0;
+				}
+				SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+				switch (status) {
+					case NOT_HANDSHAKING:
+					case FINISHED:
+						handshakeDone = true;
+						return 1;
+					case NEED_TASK:
+						runTasksAsync();
+						return 0;
+					case NEED_WRAP: {
+						SSLEngineResult result = engine.wrap(empty, netOut);
+						if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+							if (!flushNet()) {
+								wantWrite = true;
+								return 0;
+							}
+							growNetOut();
+						} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+							flushNet();
+							return -1;
+						}
+						break;
+					}
+					default: {
+						int unwrapped = unwrap();
+						if (unwrapped < 0) {
+							return -1;
+						} else if (unwrapped == 0) {
+							int amountRead = readNet();
+							if (amountRead < 0) {
+								return -1;
+							} else if (amountRead == 0) {
+								return 0;
+							}
+						}
+						break;
+					}
+				}
+			}
+		} finally {
+			writeLock.unlock();
+			readLock.unlock();
+		}
+	}
+
+	private void runTasksAsync() {
+		taskRunning = true;
+		getHandshakeExecutor().execute(() -> {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+			taskRunning = false;
+			Runnable callback = taskDone;
+			if (callback != null) {
+				callback.run();
+			}
+		});
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Expect a PROXY protocol header before the handshake.
+	 */
+	void expectProxyHeader() {
+		proxyHeaderPending = true;
+	}
+
+	/**
+	 * Get the client address from the PROXY protocol header, available once
+	 * the handshake is done.
+	 *
+	 * @return the client address, or null if there was none
+	 */
+	InetSocketAddress getProxiedSource() {
+		return proxiedSource;
+	}
+
+	/**
+	 * Read the PROXY protocol header, it comes before the TLS records on the
+	 * connection.
+	 *
+	 * @return 1 if the header was read, 0 if more data is needed, -1 if the
+	 * connection was closed
+	 */
+	private int readProxyHeader() throws IOException {
+		while (true) {
+			ByteBuffer data = netIn.duplicate();
+			data.flip();
+			byte[] b = new byte[data.remaining()];
+			data.get(b);
+			ProxyProtocol header = ProxyProtocol.parse(b, 0, b.length);
+			if (header != null) {
+				netIn.flip();
+				netIn.position(header.length);
+				netIn.compact();
+				proxiedSource = header.source;
+				proxyHeaderPending = false;
+				return 1;
+			}
+			if (!netIn.hasRemaining()) {
+				throw new IOException("PROXY protocol header too long");
+			}
+			int amountRead = readNet();
+			if (amountRead <= 0) {
+				return amountRead;
+			}
+		}
+	}
+
+	private void ensureReadBuffers() throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		if (netIn == null) {
+			netIn = packetBuffers.acquire();
+		}
+		if (appIn == null) {
+			appIn = applicationBuffers.acquire();
+		}
+	}
+
+	private void ensureWriteBuffer() throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		if (netOut == null) {
+			netOut = packetBuffers.acquire();
+		}
+	}
+
+	/**
+	 * Give the buffers back to the pools if nothing is waiting in them, called
+	 * by the event loop while the connection waits for its next request.
+	 */
+	void releaseBuffersIfIdle() {
+		if (!readLock.tryLock()) {
+			return;
+		}
+		try {
+			if (!writeLock.tryLock()) {
+				return;
+			}
+			try {
+				if (taskRunning || (netIn != null && netIn.position() > 0)
+						|| (appIn != null && appIn.position() > 0)
+						|| (netOut != null && netOut.position() > 0)) {
+					return;
+				}
+				releaseBuffers();
+			} finally {
+				writeLock.unlock();
+			}
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	private void releaseBuffers() {
+		packetBuffers.release(netIn);
+		applicationBuffers.release(appIn);
+		packetBuffers.release(netOut);
+		netIn = null;
+		appIn = null;
+		netOut = null;
+	}
+
+	/**
+	 * Unwrap one record from netIn into appIn, and take care of any handshake
+	 * messages that come after the initial handshake.
+	 *
+	 * @return 1 if progress was made, 0 if more network data is needed, -1 if
+	 * the client closed the TLS session
+	 */
+	private int unwrap() throws IOException {
+		netIn.flip();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			netIn.compact();
+		}
+		switch (result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				if (netIn.position() == netIn.capacity()) {
+					// the record is bigger than the buffer
+					netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+				}
+				return 0;
+			case BUFFER_OVERFLOW:
+				if (appIn.position() > 0) {
+					// let the caller take what has been decrypted so far
+					return 1;
+				}
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+				return 1;
+			case CLOSED:
+				inboundDone = true;
+				return -1;
+			default:
+				if (handshakeDone) {
+					afterHandshake(result.getHandshakeStatus());
+				}
+				return 1;
+		}
+	}
+
+	/**
+	 * Answer handshake messages that arrive with the application data, such as
+	 * key updates.
+	 */
+	private void afterHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+		while (true) {
+			if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				runTasks();
+			} else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+				writeLock.lock();
+				try {
+					ensureWriteBuffer();
+					SSLEngineResult result = engine.wrap(empty, netOut);
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						flushNet();
+						growNetOut();
+					} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						return;
+					}
+					// in non-blocking mode whatever doesn't fit goes out with
+					// the next write
+					flushNet();
+				} finally {
+					writeLock.unlock();
+				}
+			} else {
+				return;
+			}
+			status = engine.getHandshakeStatus();
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	private void growNetOut() {
+		if (netOut.position() == 0) {
+			netOut = ByteBuffer.allocateDirect(Math.max(engine.getSession().getPacketBufferSize(), netOut.capacity() * 2));
+		}
+	}
+
+	/**
+	 * Read from the network into netIn. In blocking mode this waits for data,
+	 * up to the read timeout.
+	 *
+	 * @return the amount of bytes read, 0 only in non-blocking mode, or -1 at
+	 * the end of the stream
+	 */
+	private int readNet() throws IOException {
+		int amount = channel.read(netIn);
+		if (amount != 0 || !blocking) {
+			return amount;
+		}
+		if (readSelector == null) {
+			readSelector = openSelector(SelectionKey.OP_READ);
+		}
+		int timeout = soTimeout;
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			long wait = 0L;
+			if (timeout > 0) {
+				wait = deadline - System.currentTimeMillis();
+				if (wait <= 0L) {
+					throw new SocketTimeoutException("Read timed out");
+				}
+			}
+			select(readSelector, wait);
+			amount = channel.read(netIn);
+			if (amount != 0) {
+				return amount;
+			}
+		}
+	}
+
+	/**
+	 * Write netOut to the network.
+	 *
+	 * @return true if everything was written, which is always the case in
+	 * blocking mode
+	 */
+	private boolean flushNet() throws IOException {
+		netOut.flip();
+		try {
+			while (netOut.hasRemaining()) {
+				if (channel.write(netOut) > 0) {
+					continue;
+				}
+				if (!blocking) {
+					return false;
+				}
+				if (writeSelector == null) {
+					writeSelector = openSelector(SelectionKey.OP_WRITE);
+				}
+				select(writeSelector, 0L);
+			}
+			return true;
+		} finally {
+			netOut.compact();
+		}
+	}
+
+	private void select(Selector selector, long timeout) throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		try {
+			selector.select(timeout);
+			selector.selectedKeys().clear();
+		} catch (ClosedSelectorException e) {
+			throw new SocketException("Socket is closed");
+		}
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	private Selector openSelector(int ops) throws IOException {
+		Selector selector = Selector.open();
+		try {
+			channel.register(selector, ops);
+		} catch (IOException | RuntimeException e) {
+			selector.close();
+			throw e;
+		}
+		return selector;
+	}
+
+	private static void wakeup(Selector selector) {
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	private static void closeSelector(Selector selector) {
+		if (selector == null) {
+			return;
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Decrypt application data into <code>dst</code>.
+	 *
+	 * @return the amount of bytes, 0 if nothing is available in non-blocking
+	 * mode, or -1 at the end of the stream
+	 */
+	private int read(ByteBuffer dst, byte[] b, int off, int len) throws IOException {
+		readLock.lock();
+		try {
+			ensureReadBuffers();
+			while (true) {
+				if (appIn.position() > 0) {
+					appIn.flip();
+					int amount;
+					if (dst != null) {
+						amount = Math.min(dst.remaining(), appIn.remaining());
+						ByteBuffer slice = appIn.duplicate();
+						slice.limit(slice.position() + amount);
+						dst.put(slice);
+						appIn.position(appIn.position() + amount);
+					} else {
+						amount = Math.min(len, appIn.remaining());
+						appIn.get(b, off, amount);
+					}
+					appIn.compact();
+					return amount;
+				}
+				if (inboundDone) {
+					return -1;
+				}
+				int unwrapped = netIn.position() > 0 ? unwrap() : 0;
+				if (unwrapped < 0) {
+					continue;
+				} else if (unwrapped == 0) {
+					int amountRead = readNet();
+					if (amountRead < 0) {
+						inboundDone = true;
+						try {
+							engine.closeInbound();
+						} catch (SSLException e) {
+							// the client didn't send close_notify, nothing to do
+							// about it
+						}
+					} else if (amountRead == 0) {
+						return 0;
+					}
+				}
+			}
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		writeLock.lock();
+		try {
+			ensureWriteBuffer();
+			if (outboundDone) {
+				throw new SocketException("Socket output is shutdown");
+			}
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (src.hasRemaining()) {
+				SSLEngineResult result = engine.wrap(src, netOut);
+				switch (result.getStatus()) {
+					case BUFFER_OVERFLOW:
+						if (netOut.position() == 0) {
+							growNetOut();
+						} else {
+							flushNet();
+						}
+						break;
+					case CLOSED:
+						throw new SocketException("Socket is closed");
+					default:
+						if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+							if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+								runTasks();
+							} else {
+								throw new SSLException("Renegotiation is not supported");
+							}
+						}
+						break;
+				}
+			}
+			flushNet();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Send close_notify, best effort.
+	 */
+	private void closeOutbound() {
+		if (!writeLock.tryLock()) {
+			// a write is stuck, the TCP connection is closed anyway
+			return;
+		}
+		try {
+			if (outboundDone || closed) {
+				return;
+			}
+			outboundDone = true;
+			engine.closeOutbound();
+			ensureWriteBuffer();
+			while (!engine.isOutboundDone()) {
+				SSLEngineResult result = engine.wrap(empty, netOut);
+				if (result.getStatus() != SSLEngineResult.Status.OK && result.getStatus() != SSLEngineResult.Status.CLOSED) {
+					break;
+				}
+				if (result.bytesProduced() == 0) {
+					break;
+				}
+			}
+			flushNet();
+		} catch (IOException e) {
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	InputStream getTLSInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * Get a non-blocking view of the decrypted input, for reading request
+	 * heads on the event loop.
+	 *
+	 * @return the channel
+	 */
+	ReadableByteChannel getReadChannel() {
+		return readChannel;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		return inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		return outputStream;
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		closeOutbound();
+		channel.shutdownOutput();
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		channel.shutdownInput();
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return outboundDone || channel.socket().isOutputShutdown();
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return channel.socket().isInputShutdown();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closeOutbound();
+		closed = true;
+		try {
+			channel.close();
+		} finally {
+			// anyone still reading or writing fails now that the channel is
+			// closed, wait for them before the buffers go back to the pools
+			wakeup(readSelector);
+			wakeup(writeSelector);
+			readLock.lock();
+			writeLock.lock();
+			try {
+				releaseBuffers();
+				closeSelector(readSelector);
+				closeSelector(writeSelector);
+			} finally {
+				writeLock.unlock();
+				readLock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return channel.socket().getPort();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return channel.socket().getLocalAddress();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return channel.socket().getLocalSocketAddress();
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout can't be negative");
+		}
+		soTimeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return soTimeout;
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		channel.socket().setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return channel.socket().getTcpNoDelay();
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+		channel.socket().setKeepAlive(on);
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return channel.socket().getKeepAlive();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		channel.socket().setSoLinger(on, linger);
+	}
+
+	@Override
+	public int getSoLinger() throws SocketException {
+		return channel.socket().getSoLinger();
+	}
+
+	@Override
+	public String toString() {
+		return "TLSSocket[" + channel.socket() + "]";
+	}
+
+	private final class TLSInputStream extends InputStream {
+
+		private final byte[] singleByte = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			int amount = read(singleByte, 0, 1);
+			return amount < 0 ? -1 : (singleByte[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len <= 0) {
+				return 0;
+			}
+			return TLSSocket.this.read(null, b, off, len);
+		}
+
+		@Override
+		public int available() {
+			if (!readLock.tryLock()) {
+				return 0;
+			}
+			try {
+				return appIn == null ? 0 : appIn.position();
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			TLSSocket.this.close();
+		}
+	}
+
+	private final class TLSOutputStream extends OutputStream {
+
+		private final byte[] singleByte = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			singleByte[0] = (byte) b;
+			write(singleByte, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > 0) {
+				TLSSocket.this.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			TLSSocket.this.close();
+		}
+	}
+
+	private final class TLSReadChannel implements ReadableByteChannel {
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			return TLSSocket.this.read(dst, null, 0, 0);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		@Override
+		public void close() throws IOException {
+			TLSSocket.this.close();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Access to Unix domain sockets. This is the implementation for Java versions
+ * that don't have Unix domain socket channels, on Java 16 and newer the
+ * version in <code>META-INF/versions/16</code> is used instead.
+ */
+final class UnixDomainSockets {
+
+	private UnixDomainSockets() {
+	}
+
+	static boolean isUnixAddress(SocketAddress address) {
+		return false;
+	}
+
+	static SocketAddress address(Path path) {
+		throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer.");
+	}
+
+	static ServerSocketChannel openServerChannel() throws IOException {
+		throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer.");
+	}
+
+	static void deleteStaleSocketFile(SocketAddress address) {
+	}
+
+	static void deleteSocketFile(SocketAddress address) {
+	}
+}
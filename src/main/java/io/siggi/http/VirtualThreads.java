@@ -0,0 +1,18 @@
+package io.siggi.http;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Access to virtual threads. This is the implementation for Java versions
+ * that don't have virtual threads, on Java 21 and newer the version in
+ * <code>META-INF/versions/21</code> is used instead.
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	static Executor newExecutor() {
+		throw new UnsupportedOperationException("Virtual threads require Java 21 or newer.");
+	}
+}
@@ -3,6 +3,7 @@ package io.siggi.http.defaultresponders;
 import io.siggi.http.HTTPRequest;
 import io.siggi.http.HTTPResponder;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -53,10 +54,36 @@ public class DefaultResponder implements HTTPResponder {
 		}
 	}
 
+	private static final class Page {
+
+		final String signature;
+		final byte[] bytes;
+
+		Page(String signature, byte[] bytes) {
+			this.signature = signature;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * The page rendered for the last server signature, pages are only
+	 * rendered again if the signature changes.
+	 */
+	private volatile Page page = null;
+
+	private byte[] getPage(HTTPRequest request) {
+		String signature = request.getServerSignature();
+		Page p = page;
+		if (p == null || !p.signature.equals(signature)) {
+			String html = "<!DOCTYPE html>\n<html>\n<head>\n<title>" + code + " " + title + "</title>\n" + STYLE + "</head>\n<body>\n<h1>" + code + " " + title + "</h1><br>\n" + message + "<br>\n<hr>\n" + signature + "<br>\n</body>\n</html>";
+			page = p = new Page(signature, html.getBytes(StandardCharsets.UTF_8));
+		}
+		return p.bytes;
+	}
+
 	@Override
 	public void respond(HTTPRequest request) throws IOException {
-		String page = "<!DOCTYPE html>\n<html>\n<head>\n<title>" + code + " " + title + "</title>\n" + STYLE + "</head>\n<body>\n<h1>" + code + " " + title + "</h1><br>\n" + message + "<br>\n<hr>\n" + request.getServerSignature() + "<br>\n</body>\n</html>";
-		byte pageBytes[] = request.response.getBytes(page);
+		byte pageBytes[] = getPage(request);
 		request.response.setHeader(code + " " + title);
 		request.response.contentLength(pageBytes.length);
 		request.response.setHeader("Content-Type", "text/html; charset=utf-8");
@@ -1,68 +1,234 @@
 package io.siggi.http.io;
 
-import java.io.ByteArrayOutputStream;
+import io.siggi.http.util.CaseInsensitiveHashMap;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Decodes a body sent with the chunked transfer encoding. Chunk sizes are
+ * parsed byte by byte as they are read, without building lines, so the
+ * underlying stream should be buffered. Chunk data is read in bulk, chunk
+ * extensions are ignored, and the trailers after the last chunk are kept so
+ * they can be looked at once the body has been read.
+ */
 public final class ChunkedInputStream extends InputStream {
 
+	private static final int stateChunkHeader = 0;
+	private static final int stateData = 1;
+	private static final int stateDataEnd = 2;
+	private static final int stateDone = 3;
+
 	private final InputStream in;
-	private long remainingInChunk = 0;
-	private boolean endOfStream = false;
+	private final int maxChunkHeaderLength;
+	private final int maxTrailerLength;
+	private int state = stateChunkHeader;
+	private long remainingInChunk = 0L;
+	private Map<String, List<String>> trailers = null;
+	private byte[] line = null;
 
 	private final byte[] singleByte = new byte[1];
 
-	private boolean receivedTerminatorChunk = false;
-
 	public ChunkedInputStream(InputStream in) {
+		this(in, 4096, 16384);
+	}
+
+	/**
+	 * @param in the stream to read from, which should be buffered
+	 * @param maxChunkHeaderLength the longest chunk size line allowed,
+	 * including chunk extensions
+	 * @param maxTrailerLength the most trailer data allowed after the last
+	 * chunk
+	 */
+	public ChunkedInputStream(InputStream in, int maxChunkHeaderLength, int maxTrailerLength) {
 		this.in = in;
+		this.maxChunkHeaderLength = maxChunkHeaderLength;
+		this.maxTrailerLength = maxTrailerLength;
 	}
 
-	private String readLine() throws IOException {
-		int c;
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		boolean eof = true;
-		while ((c = in.read()) != -1) {
-			eof = false;
+	private int readByte() throws IOException {
+		int c = in.read();
+		if (c == -1) {
+			throw new EOFException("Chunked body ended early");
+		}
+		return c;
+	}
+
+	private static int hexValue(int c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read a chunk size line, the hex size optionally followed by whitespace
+	 * and chunk extensions, ending in CRLF or a bare LF.
+	 */
+	private long readChunkSize() throws IOException {
+		long size = 0L;
+		int digits = 0;
+		boolean inExtension = false;
+		boolean sawCR = false;
+		for (int length = 1;; length++) {
+			if (length > maxChunkHeaderLength) {
+				throw new IOException("Chunk header too long");
+			}
+			int c = readByte();
 			if (c == 0x0A) {
-				break;
+				if (digits == 0) {
+					throw new IOException("Invalid chunk header");
+				}
+				return size;
+			} else if (sawCR) {
+				throw new IOException("Invalid chunk header");
+			} else if (c == 0x0D) {
+				sawCR = true;
+			} else if (inExtension) {
+				// extensions are skipped, their syntax doesn't matter
+			} else {
+				int value = hexValue(c);
+				if (value >= 0) {
+					if (size > (Long.MAX_VALUE >> 4)) {
+						throw new IOException("Chunk too big");
+					}
+					size = (size << 4) | value;
+					digits++;
+				} else if (digits > 0 && (c == ';' || c == ' ' || c == '\t')) {
+					inExtension = true;
+				} else {
+					throw new IOException("Invalid chunk header");
+				}
 			}
-			baos.write(c);
 		}
-		String line;
-		try {
-			line = new String(baos.toByteArray(), "UTF-8");
-		} catch (UnsupportedEncodingException ex) {
-			throw new RuntimeException(ex);
+	}
+
+	/**
+	 * Read the CRLF, or bare LF, that ends the data of a chunk.
+	 */
+	private void readDataEnd() throws IOException {
+		int c = readByte();
+		if (c == 0x0D) {
+			c = readByte();
 		}
-		if (line.endsWith("\r")) {
-			line = line.substring(0, line.length() - 1);
+		if (c != 0x0A) {
+			throw new IOException("Missing CRLF after chunk data");
 		}
-		if (line.isEmpty() && eof) {
-			return null;
+	}
+
+	/**
+	 * Read the trailer section, up to and including the empty line that ends
+	 * the body.
+	 */
+	private void readTrailers() throws IOException {
+		int total = 0;
+		while (true) {
+			int length = readLine(maxTrailerLength - total);
+			if (length == 0) {
+				return;
+			}
+			total += length;
+			int colon = -1;
+			for (int i = 0; i < length; i++) {
+				if (line[i] == ':') {
+					colon = i;
+					break;
+				}
+			}
+			if (colon <= 0) {
+				throw new IOException("Invalid trailer");
+			}
+			int start = colon + 1;
+			while (start < length && (line[start] == ' ' || line[start] == '\t')) {
+				start++;
+			}
+			int end = length;
+			while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+				end--;
+			}
+			String name = new String(line, 0, colon, StandardCharsets.UTF_8);
+			String value = new String(line, start, end - start, StandardCharsets.UTF_8);
+			if (trailers == null) {
+				trailers = new CaseInsensitiveHashMap<>();
+			}
+			List<String> values = trailers.get(name);
+			if (values == null) {
+				trailers.put(name, values = new ArrayList<>());
+			}
+			values.add(value);
 		}
-		return line;
 	}
 
-	private long getChunkSize() throws IOException {
-		int c = 0;
-		String line;
-		while ((line = readLine()) != null) {
-			try {
-				long s = Long.parseLong(line, 16);
-				if (s == 0) {
-					receivedTerminatorChunk = true;
+	/**
+	 * Read a line into {@link #line}.
+	 *
+	 * @return the length of the line, without the CRLF
+	 */
+	private int readLine(int maxLength) throws IOException {
+		if (line == null) {
+			line = new byte[128];
+		}
+		int length = 0;
+		while (true) {
+			int c = readByte();
+			if (c == 0x0A) {
+				if (length > 0 && line[length - 1] == 0x0D) {
+					length--;
 				}
-				return s;
-			} catch (Exception e) {
+				return length;
+			}
+			if (length >= maxLength) {
+				throw new IOException("Trailers too long");
 			}
-			c += 1;
-			if (c >= 3) {
-				return 0L;
+			if (length == line.length) {
+				byte[] newLine = new byte[line.length * 2];
+				System.arraycopy(line, 0, newLine, 0, length);
+				line = newLine;
+			}
+			line[length++] = (byte) c;
+		}
+	}
+
+	/**
+	 * Move on to the data of the next chunk, or to the end of the body.
+	 *
+	 * @return false if the body has ended
+	 */
+	private boolean nextChunk() throws IOException {
+		while (true) {
+			switch (state) {
+				case stateData:
+					if (remainingInChunk > 0L) {
+						return true;
+					}
+					state = stateDataEnd;
+					break;
+				case stateDataEnd:
+					readDataEnd();
+					state = stateChunkHeader;
+					break;
+				case stateChunkHeader:
+					remainingInChunk = readChunkSize();
+					if (remainingInChunk == 0L) {
+						readTrailers();
+						state = stateDone;
+						return false;
+					}
+					state = stateData;
+					return true;
+				default:
+					return false;
 			}
 		}
-		return 0L;
 	}
 
 	@Override
@@ -81,33 +247,44 @@ public final class ChunkedInputStream extends InputStream {
 
 	@Override
 	public int read(byte[] buffer, int offset, int length) throws IOException {
-		if (endOfStream) {
-			return -1;
+		if (length <= 0) {
+			return 0;
 		}
-		int maxRead;
-		if (remainingInChunk <= 0L) {
-			remainingInChunk = getChunkSize();
-			if (remainingInChunk == 0L) {
-				endOfStream = true;
-				return -1;
-			}
-		}
-		if (remainingInChunk > Integer.MAX_VALUE) {
-			maxRead = Integer.MAX_VALUE;
-		} else {
-			maxRead = (int) remainingInChunk;
+		if (!nextChunk()) {
+			return -1;
 		}
-		int actualLength = Math.min(length, maxRead);
-		int readAmount = in.read(buffer, offset, actualLength);
+		int amount = (int) Math.min((long) length, remainingInChunk);
+		int readAmount = in.read(buffer, offset, amount);
 		if (readAmount == -1) {
-			endOfStream = true;
-			return readAmount;
+			throw new EOFException("Chunked body ended early");
 		}
 		remainingInChunk -= readAmount;
 		return readAmount;
 	}
 
+	@Override
+	public int available() throws IOException {
+		if (state != stateData) {
+			return 0;
+		}
+		return (int) Math.min((long) in.available(), remainingInChunk);
+	}
+
 	public boolean didReceiveTerminatorChunk() {
-		return receivedTerminatorChunk;
+		return state == stateDone;
+	}
+
+	/**
+	 * Get the trailers sent after the last chunk. They are only available
+	 * once the whole body has been read.
+	 *
+	 * @return the trailers, an empty map if there were none or the body
+	 * hasn't been read to the end yet
+	 */
+	public Map<String, List<String>> getTrailers() {
+		if (trailers == null) {
+			return Collections.emptyMap();
+		}
+		return trailers;
 	}
 }
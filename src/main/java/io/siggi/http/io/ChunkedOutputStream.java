@@ -2,27 +2,106 @@ package io.siggi.http.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Writes data with the chunked transfer encoding. Writes smaller than the
+ * minimum chunk size are collected until there's enough for a chunk, and each
+ * chunk's size line, data and ending CRLF are written with as few writes to
+ * the underlying stream as possible.
+ */
 public final class ChunkedOutputStream extends OutputStream {
 
+	private static final byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Room for the size line in front of the data, 8 hex digits and a CRLF.
+	 */
+	private static final int headerLength = 10;
+	private static final byte[] lastChunk = {0x30, 0x0D, 0x0A, 0x0D, 0x0A};
+
 	public ChunkedOutputStream(OutputStream out) {
-		this.out=out;
+		this(out, 0);
+	}
+
+	/**
+	 * @param out the stream to write the chunks to
+	 * @param minChunkSize writes are collected until there is at least this
+	 * much data, unless the stream is flushed, 0 to send each write as its
+	 * own chunk
+	 */
+	public ChunkedOutputStream(OutputStream out, int minChunkSize) {
+		this.out = out;
+		this.minChunkSize = minChunkSize;
+		this.buffer = new byte[bufferSize(minChunkSize)];
+	}
+
+	/**
+	 * The buffer needs room for the size line, at least one byte of data
+	 * and the CRLF after the data.
+	 */
+	private static int bufferSize(int minChunkSize) {
+		return headerLength + Math.max(minChunkSize, 1) + 2;
 	}
 
 	private final OutputStream out;
+	private int minChunkSize;
+	private byte[] buffer;
+	private int count = 0;
+	private List<String> trailers = null;
 	private boolean closed = false;
 
+	/**
+	 * Write a chunk size line so that it ends right before <code>end</code>.
+	 *
+	 * @return where the size line starts
+	 */
+	private int writeSize(int size, int end) {
+		buffer[end - 2] = 0x0D;
+		buffer[end - 1] = 0x0A;
+		int pos = end - 2;
+		do {
+			buffer[--pos] = hex[size & 0xf];
+			size >>>= 4;
+		} while (size != 0);
+		return pos;
+	}
+
+	/**
+	 * Write the collected data, followed by <code>len</code> bytes of
+	 * <code>b</code>, as a single chunk.
+	 */
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		int size = count + len;
+		if (size == 0) {
+			return;
+		}
+		int start = writeSize(size, headerLength);
+		if (len == 0 || len <= buffer.length - headerLength - count - 2) {
+			// everything fits in the buffer, write it all at once
+			System.arraycopy(b, off, buffer, headerLength + count, len);
+			int end = headerLength + size;
+			buffer[end] = 0x0D;
+			buffer[end + 1] = 0x0A;
+			out.write(buffer, start, end + 2 - start);
+		} else {
+			out.write(buffer, start, headerLength + count - start);
+			out.write(b, off, len);
+			out.write(buffer, headerLength - 2, 2);
+		}
+		count = 0;
+	}
+
 	@Override
 	public void write(int b) throws IOException {
 		if (closed) {
 			throw new IOException("Stream closed!");
 		}
-		out.write((Integer.toString(1, 16)).getBytes());
-		out.write(0x0D);
-		out.write(0x0A);
-		out.write(b);
-		out.write(0x0D);
-		out.write(0x0A);
+		buffer[headerLength + count++] = (byte) b;
+		if (count >= minChunkSize) {
+			writeChunk(buffer, 0, 0);
+		}
 	}
 
 	@Override
@@ -35,12 +114,44 @@ public final class ChunkedOutputStream extends OutputStream {
 		if (closed) {
 			throw new IOException("Stream closed!");
 		}
-		out.write((Integer.toString(len, 16)).getBytes());
-		out.write(0x0D);
-		out.write(0x0A);
-		out.write(b, off, len);
-		out.write(0x0D);
-		out.write(0x0A);
+		if (len <= 0) {
+			return;
+		}
+		if (count + len < minChunkSize) {
+			System.arraycopy(b, off, buffer, headerLength + count, len);
+			count += len;
+			return;
+		}
+		writeChunk(b, off, len);
+	}
+
+	/**
+	 * Change the minimum chunk size. Data that has already been collected is
+	 * written as a chunk first.
+	 *
+	 * @param minChunkSize the new minimum chunk size, 0 to send each write as
+	 * its own chunk
+	 * @throws IOException if something goes wrong
+	 */
+	public void setMinChunkSize(int minChunkSize) throws IOException {
+		writeChunk(buffer, 0, 0);
+		if (bufferSize(minChunkSize) > buffer.length) {
+			buffer = new byte[bufferSize(minChunkSize)];
+		}
+		this.minChunkSize = minChunkSize;
+	}
+
+	/**
+	 * Add a trailer to send after the last chunk when the stream is closed.
+	 *
+	 * @param name the trailer name
+	 * @param value the trailer value
+	 */
+	public void addTrailer(String name, String value) {
+		if (trailers == null) {
+			trailers = new ArrayList<>();
+		}
+		trailers.add(name + ": " + value + "\r\n");
 	}
 
 	@Override
@@ -48,20 +159,32 @@ public final class ChunkedOutputStream extends OutputStream {
 		if (closed) {
 			return;
 		}
+		writeChunk(buffer, 0, 0);
 		out.flush();
 	}
 
+	/**
+	 * Write the collected data, the last chunk and the trailers. The
+	 * underlying stream is not flushed or closed.
+	 *
+	 * @throws IOException if something goes wrong
+	 */
 	@Override
 	public void close() throws IOException {
 		if (closed) {
 			return;
 		}
 		closed = true;
-		out.flush();
-		out.write(0x30);
-		out.write(0x0D);
-		out.write(0x0A);
-		out.write(0x0D);
-		out.write(0x0A);
+		writeChunk(buffer, 0, 0);
+		if (trailers == null) {
+			out.write(lastChunk);
+			return;
+		}
+		StringBuilder sb = new StringBuilder("0\r\n");
+		for (String trailer : trailers) {
+			sb.append(trailer);
+		}
+		sb.append("\r\n");
+		out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
 	}
 }
@@ -2,15 +2,15 @@ package io.siggi.http.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 public final class EOFInputStream extends InputStream {
 
 	private final SecureBufferedInputStream in;
-	// the buffer is only used inside read0()
-	// it is safe to overwrite the buffer with 0's outside of read0() as
-	// data written to it is never reused after exiting the method
-	private byte[] buffer = new byte[4096];
 	private byte[] eofSequence = null;
+	// how far the search can move ahead when the byte under the last
+	// position of the EOF sequence is a given value
+	private final int[] skipTable = new int[256];
 	private boolean reachedEofSequence = false;
 
 	public EOFInputStream(InputStream in) {
@@ -55,6 +55,11 @@ public final class EOFInputStream extends InputStream {
 		}
 		this.eofSequence = new byte[eofSequence.length];
 		System.arraycopy(eofSequence, 0, this.eofSequence, 0, eofSequence.length);
+		int last = eofSequence.length - 1;
+		Arrays.fill(skipTable, eofSequence.length);
+		for (int i = 0; i < last; i++) {
+			skipTable[eofSequence[i] & 0xff] = last - i;
+		}
 	}
 
 	/**
@@ -93,6 +98,11 @@ public final class EOFInputStream extends InputStream {
 		return x;
 	}
 
+	/**
+	 * Read as much as possible that is certainly not part of the EOF sequence.
+	 * The EOF sequence is searched for directly in the buffer of the
+	 * underlying stream, and the bytes before it are copied out once.
+	 */
 	private int read0(byte[] b, int offset, int length) throws IOException {
 		if (reachedEofSequence) {
 			return -1;
@@ -100,96 +110,77 @@ public final class EOFInputStream extends InputStream {
 		if (eofSequence == null) {
 			return in.read(b, offset, length);
 		}
-		int bufferSize = length + eofSequence.length;
-		in.mark(bufferSize);
-		if (buffer.length < bufferSize) {
-			for (int i = 0; i < buffer.length; i++) {
-				buffer[i] = (byte) 0;
-			}
-			buffer = new byte[bufferSize];
+		int sequenceLength = eofSequence.length;
+		int available = in.ensureBuffered(sequenceLength);
+		if (available < sequenceLength) {
+			// the stream ended, the EOF sequence can't be in what's left
+			return in.read(b, offset, Math.min(length, available));
 		}
-		int amountRead = in.read(buffer, 0, bufferSize);
-		if (amountRead == -1) {
+		byte[] buffer = in.buffer();
+		int start = in.position();
+		// only look as far as could matter for this read
+		int window = (int) Math.min((long) available, (long) length + sequenceLength - 1);
+		int found = search(buffer, start, start + window);
+		if (found == 0) {
+			reachedEofSequence = true;
 			return -1;
 		}
-		int initialSearch = search(buffer, amountRead, eofSequence);
-		if (initialSearch < 0) {
-			if (amountRead > length) {
-				in.reset();
-				in.skip(length);
-				amountRead = length;
-			}
-			System.arraycopy(buffer, 0, b, offset, amountRead);
-			return amountRead;
-		} else if (initialSearch == 0) {
-			if (amountRead >= eofSequence.length) {
+		if (found > 0) {
+			if (found <= length) {
 				reachedEofSequence = true;
-				in.reset();
-				return -1;
 			}
-			while (true) {
-				int r = in.read(buffer, amountRead, bufferSize - amountRead);
-				if (r == -1) {
-					int amountToCopy = Math.min(length, amountRead);
-					System.arraycopy(buffer, 0, b, offset, amountToCopy);
-					in.reset();
-					in.skip(amountToCopy);
-					return amountToCopy;
+			return in.read(b, offset, Math.min(length, found));
+		}
+		// no complete match, the end of the window may still be the start of
+		// one that continues beyond it
+		int safe = window - sequenceLength + 1;
+		while (safe < window && !isPrefix(buffer, start + safe, start + window)) {
+			safe++;
+		}
+		return in.read(b, offset, Math.min(length, safe));
+	}
+
+	/**
+	 * Find the first complete EOF sequence in a range of a buffer with the
+	 * Boyer-Moore-Horspool algorithm.
+	 *
+	 * @return where the sequence starts relative to start, or -1 if it isn't
+	 * in the range
+	 */
+	private int search(byte[] buffer, int start, int end) {
+		byte[] needle = eofSequence;
+		int last = needle.length - 1;
+		byte lastByte = needle[last];
+		for (int i = start; i + last < end;) {
+			byte c = buffer[i + last];
+			if (c == lastByte) {
+				int j = last - 1;
+				while (j >= 0 && buffer[i + j] == needle[j]) {
+					j--;
 				}
-				amountRead += r;
-				initialSearch = search(buffer, amountRead, eofSequence);
-				if (amountRead >= eofSequence.length && initialSearch == 0) {
-					reachedEofSequence = true;
-					in.reset();
-					return -1;
-				} else if (initialSearch < 0) {
-					if (amountRead > length) {
-						in.reset();
-						in.skip(length);
-						amountRead = length;
-					}
-					System.arraycopy(buffer, 0, b, offset, amountRead);
-					return amountRead;
-				} else if (initialSearch > 0) {
-					if (amountRead - initialSearch >= eofSequence.length) {
-						reachedEofSequence = true;
-					}
-					int amountToCopy = Math.min(length, initialSearch);
-					System.arraycopy(buffer, 0, b, offset, amountToCopy);
-					in.reset();
-					in.skip(amountToCopy);
-					return amountToCopy;
+				if (j < 0) {
+					return i - start;
 				}
 			}
-		} else {
-			if (amountRead - initialSearch >= eofSequence.length) {
-				reachedEofSequence = true;
-			}
-			int amountToCopy = Math.min(length, initialSearch);
-			System.arraycopy(buffer, 0, b, offset, amountToCopy);
-			in.reset();
-			in.skip(amountToCopy);
-			return amountToCopy;
+			i += skipTable[c & 0xff];
 		}
+		return -1;
 	}
 
-	private int search(byte[] haystack, int haystackLength, byte[] needle) {
-		search:
-		for (int i = 0; i < haystackLength; i++) {
-			for (int j = 0; j < needle.length && i + j < haystackLength; j++) {
-				if (haystack[i + j] != needle[j]) {
-					continue search;
-				}
+	/**
+	 * Check whether the bytes from start to end are the beginning of the EOF
+	 * sequence.
+	 */
+	private boolean isPrefix(byte[] buffer, int start, int end) {
+		for (int i = start, j = 0; i < end; i++, j++) {
+			if (buffer[i] != eofSequence[j]) {
+				return false;
 			}
-			return i;
 		}
-		return -1;
+		return true;
 	}
 
 	public void eraseFreeSpace() {
-		for (int i = 0; i < buffer.length; i++) {
-			buffer[i] = (byte) 0;
-		}
 		in.eraseFreeSpace();
 	}
 }
@@ -127,6 +127,67 @@ public class SecureBufferedInputStream extends InputStream {
 		return amountToRead;
 	}
 
+	/**
+	 * Make sure at least <code>n</code> bytes are buffered, reading from the
+	 * underlying stream only if fewer than that are buffered already. The
+	 * buffered bytes can then be looked at with {@link #buffer()} starting at
+	 * {@link #position()} without consuming them.
+	 *
+	 * @param n the number of bytes needed
+	 * @return the number of bytes buffered, fewer than n only if the
+	 * underlying stream ended
+	 * @throws IOException if something goes wrong
+	 */
+	int ensureBuffered(int n) throws IOException {
+		InputStream i = getIn();
+		while (writePos - readPos < n) {
+			if (writePos == buffer.length) {
+				// make room by moving what's still needed to the start of the
+				// buffer, or to a bigger buffer if it doesn't fit
+				int keepFrom = markPos >= 0 ? markPos : readPos;
+				int kept = writePos - keepFrom;
+				byte[] target = buffer;
+				if (readPos - keepFrom + n > buffer.length) {
+					target = new byte[Math.max(buffer.length * 2, readPos - keepFrom + n)];
+				}
+				System.arraycopy(buffer, keepFrom, target, 0, kept);
+				if (target != buffer) {
+					// erase the old buffer
+					for (int j = 0; j < buffer.length; j++) {
+						buffer[j] = (byte) 0;
+					}
+					buffer = target;
+				}
+				readPos -= keepFrom;
+				writePos = kept;
+				if (markPos >= 0) {
+					markPos = 0;
+				}
+			}
+			int amountRead = i.read(buffer, writePos, buffer.length - writePos);
+			if (amountRead == -1) {
+				break;
+			}
+			writePos += amountRead;
+		}
+		return writePos - readPos;
+	}
+
+	/**
+	 * Get the buffer, only valid until the next call to another method of
+	 * this stream.
+	 */
+	byte[] buffer() {
+		return getBuffer();
+	}
+
+	/**
+	 * Get where the next byte to be read is in the buffer.
+	 */
+	int position() {
+		return readPos;
+	}
+
 	@Override
 	public boolean markSupported() {
 		return true;
@@ -0,0 +1,103 @@
+package io.siggi.http.io;
+
+import io.siggi.http.exception.TooBigException;
+import io.siggi.http.util.PercentDecoder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Decodes an application/x-www-form-urlencoded body while it is being read.
+ * The body is read through a buffer supplied by the caller, and only the
+ * field currently being read is kept, so the body is never held in memory
+ * as a whole. Each field is decoded in place and put in the map as soon as
+ * it is complete.
+ */
+public final class UrlEncodedFormParser {
+
+	private final InputStream in;
+	private final byte[] buffer;
+	private final long limit;
+	private OutputStream raw = null;
+	private byte[] field = new byte[64];
+	private int fieldLength = 0;
+	private long total = 0L;
+
+	/**
+	 * @param in the body
+	 * @param buffer the buffer to read the body through, it can be reused
+	 * once parsing is finished
+	 * @param limit the most bytes the body can have, or 0 or less for no
+	 * limit
+	 */
+	public UrlEncodedFormParser(InputStream in, byte[] buffer, long limit) {
+		this.in = in;
+		this.buffer = buffer;
+		this.limit = limit;
+	}
+
+	/**
+	 * Also copy the body as it was received to a stream.
+	 *
+	 * @param raw the stream to copy the body to
+	 */
+	public void setRawOutput(OutputStream raw) {
+		this.raw = raw;
+	}
+
+	/**
+	 * Read the whole body and put the fields in a map.
+	 *
+	 * @param map the map to put the fields in
+	 * @throws TooBigException if the body is bigger than the limit
+	 * @throws IOException if something goes wrong
+	 */
+	public void parse(Map<String, String> map) throws IOException {
+		int read;
+		while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+			total += read;
+			if (limit > 0L && total > limit) {
+				throw new TooBigException();
+			}
+			if (raw != null) {
+				raw.write(buffer, 0, read);
+			}
+			int start = 0;
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '&') {
+					append(start, i - start);
+					endField(map);
+					start = i + 1;
+				}
+			}
+			append(start, read - start);
+		}
+		endField(map);
+	}
+
+	private void append(int offset, int length) {
+		if (length == 0) {
+			return;
+		}
+		if (fieldLength + length > field.length) {
+			field = Arrays.copyOf(field, Math.max(field.length * 2, fieldLength + length));
+		}
+		System.arraycopy(buffer, offset, field, fieldLength, length);
+		fieldLength += length;
+	}
+
+	private void endField(Map<String, String> map) {
+		int equals = 0;
+		while (equals < fieldLength && field[equals] != '=') {
+			equals++;
+		}
+		String key = PercentDecoder.decode(field, 0, equals, true);
+		String value = equals < fieldLength ? PercentDecoder.decode(field, equals + 1, fieldLength - equals - 1, true) : "";
+		if (!key.isEmpty() || !value.isEmpty()) {
+			map.put(key, value);
+		}
+		fieldLength = 0;
+	}
+}
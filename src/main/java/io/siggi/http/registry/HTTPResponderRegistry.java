@@ -1,6 +1,7 @@
 package io.siggi.http.registry;
 
 import io.siggi.http.HTTPResponder;
+import io.siggi.http.StaticResponder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -33,6 +34,24 @@ public class HTTPResponderRegistry {
 		return httprrr;
 	}
 
+	/**
+	 * Registers a response that never changes, such as a health check, a
+	 * robots.txt or a fixed redirect. The response is rendered ahead of time
+	 * and plain GET and HEAD requests for it are answered without creating an
+	 * {@link io.siggi.http.HTTPRequest}.
+	 *
+	 * @param path the path to register, like with
+	 * {@link #register(String, HTTPResponder)}
+	 * @param status the status code and reason, such as "200 OK"
+	 * @param headers the headers to send, can be null, Content-Length is
+	 * always set from the body
+	 * @param body the body
+	 * @return the registration
+	 */
+	public HTTPResponderRegistration registerStatic(String path, String status, Map<String, String> headers, byte[] body) {
+		return register(path, new StaticResponder(status, headers, body));
+	}
+
 	/**
 	 * Registers an HTTPResponder. It is important to note that calling this method will
 	 * replace the responder registry implementation with the old deprecated implementation.
@@ -1,8 +1,10 @@
 package io.siggi.http.util;
 
-import java.net.URLDecoder;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.TimeZone;
 
 /**
@@ -31,7 +33,36 @@ public final class HTMLUtils {
 	 */
 	@Deprecated
 	public static String escape(String text) {
-		return text.replaceAll("&", "&amp;").replaceAll("\"", "&quot;").replaceAll("<", "&lt;").replaceAll(">", "&gt;");
+		StringBuilder sb = null;
+		int plainStart = 0;
+		for (int i = 0, n = text.length(); i < n; i++) {
+			String entity;
+			switch (text.charAt(i)) {
+				case '&':
+					entity = "&amp;";
+					break;
+				case '"':
+					entity = "&quot;";
+					break;
+				case '<':
+					entity = "&lt;";
+					break;
+				case '>':
+					entity = "&gt;";
+					break;
+				default:
+					continue;
+			}
+			if (sb == null) {
+				sb = new StringBuilder(n + 16);
+			}
+			sb.append(text, plainStart, i).append(entity);
+			plainStart = i + 1;
+		}
+		if (sb == null) {
+			return text;
+		}
+		return sb.append(text, plainStart, text.length()).toString();
 	}
 
 	/**
@@ -68,529 +99,270 @@ public final class HTMLUtils {
 		return xentities(s, false, false);
 	}
 
+	/**
+	 * Escape text to show on an HTML page, writing the escaped text to
+	 * <code>out</code> instead of building a String.
+	 *
+	 * @param s The text to escape
+	 * @param escapeSpace whether to escape multiple spaces to nbsp
+	 * @param out where to write the escaped text
+	 * @throws IOException if out throws one
+	 */
+	public static void htmlentities(String s, boolean escapeSpace, Appendable out) throws IOException {
+		xentities(s, 0, true, escapeSpace, out);
+	}
+
+	/**
+	 * Escape text to show on an HTML page, writing the escaped text to
+	 * <code>out</code>. The escaped text is always plain ASCII.
+	 *
+	 * @param s The text to escape
+	 * @param escapeSpace whether to escape multiple spaces to nbsp
+	 * @param out where to write the escaped text
+	 * @throws IOException if out throws one
+	 */
+	public static void htmlentities(String s, boolean escapeSpace, OutputStream out) throws IOException {
+		AsciiAppendable appendable = new AsciiAppendable(out);
+		xentities(s, 0, true, escapeSpace, appendable);
+		appendable.flush();
+	}
+
+	/**
+	 * Escape text to include inside an XML document, writing the escaped text
+	 * to <code>out</code>.
+	 *
+	 * @param s The text to escape
+	 * @param out where to write the escaped text
+	 * @throws IOException if out throws one
+	 */
+	public static void xmlentities(String s, Appendable out) throws IOException {
+		xentities(s, 0, false, false, out);
+	}
+
+	/**
+	 * Escape text to include inside an XML document, writing the escaped text
+	 * to <code>out</code>. The escaped text is always plain ASCII.
+	 *
+	 * @param s The text to escape
+	 * @param out where to write the escaped text
+	 * @throws IOException if out throws one
+	 */
+	public static void xmlentities(String s, OutputStream out) throws IOException {
+		AsciiAppendable appendable = new AsciiAppendable(out);
+		xentities(s, 0, false, false, appendable);
+		appendable.flush();
+	}
+
+	// <editor-fold defaultstate="collapsed" desc="A crapload of html entities">
+	private static final Object[] entityList = {
+		'"', "&quot;", '&', "&amp;", '\'', "&apos;", '<', "&lt;",
+		'>', "&gt;", '¡', "&iexcl;", '¢', "&cent;", '£', "&pound;",
+		'¤', "&curren;", '¥', "&yen;", '¦', "&brvbar;", '§', "&sect;",
+		'¨', "&uml;", '©', "&copy;", 'ª', "&ordf;", '«', "&laquo;",
+		'¬', "&not;", '®', "&reg;", '¯', "&macr;", '°', "&deg;",
+		'±', "&plusmn;", '²', "&sup2;", '³', "&sup3;", '´', "&acute;",
+		'µ', "&micro;", '¶', "&para;", '·', "&middot;", '¸', "&cedil;",
+		'¹', "&sup1;", 'º', "&ordm;", '»', "&raquo;", '¼', "&frac14;",
+		'½', "&frac12;", '¾', "&frac34;", '¿', "&iquest;", 'À', "&Agrave;",
+		'Á', "&Aacute;", 'Â', "&Acirc;", 'Ã', "&Atilde;", 'Ä', "&Auml;",
+		'Å', "&Aring;", 'Æ', "&AElig;", 'Ç', "&Ccedil;", 'È', "&Egrave;",
+		'É', "&Eacute;", 'Ê', "&Ecirc;", 'Ë', "&Euml;", 'Ì', "&Igrave;",
+		'Í', "&Iacute;", 'Î', "&Icirc;", 'Ï', "&Iuml;", 'Ð', "&ETH;",
+		'Ñ', "&Ntilde;", 'Ò', "&Ograve;", 'Ó', "&Oacute;", 'Ô', "&Ocirc;",
+		'Õ', "&Otilde;", 'Ö', "&Ouml;", '×', "&times;", 'Ø', "&Oslash;",
+		'Ù', "&Ugrave;", 'Ú', "&Uacute;", 'Û', "&Ucirc;", 'Ü', "&Uuml;",
+		'Ý', "&Yacute;", 'Þ', "&THORN;", 'ß', "&szlig;", 'à', "&agrave;",
+		'á', "&aacute;", 'â', "&acirc;", 'ã', "&atilde;", 'ä', "&auml;",
+		'å', "&aring;", 'æ', "&aelig;", 'ç', "&ccedil;", 'è', "&egrave;",
+		'é', "&eacute;", 'ê', "&ecirc;", 'ë', "&euml;", 'ì', "&igrave;",
+		'í', "&iacute;", 'î', "&icirc;", 'ï', "&iuml;", 'ð', "&eth;",
+		'ñ', "&ntilde;", 'ò', "&ograve;", 'ó', "&oacute;", 'ô', "&ocirc;",
+		'õ', "&otilde;", 'ö', "&ouml;", '÷', "&divide;", 'ø', "&oslash;",
+		'ù', "&ugrave;", 'ú', "&uacute;", 'û', "&ucirc;", 'ü', "&uuml;",
+		'ý', "&yacute;", 'þ', "&thorn;", 'ÿ', "&yuml;", 'Œ', "&OElig;",
+		'œ', "&oelig;", 'Š', "&Scaron;", 'š', "&scaron;", 'Ÿ', "&Yuml;",
+		'ƒ', "&fnof;", 'ˆ', "&circ;", '˜', "&tilde;", 'Α', "&Alpha;",
+		'Β', "&Beta;", 'Γ', "&Gamma;", 'Δ', "&Delta;", 'Ε', "&Epsilon;",
+		'Ζ', "&Zeta;", 'Η', "&Eta;", 'Θ', "&Theta;", 'Ι', "&Iota;",
+		'Κ', "&Kappa;", 'Λ', "&Lambda;", 'Μ', "&Mu;", 'Ν', "&Nu;",
+		'Ξ', "&Xi;", 'Ο', "&Omicron;", 'Π', "&Pi;", 'Ρ', "&Rho;",
+		'Σ', "&Sigma;", 'Τ', "&Tau;", 'Υ', "&Upsilon;", 'Φ', "&Phi;",
+		'Χ', "&Chi;", 'Ψ', "&Psi;", 'Ω', "&Omega;", 'α', "&alpha;",
+		'β', "&beta;", 'γ', "&gamma;", 'δ', "&delta;", 'ε', "&epsilon;",
+		'ζ', "&zeta;", 'η', "&eta;", 'θ', "&theta;", 'ι', "&iota;",
+		'κ', "&kappa;", 'λ', "&lambda;", 'μ', "&mu;", 'ν', "&nu;",
+		'ξ', "&xi;", 'ο', "&omicron;", 'π', "&pi;", 'ρ', "&rho;",
+		'ς', "&sigmaf;", 'σ', "&sigma;", 'τ', "&tau;", 'υ', "&upsilon;",
+		'φ', "&phi;", 'χ', "&chi;", 'ψ', "&psi;", 'ω', "&omega;",
+		'ϑ', "&thetasym;", 'ϒ', "&upsih;", 'ϖ', "&piv;", ' ', "&ensp;",
+		' ', "&emsp;", '—', "&mdash;", '‘', "&lsquo;", '’', "&rsquo;",
+		'‚', "&sbquo;", '“', "&ldquo;", '”', "&rdquo;", '„', "&bdquo;",
+		'†', "&dagger;", '‡', "&Dagger;", '•', "&bull;", '…', "&hellip;",
+		'‰', "&permil;", '′', "&prime;", '″', "&Prime;", '‹', "&lsaquo;",
+		'›', "&rsaquo;", '‾', "&oline;", '⁄', "&frasl;", '€', "&euro;",
+		'ℑ', "&image;", '℘', "&weierp;", 'ℜ', "&real;", '™', "&trade;",
+		'ℵ', "&alefsym;", '←', "&larr;", '↑', "&uarr;", '→', "&rarr;",
+		'↓', "&darr;", '↔', "&harr;", '↵', "&crarr;", '⇐', "&lArr;",
+		'⇑', "&uArr;", '⇒', "&rArr;", '⇓', "&dArr;", '⇔', "&hArr;",
+		'∀', "&forall;", '∂', "&part;", '∃', "&exist;", '∅', "&empty;",
+		'∇', "&nabla;", '∈', "&isin;", '∉', "&notin;", '∋', "&ni;",
+		'∏', "&prod;", '∑', "&sum;", '−', "&minus;", '∗', "&lowast;",
+		'√', "&radic;", '∝', "&prop;", '∞', "&infin;", '∠', "&ang;",
+		'∧', "&and;", '∨', "&or;", '∩', "&cap;", '∪', "&cup;",
+		'∫', "&int;", '∴', "&there4;", '∼', "&sim;", '≅', "&cong;",
+		'≈', "&asymp;", '≠', "&ne;", '≡', "&equiv;", '≤', "&le;",
+		'≥', "&ge;", '⊂', "&sub;", '⊃', "&sup;", '⊄', "&nsub;",
+		'⊆', "&sube;", '⊇', "&supe;", '⊕', "&oplus;", '⊗', "&otimes;",
+		'⊥', "&perp;", '⋅', "&sdot;", '⌈', "&lceil;", '⌉', "&rceil;",
+		'⌊', "&lfloor;", '⌋', "&rfloor;", '◊', "&loz;", '♠', "&spades;",
+		'♣', "&clubs;", '♥', "&hearts;", '♦', "&diams;", '〈', "&lang;"
+	};
+	// </editor-fold>
+	/**
+	 * Named entities for characters below 0x100, null where there isn't one.
+	 */
+	private static final String[] latin1Entities = new String[0x100];
+	/**
+	 * Characters from 0x100 up that have a named entity, sorted, and their
+	 * entities.
+	 */
+	private static final char[] otherEntityChars;
+	private static final String[] otherEntities;
+
+	static {
+		int others = 0;
+		for (int i = 0; i < entityList.length; i += 2) {
+			if ((Character) entityList[i] >= 0x100) {
+				others++;
+			}
+		}
+		otherEntityChars = new char[others];
+		otherEntities = new String[others];
+		int j = 0;
+		for (int i = 0; i < entityList.length; i += 2) {
+			char c = (Character) entityList[i];
+			if (c < 0x100) {
+				latin1Entities[c] = (String) entityList[i + 1];
+			} else {
+				otherEntityChars[j] = c;
+				otherEntities[j++] = (String) entityList[i + 1];
+			}
+		}
+	}
+
+	private static String namedEntity(char c) {
+		if (c < 0x100) {
+			return latin1Entities[c];
+		}
+		int index = Arrays.binarySearch(otherEntityChars, c);
+		return index < 0 ? null : otherEntities[index];
+	}
+
+	/**
+	 * Check whether a character has to be escaped. Anything outside of ASCII
+	 * is escaped, as well as the characters with a named entity.
+	 */
+	private static boolean needsEscaping(char c, char prevChar, boolean escapeSpace) {
+		if (c >= 0x80) {
+			return true;
+		}
+		return latin1Entities[c] != null || (c == ' ' && prevChar == ' ' && escapeSpace);
+	}
+
 	private static String xentities(String s, boolean html, boolean escapeSpace) {
-		StringBuilder sb = new StringBuilder();
 		int n = s.length();
 		char prevChar = (char) 0;
 		for (int i = 0; i < n; i++) {
 			char c = s.charAt(i);
-			// <editor-fold defaultstate="collapsed" desc="A crapload of html entities">
-			if (c == '"') {
-				appendEntity(html, sb, c, "&quot;");
-			} else if (c == '&') {
-				appendEntity(html, sb, c, "&amp;");
-			} else if (c == 39) {
-				appendEntity(html, sb, c, "&apos;");
-			} else if (c == '<') {
-				appendEntity(html, sb, c, "&lt;");
-			} else if (c == '>') {
-				appendEntity(html, sb, c, "&gt;");
-			} else if (c == ' ' && prevChar == ' ' && escapeSpace) {
-				appendEntity(html, sb, c, "&nbsp;");
-			} else if (c == '¡') {
-				appendEntity(html, sb, c, "&iexcl;");
-			} else if (c == '¢') {
-				appendEntity(html, sb, c, "&cent;");
-			} else if (c == '£') {
-				appendEntity(html, sb, c, "&pound;");
-			} else if (c == '¤') {
-				appendEntity(html, sb, c, "&curren;");
-			} else if (c == '¥') {
-				appendEntity(html, sb, c, "&yen;");
-			} else if (c == '¦') {
-				appendEntity(html, sb, c, "&brvbar;");
-			} else if (c == '§') {
-				appendEntity(html, sb, c, "&sect;");
-			} else if (c == '¨') {
-				appendEntity(html, sb, c, "&uml;");
-			} else if (c == '©') {
-				appendEntity(html, sb, c, "&copy;");
-			} else if (c == 'ª') {
-				appendEntity(html, sb, c, "&ordf;");
-			} else if (c == '«') {
-				appendEntity(html, sb, c, "&laquo;");
-			} else if (c == '¬') {
-				appendEntity(html, sb, c, "&not;");
-			} else if (c == '®') {
-				appendEntity(html, sb, c, "&reg;");
-			} else if (c == '¯') {
-				appendEntity(html, sb, c, "&macr;");
-			} else if (c == '°') {
-				appendEntity(html, sb, c, "&deg;");
-			} else if (c == '±') {
-				appendEntity(html, sb, c, "&plusmn;");
-			} else if (c == '²') {
-				appendEntity(html, sb, c, "&sup2;");
-			} else if (c == '³') {
-				appendEntity(html, sb, c, "&sup3;");
-			} else if (c == '´') {
-				appendEntity(html, sb, c, "&acute;");
-			} else if (c == 'µ') {
-				appendEntity(html, sb, c, "&micro;");
-			} else if (c == '¶') {
-				appendEntity(html, sb, c, "&para;");
-			} else if (c == '·') {
-				appendEntity(html, sb, c, "&middot;");
-			} else if (c == '¸') {
-				appendEntity(html, sb, c, "&cedil;");
-			} else if (c == '¹') {
-				appendEntity(html, sb, c, "&sup1;");
-			} else if (c == 'º') {
-				appendEntity(html, sb, c, "&ordm;");
-			} else if (c == '»') {
-				appendEntity(html, sb, c, "&raquo;");
-			} else if (c == '¼') {
-				appendEntity(html, sb, c, "&frac14;");
-			} else if (c == '½') {
-				appendEntity(html, sb, c, "&frac12;");
-			} else if (c == '¾') {
-				appendEntity(html, sb, c, "&frac34;");
-			} else if (c == '¿') {
-				appendEntity(html, sb, c, "&iquest;");
-			} else if (c == 'À') {
-				appendEntity(html, sb, c, "&Agrave;");
-			} else if (c == 'Á') {
-				appendEntity(html, sb, c, "&Aacute;");
-			} else if (c == 'Â') {
-				appendEntity(html, sb, c, "&Acirc;");
-			} else if (c == 'Ã') {
-				appendEntity(html, sb, c, "&Atilde;");
-			} else if (c == 'Ä') {
-				appendEntity(html, sb, c, "&Auml;");
-			} else if (c == 'Å') {
-				appendEntity(html, sb, c, "&Aring;");
-			} else if (c == 'Æ') {
-				appendEntity(html, sb, c, "&AElig;");
-			} else if (c == 'Ç') {
-				appendEntity(html, sb, c, "&Ccedil;");
-			} else if (c == 'È') {
-				appendEntity(html, sb, c, "&Egrave;");
-			} else if (c == 'É') {
-				appendEntity(html, sb, c, "&Eacute;");
-			} else if (c == 'Ê') {
-				appendEntity(html, sb, c, "&Ecirc;");
-			} else if (c == 'Ë') {
-				appendEntity(html, sb, c, "&Euml;");
-			} else if (c == 'Ì') {
-				appendEntity(html, sb, c, "&Igrave;");
-			} else if (c == 'Í') {
-				appendEntity(html, sb, c, "&Iacute;");
-			} else if (c == 'Î') {
-				appendEntity(html, sb, c, "&Icirc;");
-			} else if (c == 'Ï') {
-				appendEntity(html, sb, c, "&Iuml;");
-			} else if (c == 'Ð') {
-				appendEntity(html, sb, c, "&ETH;");
-			} else if (c == 'Ñ') {
-				appendEntity(html, sb, c, "&Ntilde;");
-			} else if (c == 'Ò') {
-				appendEntity(html, sb, c, "&Ograve;");
-			} else if (c == 'Ó') {
-				appendEntity(html, sb, c, "&Oacute;");
-			} else if (c == 'Ô') {
-				appendEntity(html, sb, c, "&Ocirc;");
-			} else if (c == 'Õ') {
-				appendEntity(html, sb, c, "&Otilde;");
-			} else if (c == 'Ö') {
-				appendEntity(html, sb, c, "&Ouml;");
-			} else if (c == '×') {
-				appendEntity(html, sb, c, "&times;");
-			} else if (c == 'Ø') {
-				appendEntity(html, sb, c, "&Oslash;");
-			} else if (c == 'Ù') {
-				appendEntity(html, sb, c, "&Ugrave;");
-			} else if (c == 'Ú') {
-				appendEntity(html, sb, c, "&Uacute;");
-			} else if (c == 'Û') {
-				appendEntity(html, sb, c, "&Ucirc;");
-			} else if (c == 'Ü') {
-				appendEntity(html, sb, c, "&Uuml;");
-			} else if (c == 'Ý') {
-				appendEntity(html, sb, c, "&Yacute;");
-			} else if (c == 'Þ') {
-				appendEntity(html, sb, c, "&THORN;");
-			} else if (c == 'ß') {
-				appendEntity(html, sb, c, "&szlig;");
-			} else if (c == 'à') {
-				appendEntity(html, sb, c, "&agrave;");
-			} else if (c == 'á') {
-				appendEntity(html, sb, c, "&aacute;");
-			} else if (c == 'â') {
-				appendEntity(html, sb, c, "&acirc;");
-			} else if (c == 'ã') {
-				appendEntity(html, sb, c, "&atilde;");
-			} else if (c == 'ä') {
-				appendEntity(html, sb, c, "&auml;");
-			} else if (c == 'å') {
-				appendEntity(html, sb, c, "&aring;");
-			} else if (c == 'æ') {
-				appendEntity(html, sb, c, "&aelig;");
-			} else if (c == 'ç') {
-				appendEntity(html, sb, c, "&ccedil;");
-			} else if (c == 'è') {
-				appendEntity(html, sb, c, "&egrave;");
-			} else if (c == 'é') {
-				appendEntity(html, sb, c, "&eacute;");
-			} else if (c == 'ê') {
-				appendEntity(html, sb, c, "&ecirc;");
-			} else if (c == 'ë') {
-				appendEntity(html, sb, c, "&euml;");
-			} else if (c == 'ì') {
-				appendEntity(html, sb, c, "&igrave;");
-			} else if (c == 'í') {
-				appendEntity(html, sb, c, "&iacute;");
-			} else if (c == 'î') {
-				appendEntity(html, sb, c, "&icirc;");
-			} else if (c == 'ï') {
-				appendEntity(html, sb, c, "&iuml;");
-			} else if (c == 'ð') {
-				appendEntity(html, sb, c, "&eth;");
-			} else if (c == 'ñ') {
-				appendEntity(html, sb, c, "&ntilde;");
-			} else if (c == 'ò') {
-				appendEntity(html, sb, c, "&ograve;");
-			} else if (c == 'ó') {
-				appendEntity(html, sb, c, "&oacute;");
-			} else if (c == 'ô') {
-				appendEntity(html, sb, c, "&ocirc;");
-			} else if (c == 'õ') {
-				appendEntity(html, sb, c, "&otilde;");
-			} else if (c == 'ö') {
-				appendEntity(html, sb, c, "&ouml;");
-			} else if (c == '÷') {
-				appendEntity(html, sb, c, "&divide;");
-			} else if (c == 'ø') {
-				appendEntity(html, sb, c, "&oslash;");
-			} else if (c == 'ù') {
-				appendEntity(html, sb, c, "&ugrave;");
-			} else if (c == 'ú') {
-				appendEntity(html, sb, c, "&uacute;");
-			} else if (c == 'û') {
-				appendEntity(html, sb, c, "&ucirc;");
-			} else if (c == 'ü') {
-				appendEntity(html, sb, c, "&uuml;");
-			} else if (c == 'ý') {
-				appendEntity(html, sb, c, "&yacute;");
-			} else if (c == 'þ') {
-				appendEntity(html, sb, c, "&thorn;");
-			} else if (c == 'ÿ') {
-				appendEntity(html, sb, c, "&yuml;");
-			} else if (c == 'Œ') {
-				appendEntity(html, sb, c, "&OElig;");
-			} else if (c == 'œ') {
-				appendEntity(html, sb, c, "&oelig;");
-			} else if (c == 'Š') {
-				appendEntity(html, sb, c, "&Scaron;");
-			} else if (c == 'š') {
-				appendEntity(html, sb, c, "&scaron;");
-			} else if (c == 'Ÿ') {
-				appendEntity(html, sb, c, "&Yuml;");
-			} else if (c == 'ƒ') {
-				appendEntity(html, sb, c, "&fnof;");
-			} else if (c == 'ˆ') {
-				appendEntity(html, sb, c, "&circ;");
-			} else if (c == '˜') {
-				appendEntity(html, sb, c, "&tilde;");
-			} else if (c == 'Α') {
-				appendEntity(html, sb, c, "&Alpha;");
-			} else if (c == 'Β') {
-				appendEntity(html, sb, c, "&Beta;");
-			} else if (c == 'Γ') {
-				appendEntity(html, sb, c, "&Gamma;");
-			} else if (c == 'Δ') {
-				appendEntity(html, sb, c, "&Delta;");
-			} else if (c == 'Ε') {
-				appendEntity(html, sb, c, "&Epsilon;");
-			} else if (c == 'Ζ') {
-				appendEntity(html, sb, c, "&Zeta;");
-			} else if (c == 'Η') {
-				appendEntity(html, sb, c, "&Eta;");
-			} else if (c == 'Θ') {
-				appendEntity(html, sb, c, "&Theta;");
-			} else if (c == 'Ι') {
-				appendEntity(html, sb, c, "&Iota;");
-			} else if (c == 'Κ') {
-				appendEntity(html, sb, c, "&Kappa;");
-			} else if (c == 'Λ') {
-				appendEntity(html, sb, c, "&Lambda;");
-			} else if (c == 'Μ') {
-				appendEntity(html, sb, c, "&Mu;");
-			} else if (c == 'Ν') {
-				appendEntity(html, sb, c, "&Nu;");
-			} else if (c == 'Ξ') {
-				appendEntity(html, sb, c, "&Xi;");
-			} else if (c == 'Ο') {
-				appendEntity(html, sb, c, "&Omicron;");
-			} else if (c == 'Π') {
-				appendEntity(html, sb, c, "&Pi;");
-			} else if (c == 'Ρ') {
-				appendEntity(html, sb, c, "&Rho;");
-			} else if (c == 'Σ') {
-				appendEntity(html, sb, c, "&Sigma;");
-			} else if (c == 'Τ') {
-				appendEntity(html, sb, c, "&Tau;");
-			} else if (c == 'Υ') {
-				appendEntity(html, sb, c, "&Upsilon;");
-			} else if (c == 'Φ') {
-				appendEntity(html, sb, c, "&Phi;");
-			} else if (c == 'Χ') {
-				appendEntity(html, sb, c, "&Chi;");
-			} else if (c == 'Ψ') {
-				appendEntity(html, sb, c, "&Psi;");
-			} else if (c == 'Ω') {
-				appendEntity(html, sb, c, "&Omega;");
-			} else if (c == 'α') {
-				appendEntity(html, sb, c, "&alpha;");
-			} else if (c == 'β') {
-				appendEntity(html, sb, c, "&beta;");
-			} else if (c == 'γ') {
-				appendEntity(html, sb, c, "&gamma;");
-			} else if (c == 'δ') {
-				appendEntity(html, sb, c, "&delta;");
-			} else if (c == 'ε') {
-				appendEntity(html, sb, c, "&epsilon;");
-			} else if (c == 'ζ') {
-				appendEntity(html, sb, c, "&zeta;");
-			} else if (c == 'η') {
-				appendEntity(html, sb, c, "&eta;");
-			} else if (c == 'θ') {
-				appendEntity(html, sb, c, "&theta;");
-			} else if (c == 'ι') {
-				appendEntity(html, sb, c, "&iota;");
-			} else if (c == 'κ') {
-				appendEntity(html, sb, c, "&kappa;");
-			} else if (c == 'λ') {
-				appendEntity(html, sb, c, "&lambda;");
-			} else if (c == 'μ') {
-				appendEntity(html, sb, c, "&mu;");
-			} else if (c == 'ν') {
-				appendEntity(html, sb, c, "&nu;");
-			} else if (c == 'ξ') {
-				appendEntity(html, sb, c, "&xi;");
-			} else if (c == 'ο') {
-				appendEntity(html, sb, c, "&omicron;");
-			} else if (c == 'π') {
-				appendEntity(html, sb, c, "&pi;");
-			} else if (c == 'ρ') {
-				appendEntity(html, sb, c, "&rho;");
-			} else if (c == 'ς') {
-				appendEntity(html, sb, c, "&sigmaf;");
-			} else if (c == 'σ') {
-				appendEntity(html, sb, c, "&sigma;");
-			} else if (c == 'τ') {
-				appendEntity(html, sb, c, "&tau;");
-			} else if (c == 'υ') {
-				appendEntity(html, sb, c, "&upsilon;");
-			} else if (c == 'φ') {
-				appendEntity(html, sb, c, "&phi;");
-			} else if (c == 'χ') {
-				appendEntity(html, sb, c, "&chi;");
-			} else if (c == 'ψ') {
-				appendEntity(html, sb, c, "&psi;");
-			} else if (c == 'ω') {
-				appendEntity(html, sb, c, "&omega;");
-			} else if (c == 'ϑ') {
-				appendEntity(html, sb, c, "&thetasym;");
-			} else if (c == 'ϒ') {
-				appendEntity(html, sb, c, "&upsih;");
-			} else if (c == 'ϖ') {
-				appendEntity(html, sb, c, "&piv;");
-			} else if (c == ' ') {
-				appendEntity(html, sb, c, "&ensp;");
-			} else if (c == ' ') {
-				appendEntity(html, sb, c, "&emsp;");
-			} else if (c == '—') {
-				appendEntity(html, sb, c, "&mdash;");
-			} else if (c == '‘') {
-				appendEntity(html, sb, c, "&lsquo;");
-			} else if (c == '’') {
-				appendEntity(html, sb, c, "&rsquo;");
-			} else if (c == '‚') {
-				appendEntity(html, sb, c, "&sbquo;");
-			} else if (c == '“') {
-				appendEntity(html, sb, c, "&ldquo;");
-			} else if (c == '”') {
-				appendEntity(html, sb, c, "&rdquo;");
-			} else if (c == '„') {
-				appendEntity(html, sb, c, "&bdquo;");
-			} else if (c == '†') {
-				appendEntity(html, sb, c, "&dagger;");
-			} else if (c == '‡') {
-				appendEntity(html, sb, c, "&Dagger;");
-			} else if (c == '•') {
-				appendEntity(html, sb, c, "&bull;");
-			} else if (c == '…') {
-				appendEntity(html, sb, c, "&hellip;");
-			} else if (c == '‰') {
-				appendEntity(html, sb, c, "&permil;");
-			} else if (c == '′') {
-				appendEntity(html, sb, c, "&prime;");
-			} else if (c == '″') {
-				appendEntity(html, sb, c, "&Prime;");
-			} else if (c == '‹') {
-				appendEntity(html, sb, c, "&lsaquo;");
-			} else if (c == '›') {
-				appendEntity(html, sb, c, "&rsaquo;");
-			} else if (c == '‾') {
-				appendEntity(html, sb, c, "&oline;");
-			} else if (c == '⁄') {
-				appendEntity(html, sb, c, "&frasl;");
-			} else if (c == '€') {
-				appendEntity(html, sb, c, "&euro;");
-			} else if (c == 'ℑ') {
-				appendEntity(html, sb, c, "&image;");
-			} else if (c == '℘') {
-				appendEntity(html, sb, c, "&weierp;");
-			} else if (c == 'ℜ') {
-				appendEntity(html, sb, c, "&real;");
-			} else if (c == '™') {
-				appendEntity(html, sb, c, "&trade;");
-			} else if (c == 'ℵ') {
-				appendEntity(html, sb, c, "&alefsym;");
-			} else if (c == '←') {
-				appendEntity(html, sb, c, "&larr;");
-			} else if (c == '↑') {
-				appendEntity(html, sb, c, "&uarr;");
-			} else if (c == '→') {
-				appendEntity(html, sb, c, "&rarr;");
-			} else if (c == '↓') {
-				appendEntity(html, sb, c, "&darr;");
-			} else if (c == '↔') {
-				appendEntity(html, sb, c, "&harr;");
-			} else if (c == '↵') {
-				appendEntity(html, sb, c, "&crarr;");
-			} else if (c == '⇐') {
-				appendEntity(html, sb, c, "&lArr;");
-			} else if (c == '⇑') {
-				appendEntity(html, sb, c, "&uArr;");
-			} else if (c == '⇒') {
-				appendEntity(html, sb, c, "&rArr;");
-			} else if (c == '⇓') {
-				appendEntity(html, sb, c, "&dArr;");
-			} else if (c == '⇔') {
-				appendEntity(html, sb, c, "&hArr;");
-			} else if (c == '∀') {
-				appendEntity(html, sb, c, "&forall;");
-			} else if (c == '∂') {
-				appendEntity(html, sb, c, "&part;");
-			} else if (c == '∃') {
-				appendEntity(html, sb, c, "&exist;");
-			} else if (c == '∅') {
-				appendEntity(html, sb, c, "&empty;");
-			} else if (c == '∇') {
-				appendEntity(html, sb, c, "&nabla;");
-			} else if (c == '∈') {
-				appendEntity(html, sb, c, "&isin;");
-			} else if (c == '∉') {
-				appendEntity(html, sb, c, "&notin;");
-			} else if (c == '∋') {
-				appendEntity(html, sb, c, "&ni;");
-			} else if (c == '∏') {
-				appendEntity(html, sb, c, "&prod;");
-			} else if (c == '∑') {
-				appendEntity(html, sb, c, "&sum;");
-			} else if (c == '−') {
-				appendEntity(html, sb, c, "&minus;");
-			} else if (c == '∗') {
-				appendEntity(html, sb, c, "&lowast;");
-			} else if (c == '√') {
-				appendEntity(html, sb, c, "&radic;");
-			} else if (c == '∝') {
-				appendEntity(html, sb, c, "&prop;");
-			} else if (c == '∞') {
-				appendEntity(html, sb, c, "&infin;");
-			} else if (c == '∠') {
-				appendEntity(html, sb, c, "&ang;");
-			} else if (c == '∧') {
-				appendEntity(html, sb, c, "&and;");
-			} else if (c == '∨') {
-				appendEntity(html, sb, c, "&or;");
-			} else if (c == '∩') {
-				appendEntity(html, sb, c, "&cap;");
-			} else if (c == '∪') {
-				appendEntity(html, sb, c, "&cup;");
-			} else if (c == '∫') {
-				appendEntity(html, sb, c, "&int;");
-			} else if (c == '∴') {
-				appendEntity(html, sb, c, "&there4;");
-			} else if (c == '∼') {
-				appendEntity(html, sb, c, "&sim;");
-			} else if (c == '≅') {
-				appendEntity(html, sb, c, "&cong;");
-			} else if (c == '≈') {
-				appendEntity(html, sb, c, "&asymp;");
-			} else if (c == '≠') {
-				appendEntity(html, sb, c, "&ne;");
-			} else if (c == '≡') {
-				appendEntity(html, sb, c, "&equiv;");
-			} else if (c == '≤') {
-				appendEntity(html, sb, c, "&le;");
-			} else if (c == '≥') {
-				appendEntity(html, sb, c, "&ge;");
-			} else if (c == '⊂') {
-				appendEntity(html, sb, c, "&sub;");
-			} else if (c == '⊃') {
-				appendEntity(html, sb, c, "&sup;");
-			} else if (c == '⊄') {
-				appendEntity(html, sb, c, "&nsub;");
-			} else if (c == '⊆') {
-				appendEntity(html, sb, c, "&sube;");
-			} else if (c == '⊇') {
-				appendEntity(html, sb, c, "&supe;");
-			} else if (c == '⊕') {
-				appendEntity(html, sb, c, "&oplus;");
-			} else if (c == '⊗') {
-				appendEntity(html, sb, c, "&otimes;");
-			} else if (c == '⊥') {
-				appendEntity(html, sb, c, "&perp;");
-			} else if (c == '⋅') {
-				appendEntity(html, sb, c, "&sdot;");
-			} else if (c == '⌈') {
-				appendEntity(html, sb, c, "&lceil;");
-			} else if (c == '⌉') {
-				appendEntity(html, sb, c, "&rceil;");
-			} else if (c == '⌊') {
-				appendEntity(html, sb, c, "&lfloor;");
-			} else if (c == '⌋') {
-				appendEntity(html, sb, c, "&rfloor;");
-			} else if (c == '◊') {
-				appendEntity(html, sb, c, "&loz;");
-			} else if (c == '♠') {
-				appendEntity(html, sb, c, "&spades;");
-			} else if (c == '♣') {
-				appendEntity(html, sb, c, "&clubs;");
-			} else if (c == '♥') {
-				appendEntity(html, sb, c, "&hearts;");
-			} else if (c == '♦') {
-				appendEntity(html, sb, c, "&diams;");
-			} else if (c == '〈') {
-				appendEntity(html, sb, c, "&lang;");
-			} else // </editor-fold>
-			if (Character.UnicodeBlock.of(c) != Character.UnicodeBlock.BASIC_LATIN) {
-				sb.append("&#");
-				sb.append((int) c);
-				sb.append(';');
-			} else {
-				sb.append(c);
+			if (needsEscaping(c, prevChar, escapeSpace)) {
+				StringBuilder sb = new StringBuilder(n + 16);
+				sb.append(s, 0, i);
+				try {
+					xentities(s, i, html, escapeSpace, sb);
+				} catch (IOException e) {
+					// StringBuilder doesn't throw IOException
+					throw new RuntimeException(e);
+				}
+				return sb.toString();
 			}
 			prevChar = c;
 		}
-		return sb.toString();
+		return s;
 	}
 
-	private static void appendEntity(boolean html, StringBuilder sb, char c, String htmlEntity) {
-		if (c == ' ') {
-			if (html) {
-				sb.append("&nbsp;");
-			} else {
-				sb.append(" ");
+	private static void xentities(String s, int start, boolean html, boolean escapeSpace, Appendable out) throws IOException {
+		int n = s.length();
+		char prevChar = start == 0 ? (char) 0 : s.charAt(start - 1);
+		int plainStart = start;
+		for (int i = start; i < n; i++) {
+			char c = s.charAt(i);
+			if (needsEscaping(c, prevChar, escapeSpace)) {
+				if (plainStart < i) {
+					out.append(s, plainStart, i);
+				}
+				plainStart = i + 1;
+				if (c == ' ') {
+					out.append(html ? "&nbsp;" : " ");
+				} else {
+					String entity = html ? namedEntity(c) : null;
+					if (entity != null) {
+						out.append(entity);
+					} else {
+						out.append("&#").append(Integer.toString(c)).append(';');
+					}
+				}
+			}
+			prevChar = c;
+		}
+		if (plainStart < n) {
+			out.append(s, plainStart, n);
+		}
+	}
+
+	/**
+	 * Collects the ASCII text of escaped strings into bytes for an
+	 * OutputStream.
+	 */
+	private static final class AsciiAppendable implements Appendable {
+
+		private final OutputStream out;
+		private final byte[] buffer = new byte[512];
+		private int count = 0;
+
+		AsciiAppendable(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq) throws IOException {
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) throws IOException {
+			for (int i = start; i < end; i++) {
+				if (count == buffer.length) {
+					flush();
+				}
+				buffer[count++] = (byte) csq.charAt(i);
+			}
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) c;
+			return this;
+		}
+
+		void flush() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
 			}
-		} else if (html) {
-			sb.append(htmlEntity);
-		} else {
-			sb.append("&#");
-			sb.append((int) c);
-			sb.append(';');
 		}
 	}
 	// </editor-fold>
@@ -665,11 +437,7 @@ public final class HTMLUtils {
 	 * @return unescaped text
 	 */
 	public static String urlDecode(String string) {
-		try {
-			return URLDecoder.decode(string, "UTF-8");
-		} catch (Exception e) {
-			return string;
-		}
+		return PercentDecoder.decode(string, true);
 	}
 	// </editor-fold>
 
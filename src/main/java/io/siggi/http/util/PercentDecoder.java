@@ -0,0 +1,104 @@
+package io.siggi.http.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes percent encoded text, such as URL paths, query strings, form data
+ * and cookies. Escapes are decoded to bytes which are then read as UTF-8.
+ * Malformed input never throws: a % that isn't followed by two hex digits is
+ * kept as it is, and invalid UTF-8 becomes the replacement character.
+ */
+public final class PercentDecoder {
+
+	private PercentDecoder() {
+	}
+
+	private static final byte[] hexValues = new byte[128];
+
+	static {
+		for (int i = 0; i < hexValues.length; i++) {
+			hexValues[i] = -1;
+		}
+		for (int i = 0; i < 10; i++) {
+			hexValues['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			hexValues['a' + i] = (byte) (10 + i);
+			hexValues['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	private static int hexValue(byte b) {
+		return b < 0 ? -1 : hexValues[b];
+	}
+
+	/**
+	 * Decode a String.
+	 *
+	 * @param str the text to decode
+	 * @param plusToSpace whether + means a space, as in query strings and form
+	 * data
+	 * @return the decoded text, or str itself if there was nothing to decode
+	 */
+	public static String decode(String str, boolean plusToSpace) {
+		int length = str.length();
+		int i = 0;
+		while (i < length) {
+			char c = str.charAt(i);
+			if (c == '%' || (c == '+' && plusToSpace)) {
+				break;
+			}
+			i++;
+		}
+		if (i == length) {
+			return str;
+		}
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		return decode(bytes, 0, bytes.length, plusToSpace);
+	}
+
+	/**
+	 * Decode a range of bytes into a String. The bytes are decoded in place,
+	 * so the range is overwritten.
+	 *
+	 * @param bytes the bytes to decode
+	 * @param offset where to start
+	 * @param length how many bytes to decode
+	 * @param plusToSpace whether + means a space
+	 * @return the decoded text
+	 */
+	public static String decode(byte[] bytes, int offset, int length, boolean plusToSpace) {
+		return new String(bytes, offset, decodeInPlace(bytes, offset, length, plusToSpace), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decode a range of bytes in place. The decoded bytes are never longer
+	 * than the encoded ones, they start at the same offset.
+	 *
+	 * @param bytes the bytes to decode
+	 * @param offset where to start
+	 * @param length how many bytes to decode
+	 * @param plusToSpace whether + means a space
+	 * @return the length of the decoded bytes
+	 */
+	public static int decodeInPlace(byte[] bytes, int offset, int length, boolean plusToSpace) {
+		int end = offset + length;
+		int write = offset;
+		for (int read = offset; read < end; read++) {
+			byte b = bytes[read];
+			if (b == '%' && read + 2 < end) {
+				int high = hexValue(bytes[read + 1]);
+				int low = hexValue(bytes[read + 2]);
+				if (high >= 0 && low >= 0) {
+					bytes[write++] = (byte) ((high << 4) | low);
+					read += 2;
+					continue;
+				}
+			} else if (b == '+' && plusToSpace) {
+				b = ' ';
+			}
+			bytes[write++] = b;
+		}
+		return write - offset;
+	}
+}
@@ -1,13 +1,48 @@
 package io.siggi.http.util;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-
-public class PostDataMap extends HashMap<String,String> {
-	
-	public PostDataMap(InputStream in){}
-	
-	private void prepare(){
-		// read from InputStream
+
+/**
+ * The fields of an application/x-www-form-urlencoded body, decoded the first
+ * time the map is used.
+ *
+ * @deprecated The server no longer uses this, form bodies are decoded while
+ * they are read with {@link io.siggi.http.io.UrlEncodedFormParser}.
+ */
+@Deprecated
+public class PostDataMap extends LazyHashMap<String, String> {
+
+	private String data;
+	private InputStream in;
+
+	/**
+	 * @param data the form data
+	 */
+	public PostDataMap(String data) {
+		this.data = data;
+	}
+
+	/**
+	 * @param in the stream to read the form data from when the map is first
+	 * used
+	 */
+	public PostDataMap(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	protected void prepare() {
+		if (data != null) {
+			Util.parseQueryString(data, this);
+			data = null;
+		} else if (in != null) {
+			try {
+				Util.parseQueryString(in, this);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			in = null;
+		}
 	}
 }
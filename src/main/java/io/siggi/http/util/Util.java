@@ -1,8 +1,6 @@
 package io.siggi.http.util;
 
 import io.siggi.http.exception.TooBigException;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -110,19 +108,14 @@ public class Util {
 	}
 
 	public static Map<String, String> parseQueryString(String str) {
-		try {
-			return parseQueryString(new ByteArrayInputStream(str.getBytes()));
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		Map<String, String> map = new HashMap<>();
+		parseQueryString(str, map);
+		return map;
 	}
 
 	public static void parseQueryString(String str, Map<String, String> map) {
-		try {
-			parseQueryString(new ByteArrayInputStream(str.getBytes()), map);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		byte[] data = str.getBytes(StandardCharsets.UTF_8);
+		parseQueryString(data, 0, data.length, map);
 	}
 
 	public static Map<String, String> parseQueryString(InputStream in) throws IOException {
@@ -132,48 +125,37 @@ public class Util {
 	}
 
 	public static void parseQueryString(InputStream in, Map<String, String> map) throws IOException {
-		BufferedInputStream inn = new BufferedInputStream(in);
-		ByteArrayOutputStream key = new ByteArrayOutputStream();
-		ByteArrayOutputStream val = new ByteArrayOutputStream();
-		ByteArrayOutputStream writeTo = key;
-		int c;
-		try {
-			while ((c = inn.read()) != -1) {
-				if (c == 0x3D && writeTo == key) { // =
-					writeTo = val;
-				} else if (c == 0x25) { // %
-					inn.mark(2);
-					int a = inn.read();
-					int b = inn.read();
-					try {
-						String s = new String(new byte[]{(byte) a, (byte) b});
-						writeTo.write(Integer.parseInt(s, 16));
-					} catch (NumberFormatException e) {
-						writeTo.write(c);
-						inn.reset();
-					}
-				} else if (c == 0x2B) { // +
-					writeTo.write(0x20);
-				} else if (c == 0x26) { // &
-					String k = new String(key.toByteArray(), "UTF-8");
-					String v = new String(val.toByteArray(), "UTF-8");
-					if (!k.isEmpty() || !v.isEmpty()) {
-						map.put(k, v);
-					}
-					writeTo = key;
-					key.reset();
-					val.reset();
-				} else {
-					writeTo.write(c);
-				}
+		byte[] data = readFully(in);
+		parseQueryString(data, 0, data.length, map);
+	}
+
+	/**
+	 * Parse a query string or form data. The data is decoded in place, so the
+	 * range is overwritten.
+	 *
+	 * @param data the encoded data
+	 * @param offset where the data starts
+	 * @param length the length of the data
+	 * @param map the map to put the fields in
+	 */
+	public static void parseQueryString(byte[] data, int offset, int length, Map<String, String> map) {
+		int end = offset + length;
+		int start = offset;
+		while (start <= end) {
+			int fieldEnd = start;
+			while (fieldEnd < end && data[fieldEnd] != '&') {
+				fieldEnd++;
 			}
-		} catch (IOException ioe) {
-			throw new RuntimeException(ioe);
-		}
-		String k = new String(key.toByteArray(), "UTF-8");
-		String v = new String(val.toByteArray(), "UTF-8");
-		if (!k.isEmpty() || !v.isEmpty()) {
-			map.put(k, v);
+			int equals = start;
+			while (equals < fieldEnd && data[equals] != '=') {
+				equals++;
+			}
+			String k = PercentDecoder.decode(data, start, equals - start, true);
+			String v = equals < fieldEnd ? PercentDecoder.decode(data, equals + 1, fieldEnd - equals - 1, true) : "";
+			if (!k.isEmpty() || !v.isEmpty()) {
+				map.put(k, v);
+			}
+			start = fieldEnd + 1;
 		}
 	}
 
@@ -242,45 +224,7 @@ public class Util {
 	}
 
 	public static String urldecode(String str, boolean convertPlusToSpace) {
-		byte[] bytes;
-		try {
-			bytes = str.getBytes("UTF-8");
-		} catch (UnsupportedEncodingException ex) {
-			throw new RuntimeException(ex);
-		}
-		BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes));
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		int c;
-		try {
-			while ((c = in.read()) != -1) {
-				if (c == 0x2B && convertPlusToSpace) { // +
-					out.write(0x20);
-				} else if (c == 0x25) { // %
-					in.mark(2);
-					int a1 = in.read();
-					int a2 = in.read();
-					if (a1 != -1 && a2 != -1) {
-						try {
-							int a3 = Integer.parseInt(new String(new byte[]{(byte) a1, (byte) a2}), 16);
-							out.write(a3);
-						} catch (NumberFormatException nfe) {
-							out.write(c);
-							in.reset();
-						}
-					}
-				} else {
-					out.write(c);
-				}
-			}
-		} catch (IOException ioe) {
-			throw new RuntimeException(ioe);
-		}
-
-		try {
-			return new String(out.toByteArray(), "UTF-8");
-		} catch (UnsupportedEncodingException ex) {
-			throw new RuntimeException(ex);
-		}
+		return PercentDecoder.decode(str, convertPlusToSpace);
 	}
 
 	public static byte[] readFully(InputStream in) throws IOException {
@@ -293,7 +237,7 @@ public class Util {
 		byte[] buffer = new byte[4096];
 		while ((c = in.read(buffer, 0, buffer.length)) != -1) {
 			baos.write(buffer, 0, c);
-			if (baos.size() > maxLength) {
+			if (maxLength >= 0 && baos.size() > maxLength) {
 				throw new TooBigException();
 			}
 		}
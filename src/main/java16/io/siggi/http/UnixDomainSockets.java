@@ -0,0 +1,71 @@
+package io.siggi.http;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Access to Unix domain sockets on Java 16 and newer.
+ */
+final class UnixDomainSockets {
+
+	private UnixDomainSockets() {
+	}
+
+	static boolean isUnixAddress(SocketAddress address) {
+		return address instanceof UnixDomainSocketAddress;
+	}
+
+	static SocketAddress address(Path path) {
+		return UnixDomainSocketAddress.of(path);
+	}
+
+	static ServerSocketChannel openServerChannel() throws IOException {
+		return ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+	}
+
+	/**
+	 * Remove a socket file left behind by a server that didn't shut down
+	 * cleanly. The file is only removed if nothing accepts connections on it.
+	 *
+	 * @param address the address that is about to be bound
+	 */
+	static void deleteStaleSocketFile(SocketAddress address) {
+		if (!(address instanceof UnixDomainSocketAddress)) {
+			return;
+		}
+		Path path = ((UnixDomainSocketAddress) address).getPath();
+		if (!Files.exists(path)) {
+			return;
+		}
+		try {
+			// something accepted the connection, so it's still in use
+			SocketChannel.open(address).close();
+		} catch (ConnectException e) {
+			deleteSocketFile(address);
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Remove the file a Unix domain socket was bound to, the next bind on the
+	 * same path fails while it exists.
+	 *
+	 * @param address the address the server channel was bound to
+	 */
+	static void deleteSocketFile(SocketAddress address) {
+		if (!(address instanceof UnixDomainSocketAddress)) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package io.siggi.http;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads on Java 21 and newer.
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	static Executor newExecutor() {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("HTTPServer-ClientHandler-", 0L).factory());
+	}
+}